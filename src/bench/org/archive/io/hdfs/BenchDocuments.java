@@ -0,0 +1,206 @@
+/* BenchDocuments
+ *
+ * $Id$
+ *
+ * Copyright (C) 2010 Zvents
+ *
+ * This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ * Heritrix is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * any later version.
+ *
+ * Heritrix is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with Heritrix; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.archive.io.hdfs;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+
+/**
+ * A corpus of documents in the {@link HDFSWriterDocument} format, shaped
+ * like the records a crawl actually stores, for the parsing benchmarks.
+ * There are four kinds:
+ *
+ * <ul>
+ * <li><b>html</b> small pages whose charset comes from the Content-Type
+ *  header or from a <code>&lt;meta http-equiv&gt;</code> tag</li>
+ * <li><b>xhtml</b> pages with an <code>&lt;?xml ... encoding="..."?&gt;</code>
+ *  prolog</li>
+ * <li><b>binary</b> images and PDFs of 64KB to 1MB, some of them above the
+ *  size at which the document buffer is reallocated</li>
+ * <li><b>malformed</b> bare LF line ends, header lines without a colon,
+ *  odd Content-Type values, truncated headers and so on</li>
+ * </ul>
+ *
+ * The same kind, count and seed always give the same documents.
+ */
+public class BenchDocuments {
+
+	public static final String [] KINDS = { "html", "xhtml", "binary", "malformed" };
+
+	private static final String [] HOSTS = {
+		"www.example.com", "news.example.org", "shop.example.net", "blog.example.co.uk"
+	};
+
+	private static final String [] CHARSETS = {
+		"UTF-8", "ISO-8859-1", "windows-1252", "utf-8", "Shift_JIS"
+	};
+
+	/**
+	 * @return <code>count</code> documents of the given kind
+	 */
+	public static byte [][] documents(String kind, int count, long seed) {
+		Random random = new Random(seed);
+		byte [][] documents = new byte [count][];
+		for (int i=0; i<count; i++) {
+			if (kind.equals("html"))
+				documents[i] = html(random, i);
+			else if (kind.equals("xhtml"))
+				documents[i] = xhtml(random, i);
+			else if (kind.equals("binary"))
+				documents[i] = binary(random, i);
+			else if (kind.equals("malformed"))
+				documents[i] = malformed(random, i);
+			else
+				throw new IllegalArgumentException("unknown document kind: " + kind);
+		}
+		return documents;
+	}
+
+	private static byte [] html(Random random, int i) {
+		String url = url(random, i, ".html");
+		String charset = CHARSETS[random.nextInt(CHARSETS.length)];
+		byte [] body = BenchRecords.body(2048 + random.nextInt(30720), random.nextLong());
+		// half of the pages only name their charset in a meta tag
+		String contentType = (i % 2 == 0) ? "text/html; charset=" + charset : "text/html";
+		String head = "<!DOCTYPE HTML PUBLIC \"-//W3C//DTD HTML 4.01 Transitional//EN\">\n" +
+				"<html>\n<head>\n<title>Page " + i + "</title>\n" +
+				"<link rel=\"stylesheet\" type=\"text/css\" href=\"/css/site.css\">\n" +
+				"<script type=\"text/javascript\" src=\"/js/site.js\"></script>\n" +
+				"<meta name=\"keywords\" content=\"benchmark, page, " + i + "\">\n" +
+				"<meta http-equiv=\"Content-Type\" content=\"text/html; charset=" + charset + "\">\n" +
+				"</head>\n";
+		return document(url, request(url, "\r\n"),
+				response("HTTP/1.1 200 OK", contentType, "\r\n"),
+				BenchRecords.concat(head.getBytes(), body));
+	}
+
+	private static byte [] xhtml(Random random, int i) {
+		String url = url(random, i, "/");
+		String charset = CHARSETS[random.nextInt(CHARSETS.length)];
+		byte [] body = BenchRecords.body(4096 + random.nextInt(28672), random.nextLong());
+		String head = "<?xml version=\"1.0\" encoding=\"" + charset + "\"?>\n" +
+				"<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.0 Strict//EN\" " +
+				"\"http://www.w3.org/TR/xhtml1/DTD/xhtml1-strict.dtd\">\n" +
+				"<html xmlns=\"http://www.w3.org/1999/xhtml\" xml:lang=\"en\">\n" +
+				"<head><title>Page " + i + "</title></head>\n";
+		String contentType = (i % 2 == 0) ? "application/xhtml+xml" : "text/html";
+		return document(url, request(url, "\r\n"),
+				response("HTTP/1.1 200 OK", contentType, "\r\n"),
+				BenchRecords.concat(head.getBytes(), body));
+	}
+
+	private static byte [] binary(Random random, int i) {
+		String contentType = (i % 3 == 0) ? "application/pdf" : "image/jpeg";
+		String url = url(random, i, (i % 3 == 0) ? ".pdf" : ".jpg");
+		byte [] body = new byte [65536 + random.nextInt(983040)];
+		random.nextBytes(body);
+		return document(url, request(url, "\r\n"),
+				response("HTTP/1.1 200 OK", contentType, "\r\n"), body);
+	}
+
+	private static byte [] malformed(Random random, int i) {
+		String url = url(random, i, ".php");
+		byte [] body = BenchRecords.body(1024 + random.nextInt(15360), random.nextLong());
+		switch (i % 6) {
+		case 0:
+			// bare LF line ends throughout
+			return document(url, request(url, "\n"),
+					response("HTTP/1.0 200 OK", "text/html; charset=UTF-8", "\n"), body);
+		case 1:
+			// header lines without a colon and a status line without a reason
+			return document(url, request(url, "\r\n"),
+					("HTTP/1.1 200\r\n" +
+					 "Server Apache\r\n" +
+					 "X-Powered-By PHP/5.2.6\r\n" +
+					 "Content-Type: text/html\r\n" +
+					 "\r\n").getBytes(), body);
+		case 2:
+			// quoted, misspelled and doubled charset parameters
+			return document(url, request(url, "\r\n"),
+					response("HTTP/1.1 200 OK", "TEXT/HTML;;charset=\"utf8\"; charset=latin1", "\r\n"),
+					body);
+		case 3:
+			// no Content-Type header and a meta tag with odd spacing
+			return document(url, request(url, "\r\n"),
+					("HTTP/1.1 200 OK\r\n" +
+					 "Content-Length: " + body.length + "\r\n" +
+					 "\r\n").getBytes(),
+					BenchRecords.concat(("<HTML><HEAD><META  HTTP-EQUIV = \"content-type\" " +
+							"CONTENT= \"text/html;charset=iso8859_1\" ></HEAD>").getBytes(), body));
+		case 4:
+			// truncated in the middle of the headers
+			return document(url, request(url, "\r\n"),
+					("HTTP/1.1 302 Found\r\n" +
+					 "Location: http://" + HOSTS[0] + "/\r\n" +
+					 "Content-Type: text/ht").getBytes(), new byte [0]);
+		default:
+			// non-numeric status and a body that never closes its tags
+			return document(url, request(url, "\r\n"),
+					response("HTTP/1.1 OK", "text/html; charset=", "\r\n"),
+					BenchRecords.concat("<html><head><meta http-equiv=\"Content-Type\" content=\"".getBytes(),
+							body));
+		}
+	}
+
+	private static String url(Random random, int i, String suffix) {
+		return "http://" + HOSTS[random.nextInt(HOSTS.length)] + "/section" +
+				random.nextInt(100) + "/item" + i + suffix;
+	}
+
+	private static String request(String url, String eol) {
+		return "GET " + url.substring(url.indexOf('/', 7)) + " HTTP/1.1" + eol +
+				"Host: " + url.substring(7, url.indexOf('/', 7)) + eol +
+				"User-Agent: Mozilla/5.0 (compatible; heritrix/3.0.0 +http://crawler.archive.org)" + eol +
+				"Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8" + eol +
+				"Connection: close" + eol + eol;
+	}
+
+	private static byte [] response(String statusLine, String contentType, String eol) {
+		return (statusLine + eol +
+				"Date: Thu, 01 Apr 2010 00:00:00 GMT" + eol +
+				"Server: Apache/2.2.14 (Unix)" + eol +
+				"Cache-Control: private, max-age=0" + eol +
+				"Content-Type: " + contentType + eol +
+				"Connection: close" + eol +
+				eol).getBytes();
+	}
+
+	private static byte [] document(String url, String request, byte [] response, byte [] body) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(
+				256 + request.length() + response.length + body.length);
+		String fields = "HDFSWriter/0.3\r\n" +
+				"URL: " + url + "\r\n" +
+				"IP-Address: 192.0.2.1\r\n" +
+				"Crawl-Time: 20100401000000\r\n" +
+				"Is-Seed: false\r\n" +
+				"Path-From-Seed: LL\r\n" +
+				"Via: http://" + HOSTS[0] + "/\r\n" +
+				"\r\n";
+		out.write(fields.getBytes(), 0, fields.length());
+		out.write(request.getBytes(), 0, request.length());
+		out.write(response, 0, response.length);
+		out.write(body, 0, body.length);
+		return out.toByteArray();
+	}
+}
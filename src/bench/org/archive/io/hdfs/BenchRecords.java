@@ -0,0 +1,184 @@
+/* BenchRecords
+ *
+ * $Id$
+ *
+ * Copyright (C) 2010 Zvents
+ *
+ * This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ * Heritrix is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * any later version.
+ *
+ * Heritrix is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with Heritrix; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.archive.io.hdfs;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.archive.modules.CrawlURI;
+import org.archive.net.UURIFactory;
+import org.archive.util.Recorder;
+
+
+/**
+ * Synthetic crawl records for the benchmarks: an HTTP request and a
+ * response with an HTML body of a given size, recorded into a
+ * {@link Recorder} the way the fetchers do, so that they can be replayed
+ * any number of times.  Bodies are made of words from a small vocabulary
+ * so that they compress about as well as real pages.
+ */
+public class BenchRecords {
+
+	private static final String [] WORDS = {
+		"the", "of", "and", "to", "in", "for", "is", "on", "that", "by", "this", "with",
+		"you", "it", "not", "or", "be", "are", "from", "at", "as", "your", "all", "have",
+		"new", "more", "an", "was", "we", "will", "home", "can", "us", "about", "if", "page",
+		"<p>", "</p>", "<a href=\"/", "\">", "</a>", "<div class=\"", "</div>", "<li>", "</li>"
+	};
+
+	/**
+	 * @return <code>size</code> bytes of HTML, the same for the same seed
+	 */
+	public static byte [] body(int size, long seed) {
+		Random random = new Random(seed);
+		StringBuilder html = new StringBuilder(size + 16);
+		html.append("<html><head><title>Benchmark</title></head><body>\n");
+		while (html.length() < size) {
+			html.append(WORDS[random.nextInt(WORDS.length)]);
+			html.append((random.nextInt(12) == 0) ? '\n' : ' ');
+		}
+		html.setLength(size);
+		return html.toString().getBytes();
+	}
+
+	/**
+	 * @return a fetched CrawlURI for <code>uri</code> whose recorder holds
+	 *  a request and a 200 response with a body of <code>bodySize</code>
+	 *  bytes; its backing files go in <code>dir</code>
+	 */
+	public static CrawlURI crawlURI(File dir, String uri, int bodySize, long seed)
+			throws IOException {
+		byte [] body = body(bodySize, seed);
+		byte [] request = ("GET " + uri + " HTTP/1.0\r\n" +
+				"User-Agent: Mozilla/5.0 (compatible; heritrix/3.0.0 +http://crawler.archive.org)\r\n" +
+				"Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n" +
+				"\r\n").getBytes();
+		byte [] headers = ("HTTP/1.0 200 OK\r\n" +
+				"Date: Thu, 01 Apr 2010 00:00:00 GMT\r\n" +
+				"Server: Apache/2.2.14 (Unix)\r\n" +
+				"Content-Type: text/html; charset=ISO-8859-1\r\n" +
+				"Content-Length: " + body.length + "\r\n" +
+				"\r\n").getBytes();
+
+		Recorder recorder = new Recorder(dir, "bench-" + Math.abs(seed), 16384,
+				Math.max(65536, headers.length + body.length));
+
+		OutputStream out = recorder.outputWrap(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte [] b, int off, int len) {
+			}
+		});
+		out.write(request);
+		out.flush();
+
+		InputStream in = recorder.inputWrap(new ByteArrayInputStream(concat(headers, body)));
+		readFully(in, headers.length);
+		recorder.markContentBegin();
+		readFully(in, body.length);
+		recorder.close();
+
+		CrawlURI curi = new CrawlURI(UURIFactory.getInstance(uri));
+		curi.setRecorder(recorder);
+		curi.setFetchStatus(200);
+		curi.setContentType("text/html");
+		curi.setContentSize(headers.length + body.length);
+		curi.setFetchBeginTime(System.currentTimeMillis());
+		return curi;
+	}
+
+	/**
+	 * @return named fields block like the one HDFSWriterProcessor writes
+	 */
+	public static byte [] fields(HDFSParameters parameters, CrawlURI curi) throws IOException {
+		HDFSNamedFieldsEncoder fields = new HDFSNamedFieldsEncoder(parameters);
+		fields.addUrl(curi.toString());
+		fields.addIp("127.0.0.1");
+		fields.addCrawlTime(curi.getFetchBeginTime());
+		fields.addIsSeed(false);
+		fields.addSeedUrl("http://example.com/");
+		fields.addPathFromSeed("LL");
+		fields.addVia("http://example.com/");
+		return fields.toByteArray();
+	}
+
+	/**
+	 * @return parameters of the benchmark pools: output under
+	 *  <code>dir</code>, or discarded if <code>fileSystem</code> is "null",
+	 *  and rotation at 100MB
+	 */
+	public static HDFSParameters parameters(String fileSystem, String compressionType, File dir) {
+		HDFSParameters parameters = new HDFSParameters();
+		parameters.setPrefix("BENCH");
+		parameters.setHdfsCompressionType(compressionType);
+		parameters.setMaxSize(100 * 1024 * 1024);
+		if (fileSystem.equals("null")) {
+			parameters.setHdfsFsDefaultName(NullFileSystem.NAME.toString());
+			parameters.setHdfsOutputPath("/bench");
+		} else {
+			parameters.setHdfsFsDefaultName("file:///");
+			parameters.setHdfsOutputPath(new File(dir, "out").getPath());
+		}
+		return parameters;
+	}
+
+	/**
+	 * @return a new empty directory under java.io.tmpdir
+	 */
+	public static File tempDir(String name) throws IOException {
+		File dir = File.createTempFile(name, "");
+		if (!dir.delete() || !dir.mkdirs())
+			throw new IOException("Failed to create " + dir);
+		return dir;
+	}
+
+	public static void delete(File file) {
+		File [] children = file.listFiles();
+		if (children != null)
+			for (File child : children)
+				delete(child);
+		file.delete();
+	}
+
+	static byte [] concat(byte [] a, byte [] b) {
+		byte [] c = new byte [ a.length + b.length ];
+		System.arraycopy(a, 0, c, 0, a.length);
+		System.arraycopy(b, 0, c, a.length, b.length);
+		return c;
+	}
+
+	private static void readFully(InputStream in, int len) throws IOException {
+		byte [] buf = new byte [ 16384 ];
+		for (int n; len > 0 && (n = in.read(buf, 0, Math.min(buf.length, len))) > 0; )
+			len -= n;
+		if (len > 0)
+			throw new IOException("Recorded response ended early");
+	}
+}
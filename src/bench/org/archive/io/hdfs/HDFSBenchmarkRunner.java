@@ -0,0 +1,62 @@
+/* HDFSBenchmarkRunner
+ *
+ * $Id$
+ *
+ * Copyright (C) 2010 Zvents
+ *
+ * This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ * Heritrix is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * any later version.
+ *
+ * Heritrix is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with Heritrix; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.archive.io.hdfs;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+/**
+ * Runs the benchmarks once per thread count, with the GC profiler so
+ * that the results include the bytes allocated per record
+ * (gc.alloc.rate.norm).  Takes the usual JMH arguments; without -t the
+ * thread counts are taken from the bench.threads system property,
+ * "1,4,16" by default.
+ *
+ * <pre>
+ * HDFSBenchmarkRunner [JMH options] [benchmark regexp]
+ * </pre>
+ */
+public class HDFSBenchmarkRunner {
+
+	public static void main(String [] args) throws Exception {
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+
+		String [] threadCounts = commandLine.getThreads().hasValue() ?
+				new String [] { commandLine.getThreads().get().toString() } :
+				System.getProperty("bench.threads", "1,4,16").split(",");
+
+		for (String threads : threadCounts) {
+			ChainedOptionsBuilder options = new OptionsBuilder()
+				.parent(commandLine)
+				.threads(Integer.parseInt(threads.trim()))
+				.addProfiler(GCProfiler.class);
+			if (commandLine.getIncludes().isEmpty())
+				options.include("org\\.archive\\..*Benchmark");
+			new Runner(options.build()).run();
+		}
+	}
+}
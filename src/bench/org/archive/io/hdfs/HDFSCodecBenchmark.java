@@ -0,0 +1,250 @@
+/* HDFSCodecBenchmark
+ *
+ * $Id$
+ *
+ * Copyright (C) 2010 Zvents
+ *
+ * This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ * Heritrix is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * any later version.
+ *
+ * Heritrix is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with Heritrix; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.archive.io.hdfs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionInputStream;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Compression speed and ratio of the codecs on crawl records, to help
+ * choose <code>hdfsCompressionCodec</code>.  Records are compressed the
+ * way SequenceFile does: one stream per record for RECORD compression
+ * and one per 1MB of records for BLOCK compression.
+ *
+ * Each operation compresses, or decompresses, the whole corpus, so the
+ * scores are milliseconds per corpus.  The corpus is made of
+ * {@link BenchDocuments}, mostly pages with a few binaries, or of the
+ * record values of existing output files with <code>-p files=a,b</code>,
+ * up to <code>-p mb=</code> megabytes.  The compression ratio is logged at the
+ * end of each trial.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HDFSCodecBenchmark {
+
+	private final Logger LOG = Logger.getLogger(this.getClass().getName());
+
+	private static final int BLOCK_SIZE = 1000000;
+	private static final int DOCUMENTS_PER_KIND = 256;
+	private static final int BINARY_DOCUMENTS = 16;
+
+	@Param({ "default", "deflate", "lz4", "bzip2" })
+	public String codec;
+
+	@Param({ "RECORD", "BLOCK" })
+	public String compressionType;
+
+	@Param({ "" })
+	public String files;
+
+	@Param({ "64" })
+	public int mb;
+
+	private List<byte []> inputs;
+	private byte [][] compressed;
+	private long inputBytes;
+	private long compressedBytes;
+
+	private DataOutputBuffer compressedOut;
+	private CompressionOutputStream out;
+	private DataInputBuffer compressedIn;
+	private CompressionInputStream in;
+	private final byte [] buf = new byte [ 65536 ];
+
+	@Setup(Level.Trial)
+	public void loadCorpus() throws IOException {
+		Configuration conf = new Configuration();
+		long maxBytes = mb * 1024L * 1024L;
+		List<byte []> records = (files.length() == 0) ? documents(maxBytes) :
+			load(conf, files.split(","), maxBytes);
+		inputs = compressionType.equals("BLOCK") ? toBlocks(records) : records;
+		compressed = new byte [ inputs.size() ][];
+		inputBytes = 0;
+		for (byte [] input : inputs)
+			inputBytes += input.length;
+
+		CompressionCodec compressionCodec = (CompressionCodec)ReflectionUtils.newInstance(
+				HDFSClientContext.getCodecClass(codec), conf);
+		compressedOut = new DataOutputBuffer();
+		out = compressionCodec.createOutputStream(compressedOut, compressionCodec.createCompressor());
+		compressedIn = new DataInputBuffer();
+		in = compressionCodec.createInputStream(compressedIn, compressionCodec.createDecompressor());
+
+		compress();
+	}
+
+	@TearDown(Level.Trial)
+	public void logRatio() {
+		LOG.info(codec + " " + compressionType + ": " + inputs.size() + " streams, " + inputBytes +
+				" bytes compressed to " + compressedBytes + String.format(" (%.3f)",
+						(double)compressedBytes / inputBytes));
+	}
+
+	/**
+	 * @return bytes of the compressed corpus
+	 */
+	@Benchmark
+	public long compress() throws IOException {
+		compressedBytes = 0;
+		for (int i = 0; i < inputs.size(); i++) {
+			compressedOut.reset();
+			out.resetState();
+			out.write(inputs.get(i));
+			out.finish();
+			compressed[i] = Arrays.copyOf(compressedOut.getData(), compressedOut.getLength());
+			compressedBytes += compressedOut.getLength();
+		}
+		return compressedBytes;
+	}
+
+	/**
+	 * @return bytes of the decompressed corpus
+	 */
+	@Benchmark
+	public long decompress() throws IOException {
+		long total = 0;
+		for (int i = 0; i < compressed.length; i++) {
+			compressedIn.reset(compressed[i], compressed[i].length);
+			in.resetState();
+
+			long n = 0;
+			for (int len; (len = in.read(buf, 0, buf.length)) > 0; )
+				n += len;
+			if (n != inputs.get(i).length)
+				throw new IOException(codec + " decompressed " + n + " of " +
+						inputs.get(i).length + " bytes");
+			total += n;
+		}
+		return total;
+	}
+
+	/**
+	 * @return documents of every kind, interleaved, up to
+	 *  <code>maxBytes</code>
+	 */
+	private static List<byte []> documents(long maxBytes) {
+		byte [][][] kinds = new byte [ BenchDocuments.KINDS.length ][][];
+		for (int k = 0; k < kinds.length; k++) {
+			String kind = BenchDocuments.KINDS[k];
+			kinds[k] = BenchDocuments.documents(kind,
+					kind.equals("binary") ? BINARY_DOCUMENTS : DOCUMENTS_PER_KIND, 42);
+		}
+
+		List<byte []> records = new ArrayList<byte []>();
+		long totalBytes = 0;
+		for (int i = 0; i < DOCUMENTS_PER_KIND; i++) {
+			for (byte [][] documents : kinds) {
+				if (i < documents.length && totalBytes < maxBytes) {
+					records.add(documents[i]);
+					totalBytes += documents[i].length;
+				}
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * Loads uncompressed record values of <code>paths</code> until
+	 * <code>maxBytes</code> are held.
+	 */
+	private static List<byte []> load(Configuration conf, String [] paths, long maxBytes)
+			throws IOException {
+		List<byte []> records = new ArrayList<byte []>();
+		long totalBytes = 0;
+
+		for (String name : paths) {
+			Path path = new Path(name);
+			FileSystem fs = path.getFileSystem(conf);
+			if (fs.getFileStatus(path).isDir())
+				path = new Path(path, "data");
+
+			SequenceFile.Reader reader = new SequenceFile.Reader(fs, path, conf);
+			try {
+				DataOutputBuffer key = new DataOutputBuffer();
+				DataOutputBuffer value = new DataOutputBuffer();
+				SequenceFile.ValueBytes valueBytes = reader.createValueBytes();
+
+				while (totalBytes < maxBytes && reader.nextRaw(key, valueBytes) != -1) {
+					value.reset();
+					valueBytes.writeUncompressedBytes(value);
+					records.add(Arrays.copyOf(value.getData(), value.getLength()));
+					totalBytes += value.getLength();
+					key.reset();
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		return records;
+	}
+
+	private static List<byte []> toBlocks(List<byte []> records) throws IOException {
+		List<byte []> blocks = new ArrayList<byte []>();
+		DataOutputBuffer block = new DataOutputBuffer();
+
+		for (byte [] record : records) {
+			block.write(record, 0, record.length);
+			if (block.getLength() >= BLOCK_SIZE) {
+				blocks.add(Arrays.copyOf(block.getData(), block.getLength()));
+				block.reset();
+			}
+		}
+		if (block.getLength() > 0)
+			blocks.add(Arrays.copyOf(block.getData(), block.getLength()));
+
+		return blocks;
+	}
+}
@@ -0,0 +1,131 @@
+/* HDFSWriterBenchmark
+ *
+ * $Id$
+ *
+ * Copyright (C) 2010 Zvents
+ *
+ * This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ * Heritrix is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * any later version.
+ *
+ * Heritrix is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with Heritrix; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.archive.io.hdfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.archive.modules.CrawlURI;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Throughput and latency of {@link HDFSWriter#write} the way a toe
+ * thread calls it: borrow a writer from the pool, check the file size,
+ * write one recorded capture and return the writer.
+ *
+ * Output goes to a temporary directory through <code>file:///</code>, or
+ * to {@link NullFileSystem} to leave the disk out.  Each thread writes
+ * its own record over and over; files rotate at 100MB.  Run with
+ * {@link HDFSBenchmarkRunner} to vary the thread count and get the
+ * allocation per record from the GC profiler.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HDFSWriterBenchmark {
+
+	@Param({ "file", "null" })
+	public String fileSystem;
+
+	@Param({ "NONE", "RECORD", "BLOCK" })
+	public String compressionType;
+
+	@Param({ "1024", "16384", "262144" })
+	public int recordSize;
+
+	private File dir;
+	private HDFSParameters parameters;
+	private HDFSWriterPool pool;
+	private final AtomicInteger threads = new AtomicInteger();
+
+	@Setup(Level.Trial)
+	public void openPool() throws IOException {
+		dir = BenchRecords.tempDir("hdfs-bench");
+		parameters = BenchRecords.parameters(fileSystem, compressionType, dir);
+		pool = new HDFSWriterPool(parameters, 64, 60000);
+	}
+
+	@TearDown(Level.Trial)
+	public void closePool() {
+		pool.close();
+		BenchRecords.delete(dir);
+	}
+
+	/**
+	 * The record a thread writes
+	 */
+	@State(Scope.Thread)
+	public static class Record {
+		CrawlURI curi;
+		byte [] fields;
+
+		@Setup(Level.Trial)
+		public void record(HDFSWriterBenchmark benchmark) throws IOException {
+			int thread = benchmark.threads.incrementAndGet();
+			curi = BenchRecords.crawlURI(benchmark.dir, "http://www.example.com/t" + thread + "/page.html",
+					benchmark.recordSize, thread);
+			fields = BenchRecords.fields(benchmark.parameters, curi);
+		}
+
+		@TearDown(Level.Trial)
+		public void cleanup() {
+			curi.getRecorder().cleanup();
+		}
+	}
+
+	@Benchmark
+	public long write(Record record) throws IOException {
+		HDFSWriter writer = (HDFSWriter)pool.borrowFile(record.curi.toString());
+		try {
+			writer.checkSize();
+			writer.write(record.curi, record.fields, record.curi.getRecorder().getRecordedOutput(),
+					record.curi.getRecorder().getRecordedInput());
+			return writer.getPosition();
+		} catch (IOException e) {
+			pool.invalidateFile(writer);
+			writer = null;
+			throw e;
+		} finally {
+			if (writer != null)
+				pool.returnFile(writer);
+		}
+	}
+}
@@ -0,0 +1,176 @@
+/* HDFSWriterDocumentBenchmark
+ *
+ * $Id$
+ *
+ * Copyright (C) 2010 Zvents
+ *
+ * This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ * Heritrix is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * any later version.
+ *
+ * Heritrix is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with Heritrix; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.archive.io.hdfs;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.archive.io.hdfs.util.ByteScan;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Cost of each stage of reading a stored record back with
+ * {@link HDFSWriterDocument}, over a {@link BenchDocuments} corpus:
+ *
+ * <ul>
+ * <li><b>load</b> the whole document: copy, named fields, request and
+ *  response</li>
+ * <li><b>parseResponse</b> the status line and headers only, through
+ *  {@link HDFSWriterDocument#setHttpResponse}</li>
+ * <li><b>findAndParseContentType</b> the scan of the body for a meta tag
+ *  or XML prolog</li>
+ * <li>the {@link ByteScan} primitives these are built on, over the same
+ *  bytes</li>
+ * </ul>
+ *
+ * Each operation is one record, taken in turn from the corpus, so the
+ * scores are nanoseconds per record.  Run with {@link HDFSBenchmarkRunner}
+ * and <code>-t 1</code> to also get the bytes allocated per record
+ * (<code>gc.alloc.rate.norm</code>).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HDFSWriterDocumentBenchmark {
+
+	private static final int CORPUS_SIZE = 48;
+
+	private static final char [] CLOSE_HEAD = { '/','h','e','a','d' };
+
+	@Param({ "html", "xhtml", "binary", "malformed" })
+	public String kind;
+
+	private byte [][] documents;
+	private int [] responseOffset;
+	private int [] responseLength;
+	private int [] bodyOffset;
+	private boolean [] scanBody;
+	private int next;
+
+	private final HDFSWriterDocument document = new HDFSWriterDocument();
+	private final ByteScan.State bss = new ByteScan.State();
+
+	@Setup(Level.Trial)
+	public void loadCorpus() throws IOException {
+		documents = BenchDocuments.documents(kind, CORPUS_SIZE, 42);
+		responseOffset = new int [documents.length];
+		responseLength = new int [documents.length];
+		bodyOffset = new int [documents.length];
+		scanBody = new boolean [documents.length];
+		for (int i=0; i<documents.length; i++) {
+			document.load(documents[i], 0, documents[i].length);
+			responseOffset[i] = document.getResponseOffset();
+			responseLength[i] = document.getResponseLength();
+			bodyOffset[i] = document.getResponseBodyOffset();
+			document.setHttpResponse(documents[i], responseOffset[i], bodyOffset[i] - responseOffset[i]);
+			scanBody[i] = document.getContentType() == null ||
+					document.getContentType().startsWith("text");
+		}
+	}
+
+	private int nextRecord() {
+		int i = next;
+		next = (i + 1 == documents.length) ? 0 : i + 1;
+		return i;
+	}
+
+	@Benchmark
+	public HDFSWriterDocument load() throws IOException {
+		byte [] bytes = documents[nextRecord()];
+		document.load(bytes, 0, bytes.length);
+		return document;
+	}
+
+	@Benchmark
+	public HDFSWriterDocument parseResponse() {
+		int i = nextRecord();
+		document.setHttpResponse(documents[i], responseOffset[i], responseLength[i]);
+		return document;
+	}
+
+	/**
+	 * Only for the records whose headers leave parseResponse looking in
+	 * the body
+	 */
+	@Benchmark
+	public String findAndParseContentType() {
+		int i = nextRecord();
+		if (!scanBody[i])
+			return null;
+		bss.init(documents[i], bodyOffset[i], responseOffset[i] + responseLength[i]);
+		document.findAndParseContentType(bss);
+		return document.getCharset();
+	}
+
+	/**
+	 * Status code the way parseResponse reads it
+	 */
+	@Benchmark
+	public int scanStatusCode() {
+		int i = nextRecord();
+		bss.init(documents[i], responseOffset[i], responseOffset[i] + responseLength[i]);
+		if (ByteScan.SkipToWhitespace(bss) && ByteScan.SkipWhitespace(bss))
+			ByteScan.ParseInt(bss);
+		return bss.ival;
+	}
+
+	/**
+	 * Line ends in the response headers, one {@link ByteScan#FindSkip(ByteScan.State, char)}
+	 * per header
+	 */
+	@Benchmark
+	public int scanHeaderLines() {
+		int i = nextRecord();
+		bss.init(documents[i], responseOffset[i], bodyOffset[i]);
+		int lines = 0;
+		while (ByteScan.FindSkip(bss, '\n'))
+			lines++;
+		return lines;
+	}
+
+	/**
+	 * Case insensitive search for the end of the HTML head, or the whole
+	 * body when there is none
+	 */
+	@Benchmark
+	public int scanCloseHead() {
+		int i = nextRecord();
+		bss.init(documents[i], bodyOffset[i], responseOffset[i] + responseLength[i]);
+		return ByteScan.Find(bss, CLOSE_HEAD) ? bss.offset : -1;
+	}
+}
@@ -0,0 +1,193 @@
+/* NullFileSystem
+ *
+ * $Id$
+ *
+ * Copyright (C) 2010 Zvents
+ *
+ * This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ * Heritrix is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * any later version.
+ *
+ * Heritrix is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with Heritrix; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.archive.io.hdfs;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.util.Progressable;
+
+
+/**
+ * File system that keeps the names and lengths of the files written to
+ * it but throws their bytes away, so that benchmarks measure the writer
+ * rather than the disk.  Files cannot be read back.
+ *
+ * Registered for <code>null:///</code> by the core-site.xml of the
+ * benchmark classpath.
+ */
+public class NullFileSystem extends FileSystem {
+
+	public static final URI NAME = URI.create("null:///");
+
+	private static final long BLOCK_SIZE = 64 * 1024 * 1024;
+
+	/**
+	 * Length of every file, by path without scheme, and the directories
+	 */
+	private final Map<String, AtomicLong> files = new ConcurrentHashMap<String, AtomicLong>();
+	private final Map<String, Boolean> dirs = new ConcurrentHashMap<String, Boolean>();
+
+	private Path workingDir = new Path("/");
+
+	@Override
+	public URI getUri() {
+		return NAME;
+	}
+
+	private String key(Path path) {
+		return makeQualified(path).toUri().getPath();
+	}
+
+	@Override
+	public FSDataInputStream open(Path path, int bufferSize) throws IOException {
+		throw new IOException("Files of " + NAME + " cannot be read");
+	}
+
+	@Override
+	public FSDataOutputStream create(Path path, FsPermission permission, boolean overwrite,
+			int bufferSize, short replication, long blockSize, Progressable progress)
+			throws IOException {
+		String key = key(path);
+		if (!overwrite && files.containsKey(key))
+			throw new IOException(path + " already exists");
+		mkdirs(path.getParent(), permission);
+
+		final AtomicLong length = new AtomicLong();
+		files.put(key, length);
+		return new FSDataOutputStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+				length.incrementAndGet();
+			}
+
+			@Override
+			public void write(byte [] b, int off, int len) {
+				length.addAndGet(len);
+			}
+		}, statistics);
+	}
+
+	@Override
+	public FSDataOutputStream append(Path path, int bufferSize, Progressable progress)
+			throws IOException {
+		throw new IOException("Files of " + NAME + " cannot be appended to");
+	}
+
+	@Override
+	public boolean rename(Path src, Path dst) throws IOException {
+		AtomicLong length = files.remove(key(src));
+		if (length == null)
+			return false;
+		files.put(key(dst), length);
+		return true;
+	}
+
+	@Override
+	@Deprecated
+	public boolean delete(Path path) throws IOException {
+		return delete(path, true);
+	}
+
+	@Override
+	public boolean delete(Path path, boolean recursive) throws IOException {
+		String key = key(path);
+		if (files.remove(key) != null)
+			return true;
+		if (dirs.remove(key) == null)
+			return false;
+
+		String prefix = key.endsWith("/") ? key : key + "/";
+		for (String name : files.keySet())
+			if (name.startsWith(prefix))
+				files.remove(name);
+		for (String name : dirs.keySet())
+			if (name.startsWith(prefix))
+				dirs.remove(name);
+		return true;
+	}
+
+	@Override
+	public FileStatus [] listStatus(Path path) throws IOException {
+		String key = key(path);
+		if (files.containsKey(key))
+			return new FileStatus [] { getFileStatus(path) };
+		if (!dirs.containsKey(key))
+			return null;
+
+		String prefix = key.endsWith("/") ? key : key + "/";
+		List<FileStatus> children = new ArrayList<FileStatus>();
+		for (String name : files.keySet())
+			if (name.startsWith(prefix) && name.indexOf('/', prefix.length()) < 0)
+				children.add(getFileStatus(new Path(name)));
+		for (String name : dirs.keySet())
+			if (name.startsWith(prefix) && name.indexOf('/', prefix.length()) < 0)
+				children.add(getFileStatus(new Path(name)));
+		return children.toArray(new FileStatus [ children.size() ]);
+	}
+
+	@Override
+	public void setWorkingDirectory(Path dir) {
+		workingDir = makeQualified(dir);
+	}
+
+	@Override
+	public Path getWorkingDirectory() {
+		return workingDir;
+	}
+
+	@Override
+	public boolean mkdirs(Path path, FsPermission permission) throws IOException {
+		for (Path p = path; p != null; p = p.getParent()) {
+			String key = key(p);
+			if (files.containsKey(key))
+				throw new IOException(p + " is a file");
+			dirs.put(key, Boolean.TRUE);
+		}
+		return true;
+	}
+
+	@Override
+	public FileStatus getFileStatus(Path path) throws IOException {
+		String key = key(path);
+		AtomicLong length = files.get(key);
+		if (length != null)
+			return new FileStatus(length.get(), false, 1, BLOCK_SIZE, 0, makeQualified(path));
+		if (dirs.containsKey(key) || key.equals("/"))
+			return new FileStatus(0, true, 1, BLOCK_SIZE, 0, makeQualified(path));
+		throw new FileNotFoundException(path + " does not exist");
+	}
+}
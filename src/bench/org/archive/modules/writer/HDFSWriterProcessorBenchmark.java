@@ -0,0 +1,142 @@
+/* HDFSWriterProcessorBenchmark
+ *
+ * $Id$
+ *
+ * Copyright (C) 2010 Zvents
+ *
+ * This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ * Heritrix is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * any later version.
+ *
+ * Heritrix is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with Heritrix; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.archive.modules.writer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.archive.io.ReplayInputStream;
+import org.archive.io.hdfs.BenchRecords;
+import org.archive.modules.CrawlURI;
+import org.archive.modules.Processor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Throughput and latency of {@link HDFSWriterProcessor#write}, which
+ * adds building the named fields block and the byte accounting of the
+ * processor to what HDFSWriterBenchmark measures.  Same parameters and
+ * output as HDFSWriterBenchmark.
+ *
+ * The processor is not started, since that needs a crawl; its pool is
+ * set up directly and host addresses are not looked up.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HDFSWriterProcessorBenchmark {
+
+	@Param({ "file", "null" })
+	public String fileSystem;
+
+	@Param({ "NONE", "RECORD", "BLOCK" })
+	public String compressionType;
+
+	@Param({ "1024", "16384", "262144" })
+	public int recordSize;
+
+	private File dir;
+	private BenchProcessor processor;
+	private final AtomicInteger threads = new AtomicInteger();
+
+	/**
+	 * Processor whose host addresses need no server cache
+	 */
+	static class BenchProcessor extends HDFSWriterProcessor {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected String getHostAddress(CrawlURI curi) {
+			return "127.0.0.1";
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void openProcessor() throws IOException {
+		dir = BenchRecords.tempDir("hdfs-bench");
+
+		processor = new BenchProcessor();
+		processor.setHdfsParameters(BenchRecords.parameters(fileSystem, compressionType, dir));
+		processor.setPoolMaxActive(64);
+		processor.setPoolMaxWaitMs(60000);
+		processor.setupPool(new AtomicInteger());
+	}
+
+	@TearDown(Level.Trial)
+	public void closeProcessor() {
+		processor.getPool().close();
+		BenchRecords.delete(dir);
+	}
+
+	/**
+	 * The capture a thread writes
+	 */
+	@State(Scope.Thread)
+	public static class Capture {
+		CrawlURI curi;
+
+		@Setup(Level.Trial)
+		public void record(HDFSWriterProcessorBenchmark benchmark) throws IOException {
+			int thread = benchmark.threads.incrementAndGet();
+			curi = BenchRecords.crawlURI(benchmark.dir, "http://www.example.com/t" + thread + "/page.html",
+					benchmark.recordSize, thread);
+		}
+
+		@TearDown(Level.Trial)
+		public void cleanup() {
+			curi.getRecorder().cleanup();
+		}
+	}
+
+	/**
+	 * Does what HDFSWriterProcessor.innerProcessResult does for a
+	 * capture that should be written
+	 */
+	@Benchmark
+	public Object write(Capture capture) throws IOException {
+		CrawlURI curi = capture.curi;
+		ReplayInputStream ris = curi.getRecorder().getRecordedInput().getReplayInputStream();
+		try {
+			return processor.write(curi, Processor.getRecordedSize(curi), ris);
+		} finally {
+			ris.close();
+		}
+	}
+}
@@ -0,0 +1,70 @@
+/* CompositeRotationPolicy
+ *
+ * $Id$
+ *
+ * Copyright (C) 2010 Zvents
+ *
+ * This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ * Heritrix is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * any later version.
+ *
+ * Heritrix is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with Heritrix; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.archive.io.hdfs;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Rotates a file as soon as any of its policies says so.
+ */
+public class CompositeRotationPolicy implements HDFSRotationPolicy {
+
+	private List<HDFSRotationPolicy> policies = new ArrayList<HDFSRotationPolicy>();
+
+	public CompositeRotationPolicy() {
+	}
+
+	public CompositeRotationPolicy(List<HDFSRotationPolicy> policies) {
+		this.policies = policies;
+	}
+
+	public boolean shouldRotate(long length, long records, long ageMs) {
+		for (HDFSRotationPolicy policy : policies) {
+			if (policy.shouldRotate(length, records, ageMs))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the shortest check interval of the policies
+	 */
+	public long getCheckIntervalMs() {
+		long interval = 0;
+		for (HDFSRotationPolicy policy : policies) {
+			long i = policy.getCheckIntervalMs();
+			if (i > 0 && (interval == 0 || i < interval))
+				interval = i;
+		}
+		return interval;
+	}
+
+	public List<HDFSRotationPolicy> getPolicies() {
+		return policies;
+	}
+	public void setPolicies(List<HDFSRotationPolicy> policies) {
+		this.policies = policies;
+	}
+}
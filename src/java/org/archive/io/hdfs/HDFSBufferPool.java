@@ -0,0 +1,280 @@
+/* HDFSBufferPool
+ *
+ * $Id$
+ *
+ * Copyright (C) 2010 Zvents
+ *
+ * This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ * Heritrix is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * any later version.
+ *
+ * Heritrix is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with Heritrix; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.archive.io.hdfs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Pool of record buffers shared by the writers of a pool.
+ *
+ * Buffers come in power of two size classes from 64 KB to 64 MB and are
+ * either heap or direct.  Released buffers are kept for reuse.  The
+ * memory budget covers the buffers handed out and the idle ones together:
+ * idle buffers are dropped for the garbage collector to make room for new
+ * ones, and once the buffers handed out fill the budget, requests are
+ * refused and callers spill to disk instead.  Requests larger than the
+ * biggest class are allocated to size and never pooled.
+ *
+ * The pool belongs to the {@link HDFSClientContext} of a writer pool.
+ */
+public class HDFSBufferPool {
+
+	private static final int MIN_CLASS_SHIFT = 16;
+	private static final int MAX_CLASS_SHIFT = 26;
+
+	private final long maxBytes;
+	private final boolean direct;
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private final ConcurrentLinkedQueue<ByteBuffer> [] freeLists =
+		new ConcurrentLinkedQueue [ MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1 ];
+
+	/**
+	 * Bytes of the buffers handed out and of the idle ones
+	 */
+	private final AtomicLong usedBytes = new AtomicLong();
+	private final AtomicLong pooledBytes = new AtomicLong();
+	private final AtomicLong outstandingBytes = new AtomicLong();
+	private final AtomicLong allocations = new AtomicLong();
+	private final AtomicLong allocatedBytes = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong refused = new AtomicLong();
+
+	/**
+	 * @param maxBytes budget for the buffers handed out and the idle ones
+	 * @param direct allocate direct (off heap) buffers
+	 */
+	public HDFSBufferPool(long maxBytes, boolean direct) {
+		this.maxBytes = maxBytes;
+		this.direct = direct;
+		for (int i=0; i<freeLists.length; i++)
+			freeLists[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+	}
+
+	/**
+	 * Gets a cleared buffer of at least <code>minCapacity</code> bytes.
+	 * Give it back with {@link #release} when done.
+	 *
+	 * @return the buffer, or null if it does not fit in the budget
+	 */
+	public ByteBuffer acquire(int minCapacity) {
+		int shift = classShift(minCapacity);
+		ByteBuffer buf = null;
+
+		if (shift <= MAX_CLASS_SHIFT) {
+			buf = freeLists[shift - MIN_CLASS_SHIFT].poll();
+			if (buf != null) {
+				pooledBytes.addAndGet(-buf.capacity());
+				hits.incrementAndGet();
+			}
+		}
+
+		if (buf == null) {
+			int capacity = (shift <= MAX_CLASS_SHIFT) ? (1 << shift) : minCapacity;
+			if (!reserve(capacity)) {
+				refused.incrementAndGet();
+				return null;
+			}
+			buf = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+			misses.incrementAndGet();
+			allocations.incrementAndGet();
+			allocatedBytes.addAndGet(capacity);
+		}
+
+		outstandingBytes.addAndGet(buf.capacity());
+		buf.clear();
+		return buf;
+	}
+
+	/**
+	 * Counts <code>capacity</code> more bytes against the budget, dropping
+	 * idle buffers to make room if needed.
+	 *
+	 * @return false if they do not fit even without idle buffers
+	 */
+	private boolean reserve(int capacity) {
+		while (true) {
+			long used = usedBytes.get();
+			if (used + capacity <= maxBytes) {
+				if (usedBytes.compareAndSet(used, used + capacity))
+					return true;
+			} else if (!evictIdle()) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Drops one idle buffer, largest class first.
+	 *
+	 * @return false if there were none
+	 */
+	private boolean evictIdle() {
+		for (int i = freeLists.length - 1; i >= 0; i--) {
+			ByteBuffer buf = freeLists[i].poll();
+			if (buf != null) {
+				pooledBytes.addAndGet(-buf.capacity());
+				usedBytes.addAndGet(-buf.capacity());
+				dropped.incrementAndGet();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Hands a buffer obtained from {@link #acquire} back to the pool.
+	 * The caller must not touch it afterwards.
+	 */
+	public void release(ByteBuffer buf) {
+		if (buf == null)
+			return;
+
+		int capacity = buf.capacity();
+		outstandingBytes.addAndGet(-capacity);
+
+		int shift = classShift(capacity);
+		if (shift > MAX_CLASS_SHIFT || (1 << shift) != capacity || buf.isDirect() != direct) {
+			usedBytes.addAndGet(-capacity);
+			dropped.incrementAndGet();
+			return;
+		}
+
+		pooledBytes.addAndGet(capacity);
+		freeLists[shift - MIN_CLASS_SHIFT].offer(buf);
+	}
+
+	/**
+	 * @return smallest class shift holding <code>capacity</code> bytes
+	 */
+	private static int classShift(int capacity) {
+		if (capacity <= (1 << MIN_CLASS_SHIFT))
+			return MIN_CLASS_SHIFT;
+		return 32 - Integer.numberOfLeadingZeros(capacity - 1);
+	}
+
+	/**
+	 * Writes the first <code>length</code> bytes of <code>buf</code> to
+	 * <code>out</code>, heap or direct.  The buffer's position and limit
+	 * are not changed.
+	 */
+	public static void writeTo(ByteBuffer buf, int length, OutputStream out) throws IOException {
+		if (buf.hasArray()) {
+			out.write(buf.array(), buf.arrayOffset(), length);
+			return;
+		}
+
+		ByteBuffer src = buf.duplicate();
+		src.clear();
+		src.limit(length);
+		byte [] chunk = new byte [ Math.min(length, 8192) ];
+		while (src.hasRemaining()) {
+			int n = Math.min(chunk.length, src.remaining());
+			src.get(chunk, 0, n);
+			out.write(chunk, 0, n);
+		}
+	}
+
+	public boolean isDirect() {
+		return direct;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @return bytes held by idle buffers in the pool
+	 */
+	public long getPooledBytes() {
+		return pooledBytes.get();
+	}
+
+	/**
+	 * @return bytes held by buffers currently acquired
+	 */
+	public long getOutstandingBytes() {
+		return outstandingBytes.get();
+	}
+
+	/**
+	 * @return number of buffers allocated because the pool had none
+	 */
+	public long getAllocations() {
+		return allocations.get();
+	}
+
+	public long getAllocatedBytes() {
+		return allocatedBytes.get();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return fraction of acquires served from the pool
+	 */
+	public double getHitRate() {
+		long h = hits.get();
+		long total = h + misses.get();
+		return (total == 0) ? 0.0 : (double)h / total;
+	}
+
+	/**
+	 * @return number of buffers dropped to make room or not kept because
+	 *  they cannot be pooled
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return number of acquires refused because of the budget
+	 */
+	public long getRefused() {
+		return refused.get();
+	}
+
+	@Override
+	public String toString() {
+		return "HDFSBufferPool[" + (direct ? "direct" : "heap") +
+			", pooled=" + getPooledBytes() +
+			", outstanding=" + getOutstandingBytes() + "/" + maxBytes +
+			", allocations=" + getAllocations() + " (" + getAllocatedBytes() + " bytes)" +
+			", hitRate=" + getHitRate() +
+			", dropped=" + getDropped() +
+			", refused=" + getRefused() + "]";
+	}
+}
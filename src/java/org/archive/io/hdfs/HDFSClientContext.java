@@ -0,0 +1,420 @@
+/* HDFSClientContext
+ *
+ * $Id$
+ *
+ * Copyright (C) 2010 Zvents
+ *
+ * This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ * Heritrix is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * any later version.
+ *
+ * Heritrix is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with Heritrix; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.archive.io.hdfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.compress.BZip2Codec;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.io.compress.GzipCodec;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.log4j.Logger;
+
+
+/**
+ * File system state shared by all members of an {@link HDFSWriterPool}.
+ *
+ * Holds the Hadoop Configuration, the FileSystem handle and the output
+ * directory, all set up once on first use.  The Configuration is never
+ * changed afterwards; replication and block size are passed to each file
+ * as it is created.  Safe for use by concurrent writers.
+ */
+public class HDFSClientContext {
+
+	private final Logger LOG = Logger.getLogger(this.getClass().getName());
+
+	private final HDFSParameters parameters;
+	private final Configuration conf;
+	private final SequenceFile.CompressionType compressionType;
+	private final CompressionCodec codec;
+	private final Class<? extends WritableComparable<?>> keyClass;
+
+	private FileSystem fs = null;
+	private Path outputDir = null;
+	private HDFSUploader uploader = null;
+	private ExecutorService rotationExecutor = null;
+
+	/**
+	 * Header dictionary, trained on the first records by headerTrainer.
+	 * Set once; files created afterwards carry it.
+	 */
+	private volatile HDFSHeaderDictionary.Trainer headerTrainer = null;
+	private volatile HDFSHeaderDictionary headerDictionary = null;
+
+	/**
+	 * Digests of the records written, for deduplication.  Created on
+	 * first use.
+	 */
+	private HDFSDedupTable dedupTable = null;
+
+	/**
+	 * Metrics of the writers sharing this context
+	 */
+	private final HDFSWriterMetrics metrics = new HDFSWriterMetrics();
+
+	/**
+	 * Record buffers of the writers sharing this context
+	 */
+	private final HDFSBufferPool bufferPool;
+
+	/**
+	 * Does not touch the file system; that happens on first use.
+	 */
+	public HDFSClientContext(HDFSParameters parameters) {
+		this.parameters = parameters;
+
+		this.conf = new Configuration();
+		conf.set("fs.default.name", parameters.getHdfsFsDefaultName());
+
+		// Determine SequenceFile compression type
+		if (parameters.getHdfsCompressionType().equals("DEFAULT")) {
+			String zname = conf.get("io.seqfile.compression.type");
+
+			this.compressionType = (zname == null) ? SequenceFile.CompressionType.RECORD :
+				SequenceFile.CompressionType.valueOf(zname);
+		} else {
+			this.compressionType = SequenceFile.CompressionType.valueOf(parameters.getHdfsCompressionType());
+		}
+
+		if (parameters.getHdfsCompressionLevel() >= 0)
+			conf.setInt(HDFSDeflateCodec.LEVEL_KEY, parameters.getHdfsCompressionLevel());
+
+		this.codec = (CompressionCodec)ReflectionUtils.newInstance(
+				getCodecClass(parameters.getHdfsCompressionCodec()), conf);
+		this.keyClass = getKeyClass(parameters.getKeyType());
+		this.bufferPool = new HDFSBufferPool(parameters.getBufferPoolMaxBytes(),
+				parameters.isBufferPoolDirect());
+
+		if (parameters.isHeaderDictionary())
+			this.headerTrainer = new HDFSHeaderDictionary.Trainer(
+					parameters.getHeaderDictionarySampleRecords(), parameters.getHeaderDictionaryMaxBytes());
+	}
+
+	/**
+	 * Resolves a codec name: "default" (zlib), "deflate" (zlib at a
+	 * configurable level), "lz4" (pure Java LZ4), "bzip2", "gzip" (needs
+	 * native Hadoop) or the class name of any CompressionCodec.
+	 */
+	public static Class<?> getCodecClass(String name) {
+		if (name == null || name.equalsIgnoreCase("default"))
+			return DefaultCodec.class;
+		if (name.equalsIgnoreCase("deflate"))
+			return HDFSDeflateCodec.class;
+		if (name.equalsIgnoreCase("lz4"))
+			return HDFSLz4Codec.class;
+		if (name.equalsIgnoreCase("bzip2"))
+			return BZip2Codec.class;
+		if (name.equalsIgnoreCase("gzip"))
+			return GzipCodec.class;
+
+		try {
+			Class<?> codecClass = Class.forName(name);
+			if (!CompressionCodec.class.isAssignableFrom(codecClass))
+				throw new IllegalArgumentException(name + " is not a CompressionCodec");
+			return codecClass;
+		} catch (ClassNotFoundException e) {
+			throw new IllegalArgumentException("Unknown compression codec " + name);
+		}
+	}
+
+	/**
+	 * Resolves a key type: "TEXT", "FINGERPRINT" or "SURT".
+	 */
+	public static Class<? extends WritableComparable<?>> getKeyClass(String type) {
+		if (type == null || type.equalsIgnoreCase("TEXT"))
+			return Text.class;
+		if (type.equalsIgnoreCase("FINGERPRINT"))
+			return HDFSFingerprintKey.class;
+		if (type.equalsIgnoreCase("SURT"))
+			return HDFSSurtKey.class;
+		throw new IllegalArgumentException("Unknown key type " + type);
+	}
+
+	public Configuration getConf() {
+		return conf;
+	}
+
+	public SequenceFile.CompressionType getCompressionType() {
+		return compressionType;
+	}
+
+	public CompressionCodec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * @return class of the keys of the files written
+	 */
+	public Class<? extends WritableComparable<?>> getKeyClass() {
+		return keyClass;
+	}
+
+	public HDFSWriterMetrics getMetrics() {
+		return metrics;
+	}
+
+	public HDFSBufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * @return the trained header dictionary, or null if there is none yet
+	 */
+	public HDFSHeaderDictionary getHeaderDictionary() {
+		return headerDictionary;
+	}
+
+	/**
+	 * @return true while header parts of records are wanted for training
+	 */
+	public boolean isTrainingHeaderDictionary() {
+		return headerTrainer != null && headerDictionary == null;
+	}
+
+	/**
+	 * Adds the header part of a record to the training sample and builds
+	 * the dictionary once the sample is complete.
+	 */
+	public void trainHeaderDictionary(byte [] buf, int off, int len) {
+		HDFSHeaderDictionary.Trainer trainer = headerTrainer;
+		if (trainer == null || headerDictionary != null || !trainer.add(buf, off, len))
+			return;
+
+		synchronized (this) {
+			if (headerTrainer == null)
+				return;
+
+			headerDictionary = headerTrainer.build();
+			if (headerDictionary != null)
+				LOG.info("Trained a header dictionary of " + headerDictionary.getBytes().length +
+						" bytes on " + headerTrainer.getRecords() + " records");
+			else
+				LOG.info("Header parts of the first " + headerTrainer.getRecords() +
+						" records have nothing in common; not using a header dictionary");
+			headerTrainer = null;
+		}
+	}
+
+	/**
+	 * Returns the digest table, loading it from dedupTablePath on the
+	 * first call.
+	 *
+	 * @return the table, or null if deduplication is disabled
+	 */
+	public synchronized HDFSDedupTable getDedupTable() throws IOException {
+		if (dedupTable == null && parameters.isDedup()) {
+			dedupTable = new HDFSDedupTable(parameters.getDedupTableBytes(),
+					(parameters.getDedupTablePath() == null) ? null : new File(parameters.getDedupTablePath()));
+		}
+		return dedupTable;
+	}
+
+	/**
+	 * Returns the file system files are written to, connecting and
+	 * creating the output directory on the first call.  In local staging
+	 * mode this is the local file system.
+	 */
+	public synchronized FileSystem getFileSystem() throws IOException {
+		if (fs == null) {
+			FileSystem newFs;
+			Path dir;
+
+			if (parameters.getLocalStagingPath() != null) {
+				// HDFS is only touched by the uploader
+				newFs = getUploader().getLocalFileSystem();
+				dir = getUploader().getStagingDir();
+			} else {
+				String path = parameters.getHdfsOutputPath();
+				if (path.endsWith("/"))
+					path = path.substring(0, path.length()-1);
+
+				newFs = FileSystem.get(conf);
+				dir = new Path(path);
+
+				// make sure the output directory exists
+				newFs.mkdirs(dir);
+			}
+
+			outputDir = dir;
+			fs = newFs;
+		}
+		return fs;
+	}
+
+	/**
+	 * @return directory files are written to
+	 */
+	public synchronized Path getOutputDir() throws IOException {
+		getFileSystem();
+		return outputDir;
+	}
+
+	/**
+	 * @return uploader of finished files, or null unless in local staging mode
+	 */
+	public synchronized HDFSUploader getUploader() throws IOException {
+		if (uploader == null && parameters.getLocalStagingPath() != null)
+			uploader = new HDFSUploader(parameters, conf);
+		return uploader;
+	}
+
+	/**
+	 * @return executor that creates and closes files for background rotation
+	 */
+	public synchronized ExecutorService getRotationExecutor() {
+		if (rotationExecutor == null) {
+			final AtomicInteger threadNo = new AtomicInteger();
+			rotationExecutor = Executors.newFixedThreadPool(parameters.getRotationThreads(),
+					new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "HDFSRotation-" + threadNo.getAndIncrement());
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		return rotationExecutor;
+	}
+
+	/**
+	 * Creates a SequenceFile with the configured replication and block size.
+	 *
+	 * @param path file to create
+	 * @param valueClass value class of the file
+	 * @param compType compression type of the file
+	 * @return the writer
+	 * @throws IOException
+	 */
+	public SequenceFile.Writer createWriter(Path path, Class<?> valueClass,
+			SequenceFile.CompressionType compType) throws IOException {
+		return createWriter(path, valueClass, compType, null);
+	}
+
+	/**
+	 * @param headerDictionary header dictionary stored in the metadata of
+	 *  the file, or null
+	 * @see #createWriter(Path, Class, SequenceFile.CompressionType)
+	 */
+	public SequenceFile.Writer createWriter(Path path, Class<?> valueClass,
+			SequenceFile.CompressionType compType, HDFSHeaderDictionary headerDictionary)
+			throws IOException {
+		FileSystem fs = getFileSystem();
+
+		SequenceFile.Metadata metadata = new SequenceFile.Metadata();
+		if (headerDictionary != null)
+			headerDictionary.addTo(metadata);
+
+		long blockSize = parameters.getHdfsBlockSize();
+		if (blockSize <= 0)
+			blockSize = fs.getDefaultBlockSize();
+
+		return SequenceFile.createWriter(fs, conf, path, keyClass, valueClass,
+				conf.getInt("io.file.buffer.size", 4096), (short)parameters.getHdfsReplication(),
+				blockSize, compType, codec, null, metadata);
+	}
+
+	/**
+	 * Creates a plain file with the configured replication and block size,
+	 * for output that is not a SequenceFile.
+	 *
+	 * @param path file to create
+	 * @return stream to the new file
+	 * @throws IOException
+	 */
+	public FSDataOutputStream createStream(Path path) throws IOException {
+		FileSystem fs = getFileSystem();
+
+		long blockSize = parameters.getHdfsBlockSize();
+		if (blockSize <= 0)
+			blockSize = fs.getDefaultBlockSize();
+
+		return fs.create(path, true, conf.getInt("io.file.buffer.size", 4096),
+				(short)parameters.getHdfsReplication(), blockSize);
+	}
+
+	/**
+	 * Creates the index file of a MapFile the way MapFile.Writer does:
+	 * keys of the key class, LongWritable positions, BLOCK compressed.
+	 *
+	 * @param path file to create
+	 * @return the writer
+	 * @throws IOException
+	 */
+	public SequenceFile.Writer createIndexWriter(Path path) throws IOException {
+		return SequenceFile.createWriter(getFileSystem(), conf, path, keyClass,
+				LongWritable.class, SequenceFile.CompressionType.BLOCK);
+	}
+
+	/**
+	 * Waits for files being closed in the background and then for pending
+	 * uploads, if in local staging mode, and stops the uploader.  Saves the
+	 * digest table once the files it refers to are closed.
+	 */
+	public void close() {
+		HDFSUploader u;
+		ExecutorService rotation;
+		HDFSDedupTable dedup;
+		synchronized (this) {
+			u = uploader;
+			rotation = rotationExecutor;
+			rotationExecutor = null;
+			dedup = dedupTable;
+		}
+
+		if (rotation != null) {
+			rotation.shutdown();
+			try {
+				if (!rotation.awaitTermination(parameters.getUploadCloseWaitMs(), TimeUnit.MILLISECONDS))
+					LOG.warn("Files still being closed after " + parameters.getUploadCloseWaitMs() + "ms");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		if (dedup != null) {
+			try {
+				dedup.save();
+			} catch (IOException e) {
+				LOG.error("Failed to save the dedup table", e);
+			}
+		}
+
+		if (u != null)
+			u.close();
+	}
+}
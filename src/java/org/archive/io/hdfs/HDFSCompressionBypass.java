@@ -0,0 +1,209 @@
+/* HDFSCompressionBypass
+ *
+ * $Id$
+ *
+ * Copyright (C) 2010 Zvents
+ *
+ * This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ * Heritrix is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * any later version.
+ *
+ * Heritrix is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with Heritrix; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.archive.io.hdfs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.archive.io.ReplayInputStream;
+import org.archive.io.hdfs.util.ByteScan;
+
+
+/**
+ * Picks out records that compression would not shrink, so that
+ * {@link HDFSWriter} can write them uncompressed.
+ *
+ * A response is considered incompressible if it has a Content-Encoding
+ * other than identity, if its Content-Type starts with one of the
+ * configured prefixes, or, for types other than text, if the order-0
+ * entropy of the start of its body is above the configured number of
+ * bits per byte.  Only the first bytes of the response are looked at.
+ *
+ * Not thread safe; each writer has its own.
+ */
+public class HDFSCompressionBypass {
+
+	/**
+	 * Most response headers fit in this many bytes; the body sample
+	 * follows them
+	 */
+	private static final int HEADER_BYTES = 8192;
+
+	private static final char [] contentTypeChars     = { 'c','o','n','t','e','n','t','-','t','y','p','e' };
+	private static final char [] contentEncodingChars = { 'c','o','n','t','e','n','t','-','e','n','c','o','d','i','n','g' };
+	private static final char [] identityChars        = { 'i','d','e','n','t','i','t','y' };
+	private static final char [] textChars            = { 't','e','x','t','/' };
+
+	private final char [][] types;
+	private final double maxEntropy;
+	private final int sampleBytes;
+
+	private final byte [] peek;
+	private final int [] counts = new int [ 256 ];
+	private final ByteScan.State bss = new ByteScan.State();
+	private final ByteScan.State tmpBss = new ByteScan.State();
+
+	public HDFSCompressionBypass(HDFSParameters parameters) {
+		this(parameters.getCompressionBypassTypes(), parameters.getCompressionBypassEntropy(),
+				parameters.getCompressionBypassSampleBytes());
+	}
+
+	/**
+	 * @param types comma separated Content-Type prefixes
+	 * @param maxEntropy bits per byte above which a body sample is taken
+	 *  to be incompressible; 0 disables sampling
+	 * @param sampleBytes size of the body sample
+	 */
+	public HDFSCompressionBypass(String types, double maxEntropy, int sampleBytes) {
+		List<char []> prefixes = new ArrayList<char []>();
+		if (types != null) {
+			for (String type : types.split(",")) {
+				type = type.trim().toLowerCase();
+				if (type.length() > 0)
+					prefixes.add(type.toCharArray());
+			}
+		}
+		this.types = prefixes.toArray(new char [ prefixes.size() ][]);
+		this.maxEntropy = maxEntropy;
+		this.sampleBytes = (maxEntropy > 0) ? Math.max(sampleBytes, 0) : 0;
+		this.peek = new byte [ HEADER_BYTES + this.sampleBytes ];
+	}
+
+	/**
+	 * Looks at the start of <code>response</code> and puts it back where
+	 * it was.
+	 *
+	 * @param http true if the response starts with HTTP headers
+	 * @return true if the record should not be compressed
+	 */
+	public boolean isIncompressible(boolean http, ReplayInputStream response) throws IOException {
+		long start = response.position();
+		int length = 0;
+
+		try {
+			int limit = (int)Math.min(peek.length, response.remaining());
+			for (int n; length < limit && (n = response.read(peek, length, limit - length)) > 0; )
+				length += n;
+		} finally {
+			// ReplayInputStream cannot seek to the end of an empty buffer
+			if (length > 0)
+				response.position(start);
+		}
+
+		if (!http)
+			return isHighEntropy(0, Math.min(length, sampleBytes));
+
+		bss.init(peek, 0, length);
+		bss.mark();
+
+		boolean text = false;
+		while (!bss.eob()) {
+			if (bss.buf[bss.offset] == '\n') {
+				tmpBss.init(bss.buf, bss.mark, bss.offset);
+				if (ByteScan.StartsWith(tmpBss, contentEncodingChars)) {
+					if (!isIdentity(tmpBss))
+						return true;
+				} else if (ByteScan.StartsWith(tmpBss, contentTypeChars)) {
+					tmpBss.offset += contentTypeChars.length;
+					if (skipToValue(tmpBss)) {
+						if (ByteScan.StartsWith(tmpBss, textChars))
+							text = true;
+						for (char [] type : types) {
+							if (ByteScan.StartsWith(tmpBss, type))
+								return true;
+						}
+					}
+				}
+
+				bss.offset++;
+				bss.mark();
+
+				// blank line ends the headers
+				if (!bss.eob() && bss.buf[bss.offset] == '\n') {
+					bss.offset++;
+					break;
+				}
+				if (bss.offset < bss.end - 1 && bss.buf[bss.offset] == '\r' &&
+						bss.buf[bss.offset+1] == '\n') {
+					bss.offset += 2;
+					break;
+				}
+			} else
+				bss.offset++;
+		}
+
+		if (text || bss.eob())
+			return false;
+
+		return isHighEntropy(bss.offset, Math.min(bss.end, bss.offset + sampleBytes));
+	}
+
+	private boolean isIdentity(ByteScan.State header) {
+		header.offset += contentEncodingChars.length;
+		return !skipToValue(header) || ByteScan.StartsWith(header, identityChars);
+	}
+
+	/**
+	 * Moves past the colon and white space of a header line
+	 *
+	 * @return false if the header has no value
+	 */
+	private static boolean skipToValue(ByteScan.State header) {
+		if (!ByteScan.SkipWhitespace(header) || header.buf[header.offset] != ':')
+			return false;
+		header.offset++;
+		return ByteScan.SkipWhitespace(header);
+	}
+
+	/**
+	 * @return true if bytes <code>from</code> to <code>to</code> of the
+	 *  peeked data have more than maxEntropy bits of entropy per byte
+	 */
+	private boolean isHighEntropy(int from, int to) {
+		int n = to - from;
+		// too few bytes to tell
+		if (maxEntropy <= 0 || n < 256)
+			return false;
+
+		Arrays.fill(counts, 0);
+		for (int i = from; i < to; i++)
+			counts[peek[i] & 0xFF]++;
+
+		return entropy(counts, n) > maxEntropy;
+	}
+
+	/**
+	 * @return order-0 entropy in bits per byte of a histogram of
+	 *  <code>n</code> bytes
+	 */
+	static double entropy(int [] counts, int n) {
+		double sum = 0;
+		for (int count : counts) {
+			if (count > 0)
+				sum += count * Math.log(count);
+		}
+		return (Math.log(n) - sum / n) / Math.log(2);
+	}
+}
@@ -0,0 +1,419 @@
+/* HDFSDedupTable
+ *
+ * $Id$
+ *
+ * Copyright (C) 2010 Zvents
+ *
+ * This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ * Heritrix is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * any later version.
+ *
+ * Heritrix is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with Heritrix; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.archive.io.hdfs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.log4j.Logger;
+
+
+/**
+ * Payload digests of the records already written, with the file, offset
+ * and length of each, for write time deduplication.
+ *
+ * The table is an open addressing hash table in a direct buffer of fixed
+ * size, so it takes no heap and never grows.  Each slot holds the first
+ * {@link #KEY_BYTES} bytes of a digest, the location of the record and the
+ * sequence number of the insert.  Digests are looked for among the
+ * {@link #MAX_PROBE} slots following their home slot; when those are all
+ * taken, the oldest entry among them is replaced.  Only the names of the
+ * files are kept on the heap.
+ *
+ * Locations follow the record index ({@link HDFSRecordIndex}): the offset
+ * of the record and its length, or for BLOCK compressed files the offset
+ * of its block and the number of the record within the block.
+ *
+ * The table can be saved to and loaded from a local file so that it
+ * survives restarts.  Thread safe.
+ */
+public class HDFSDedupTable {
+
+	private final Logger LOG = Logger.getLogger(this.getClass().getName());
+
+	/**
+	 * Leading digest bytes kept; 96 bits make false matches negligible
+	 */
+	public static final int KEY_BYTES = 12;
+
+	/**
+	 * Slots searched for a digest
+	 */
+	private static final int MAX_PROBE = 16;
+
+	// slot layout: key (8 + 4), offset, length, file, sequence
+	private static final int SLOT_SIZE = 32;
+	private static final int KEY_HIGH = 0;
+	private static final int KEY_LOW = 8;
+	private static final int OFFSET = 12;
+	private static final int LENGTH = 20;
+	private static final int FILE = 24;
+	private static final int SEQUENCE = 28;
+
+	private static final int MIN_SLOTS = 1024;
+
+	private static final int MAGIC = 0x48444454;	// HDDT
+	private static final int VERSION = 1;
+
+	private final ByteBuffer slots;
+	private final int mask;
+	private final File file;
+
+	private final List<String> fileNames = new ArrayList<String>();
+	private final Map<String, Integer> fileIds = new HashMap<String, Integer>();
+
+	/**
+	 * Sequence number of the last insert; 0 marks an empty slot
+	 */
+	private int sequence = 0;
+	private int size = 0;
+
+	/**
+	 * @param maxBytes memory the table may take; rounded down to a power
+	 *  of two number of slots
+	 * @param file local file to load the table from and save it to, or
+	 *  null to keep it in memory only
+	 */
+	public HDFSDedupTable(long maxBytes, File file) throws IOException {
+		long capacity = Math.max(maxBytes / SLOT_SIZE, MIN_SLOTS);
+		int count = Integer.highestOneBit((int)Math.min(capacity, Integer.MAX_VALUE / SLOT_SIZE));
+
+		this.slots = ByteBuffer.allocateDirect(count * SLOT_SIZE);
+		this.mask = count - 1;
+		this.file = file;
+
+		if (file != null && file.exists())
+			load();
+	}
+
+	/**
+	 * Where a record was written
+	 */
+	public static class Location {
+		private final String file;
+		private final long offset;
+		private final int length;
+
+		public Location(String file, long offset, int length) {
+			this.file = file;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		/**
+		 * @return name of the file, or MapFile directory, in the output
+		 *  directory
+		 */
+		public String getFile() {
+			return file;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		/**
+		 * @return length of the record, or its number within the block for
+		 *  BLOCK compressed files
+		 */
+		public int getLength() {
+			return length;
+		}
+
+		/**
+		 * @return file, offset and length separated by spaces, as written
+		 *  in revisit records
+		 */
+		@Override
+		public String toString() {
+			return file + " " + offset + " " + length;
+		}
+	}
+
+	/**
+	 * @return location of the record with <code>digest</code>, or null if
+	 *  it is not in the table
+	 */
+	public synchronized Location get(byte [] digest) {
+		checkDigest(digest);
+		long high = keyHigh(digest);
+		int low = keyLow(digest);
+
+		int home = home(high);
+		for (int i = 0; i < MAX_PROBE; i++) {
+			int slot = ((home + i) & mask) * SLOT_SIZE;
+			if (slots.getInt(slot + SEQUENCE) == 0)
+				return null;
+			if (slots.getLong(slot + KEY_HIGH) == high && slots.getInt(slot + KEY_LOW) == low)
+				return new Location(fileNames.get(slots.getInt(slot + FILE)),
+						slots.getLong(slot + OFFSET), slots.getInt(slot + LENGTH));
+		}
+		return null;
+	}
+
+	/**
+	 * Adds the record with <code>digest</code>, replacing the location of
+	 * an earlier record with the same digest.
+	 *
+	 * @param fileName name of the file in the output directory
+	 * @param offset offset as in the record index
+	 * @param length length as in the record index
+	 */
+	public synchronized void put(byte [] digest, String fileName, long offset, int length) {
+		checkDigest(digest);
+		put(keyHigh(digest), keyLow(digest), getFileId(fileName), offset, length);
+	}
+
+	private void put(long high, int low, int fileId, long offset, int length) {
+		int home = home(high);
+		int target = -1;
+		int oldest = 0;
+
+		for (int i = 0; i < MAX_PROBE; i++) {
+			int slot = ((home + i) & mask) * SLOT_SIZE;
+			int seq = slots.getInt(slot + SEQUENCE);
+			if (seq == 0) {
+				target = slot;
+				size++;
+				break;
+			}
+			if (slots.getLong(slot + KEY_HIGH) == high && slots.getInt(slot + KEY_LOW) == low) {
+				target = slot;
+				break;
+			}
+			// sequence numbers wrap; compare ages
+			int age = sequence - seq;
+			if (target == -1 || age > oldest) {
+				target = slot;
+				oldest = age;
+			}
+		}
+
+		if (++sequence == 0)
+			sequence = 1;
+
+		slots.putLong(target + KEY_HIGH, high);
+		slots.putInt(target + KEY_LOW, low);
+		slots.putLong(target + OFFSET, offset);
+		slots.putInt(target + LENGTH, length);
+		slots.putInt(target + FILE, fileId);
+		slots.putInt(target + SEQUENCE, sequence);
+	}
+
+	/**
+	 * @return recorder of the records of the file <code>fileName</code>
+	 */
+	public FileRecorder forFile(String fileName, SequenceFile.CompressionType compType) {
+		return new FileRecorder(fileName, compType == SequenceFile.CompressionType.BLOCK);
+	}
+
+	/**
+	 * Adds the records of one file to the table as they are appended.
+	 * Every record of the file must be passed, with or without a digest,
+	 * so that records of BLOCK compressed files get their numbers right.
+	 * Not thread safe.
+	 */
+	public class FileRecorder {
+		private final String fileName;
+		private final boolean block;
+		private long lastOffset = -1;
+		private int blockRecord = 0;
+
+		private FileRecorder(String fileName, boolean block) {
+			this.fileName = fileName;
+			this.block = block;
+		}
+
+		/**
+		 * @param digest payload digest of the record, or null
+		 * @param offset length of the file before the record was appended
+		 * @param length bytes of the record: lengths, key and stored value
+		 */
+		public void add(byte [] digest, long offset, int length) {
+			if (block) {
+				blockRecord = (offset == lastOffset) ? blockRecord + 1 : 0;
+				length = blockRecord;
+			}
+			lastOffset = offset;
+
+			if (digest != null)
+				put(digest, fileName, offset, length);
+		}
+	}
+
+	/**
+	 * @return number of digests in the table
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return number of slots
+	 */
+	public int capacity() {
+		return mask + 1;
+	}
+
+	private int getFileId(String fileName) {
+		Integer id = fileIds.get(fileName);
+		if (id == null) {
+			id = Integer.valueOf(fileNames.size());
+			fileNames.add(fileName);
+			fileIds.put(fileName, id);
+		}
+		return id.intValue();
+	}
+
+	private int home(long high) {
+		// digests are uniformly distributed already
+		return (int)(high ^ (high >>> 32)) & mask;
+	}
+
+	private static long keyHigh(byte [] digest) {
+		long high = 0;
+		for (int i = 0; i < 8; i++)
+			high = (high << 8) | (digest[i] & 0xFF);
+		return high;
+	}
+
+	private static int keyLow(byte [] digest) {
+		return ((digest[8] & 0xFF) << 24) | ((digest[9] & 0xFF) << 16) |
+			((digest[10] & 0xFF) << 8) | (digest[11] & 0xFF);
+	}
+
+	private static void checkDigest(byte [] digest) {
+		if (digest.length < KEY_BYTES)
+			throw new IllegalArgumentException("Digest of " + digest.length + " bytes");
+	}
+
+	/**
+	 * Writes the table to its file, through a temporary file so that a
+	 * crash leaves the previous copy in place.  Entries are written oldest
+	 * first, and only the names of files still referred to.
+	 */
+	public synchronized void save() throws IOException {
+		if (file == null)
+			return;
+
+		int count = mask + 1;
+		int [] order = new int [ size ];
+		int n = 0;
+		for (int i = 0; i < count; i++) {
+			if (slots.getInt(i * SLOT_SIZE + SEQUENCE) != 0)
+				order[n++] = i * SLOT_SIZE;
+		}
+
+		// oldest first, by age so that wrapped sequence numbers sort right
+		long [] byAge = new long [ n ];
+		for (int i = 0; i < n; i++) {
+			long age = (sequence - slots.getInt(order[i] + SEQUENCE)) & 0xFFFFFFFFL;
+			byAge[i] = (age << 32) | (order[i] / SLOT_SIZE);
+		}
+		Arrays.sort(byAge);
+
+		int [] newIds = new int [ fileNames.size() ];
+		List<String> usedNames = new ArrayList<String>();
+		for (int i = 0; i < n; i++) {
+			int fileId = slots.getInt(order[i] + FILE);
+			if (newIds[fileId] == 0) {
+				usedNames.add(fileNames.get(fileId));
+				newIds[fileId] = usedNames.size();
+			}
+		}
+
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmp), 65536));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(usedNames.size());
+			for (String name : usedNames)
+				out.writeUTF(name);
+			out.writeInt(n);
+			for (int i = n - 1; i >= 0; i--) {
+				int slot = (int)byAge[i] * SLOT_SIZE;
+				out.writeLong(slots.getLong(slot + KEY_HIGH));
+				out.writeInt(slots.getInt(slot + KEY_LOW));
+				out.writeLong(slots.getLong(slot + OFFSET));
+				out.writeInt(slots.getInt(slot + LENGTH));
+				out.writeInt(newIds[slots.getInt(slot + FILE)] - 1);
+			}
+		} finally {
+			out.close();
+		}
+
+		if (file.exists() && !file.delete())
+			throw new IOException("Failed to replace " + file);
+		if (!tmp.renameTo(file))
+			throw new IOException("Failed to rename " + tmp + " to " + file);
+
+		LOG.info("Saved " + n + " digests to " + file);
+	}
+
+	private void load() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file), 65536));
+		try {
+			if (in.readInt() != MAGIC)
+				throw new IOException("Not a dedup table: " + file);
+			int version = in.readInt();
+			if (version != VERSION)
+				throw new IOException("Unknown dedup table version " + version);
+
+			int files = in.readInt();
+			for (int i = 0; i < files; i++)
+				getFileId(in.readUTF());
+
+			int n = in.readInt();
+			for (int i = 0; i < n; i++) {
+				long high = in.readLong();
+				int low = in.readInt();
+				long offset = in.readLong();
+				int length = in.readInt();
+				int fileId = in.readInt();
+				if (fileId < 0 || fileId >= files)
+					throw new IOException("Corrupt dedup table: " + file);
+				put(high, low, fileId, offset, length);
+			}
+
+			LOG.info("Loaded " + size + " of " + n + " digests from " + file);
+		} finally {
+			in.close();
+		}
+	}
+}
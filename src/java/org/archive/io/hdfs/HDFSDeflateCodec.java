@@ -0,0 +1,62 @@
+/* HDFSDeflateCodec
+ *
+ * $Id$
+ *
+ * Copyright (C) 2010 Zvents
+ *
+ * This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ * Heritrix is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * any later version.
+ *
+ * Heritrix is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with Heritrix; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.archive.io.hdfs;
+
+import java.util.zip.Deflater;
+
+import org.apache.hadoop.io.compress.Compressor;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.io.compress.zlib.BuiltInZlibDeflater;
+
+
+/**
+ * {@link DefaultCodec} with a configurable zlib compression level, set
+ * with <code>io.compression.codec.deflate.level</code> (1 by default, the
+ * fastest).  The output is plain zlib, so it decompresses like
+ * DefaultCodec.
+ *
+ * Compressors are pooled by type, so all instances in a JVM should use
+ * the same level.
+ */
+public class HDFSDeflateCodec extends DefaultCodec {
+
+	public static final String LEVEL_KEY = "io.compression.codec.deflate.level";
+	public static final int DEFAULT_LEVEL = Deflater.BEST_SPEED;
+
+	@Override
+	public Class<? extends Compressor> getCompressorType() {
+		return LevelDeflater.class;
+	}
+
+	@Override
+	public Compressor createCompressor() {
+		int level = (getConf() == null) ? DEFAULT_LEVEL : getConf().getInt(LEVEL_KEY, DEFAULT_LEVEL);
+		return new LevelDeflater(level);
+	}
+
+	public static class LevelDeflater extends BuiltInZlibDeflater {
+		public LevelDeflater(int level) {
+			super(level);
+		}
+	}
+}
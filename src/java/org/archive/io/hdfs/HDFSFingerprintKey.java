@@ -0,0 +1,138 @@
+/* HDFSFingerprintKey
+ *
+ * $Id$
+ *
+ * Copyright (C) 2010 Zvents
+ *
+ * This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ * Heritrix is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * any later version.
+ *
+ * Heritrix is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with Heritrix; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.archive.io.hdfs;
+
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+
+
+/**
+ * Fixed width record key: the 64 bit fingerprint of the URL computed by
+ * {@link org.archive.io.hdfs.util.URIUtils#ComputeHash}, as in the record
+ * index.  URIs without an authority, which have no such fingerprint,
+ * take the first 8 bytes of the MD5 of the whole URI in UTF-8 instead.
+ *
+ * Keys are 8 bytes, big endian, and order as unsigned numbers, which is
+ * also the order of their bytes.  The raw comparator registered for the
+ * class compares serialized keys in place.
+ */
+public class HDFSFingerprintKey implements WritableComparable<HDFSFingerprintKey> {
+
+	public static final int LENGTH = 8;
+
+	private long fingerprint;
+
+	public HDFSFingerprintKey() {
+	}
+
+	public HDFSFingerprintKey(long fingerprint) {
+		this.fingerprint = fingerprint;
+	}
+
+	/**
+	 * @return key of <code>uri</code>
+	 */
+	public static long fingerprint(String uri, MessageDigest md) {
+		long fingerprint = HDFSRecordIndex.fingerprint(uri, md);
+		if (fingerprint != 0)
+			return fingerprint;
+
+		md.reset();
+		byte [] digest;
+		try {
+			digest = md.digest(uri.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		for (int i = 0; i < LENGTH; i++)
+			fingerprint = (fingerprint << 8) | (digest[i] & 0xFF);
+		return fingerprint;
+	}
+
+	public long get() {
+		return fingerprint;
+	}
+
+	public void set(long fingerprint) {
+		this.fingerprint = fingerprint;
+	}
+
+	public void write(DataOutput out) throws IOException {
+		out.writeLong(fingerprint);
+	}
+
+	public void readFields(DataInput in) throws IOException {
+		fingerprint = in.readLong();
+	}
+
+	public int compareTo(HDFSFingerprintKey other) {
+		return compare(fingerprint, other.fingerprint);
+	}
+
+	private static int compare(long a, long b) {
+		a ^= Long.MIN_VALUE;
+		b ^= Long.MIN_VALUE;
+		return (a < b) ? -1 : ((a == b) ? 0 : 1);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return (o instanceof HDFSFingerprintKey) &&
+			((HDFSFingerprintKey)o).fingerprint == fingerprint;
+	}
+
+	@Override
+	public int hashCode() {
+		return (int)(fingerprint ^ (fingerprint >>> 32));
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%016x", fingerprint);
+	}
+
+	/**
+	 * Compares serialized keys without deserializing them
+	 */
+	public static class Comparator extends WritableComparator {
+		public Comparator() {
+			super(HDFSFingerprintKey.class);
+		}
+
+		@Override
+		public int compare(byte [] b1, int s1, int l1, byte [] b2, int s2, int l2) {
+			return HDFSFingerprintKey.compare(readLong(b1, s1), readLong(b2, s2));
+		}
+	}
+
+	static {
+		WritableComparator.define(HDFSFingerprintKey.class, new Comparator());
+	}
+}
@@ -0,0 +1,297 @@
+/* HDFSGroupCommit
+ *
+ * $Id$
+ *
+ * Copyright (C) 2010 Zvents
+ *
+ * This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ * Heritrix is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * any later version.
+ *
+ * Heritrix is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with Heritrix; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.archive.io.hdfs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Group commit of records from many toe threads to one writer.
+ *
+ * The first thread to write a record opens a batch and leads it: it waits
+ * until the batch holds <code>batchBytes</code> or <code>maxWaitMs</code>
+ * has passed, borrows a single writer and appends every record of the
+ * batch in turn.  The other threads add their records to the batch and
+ * wait until theirs has been appended or has failed, so
+ * {@link #write(Record)} returns only once the record is in the file, as
+ * a direct write does.  Since the caller of a waiting record does not
+ * touch it, the leader streams it straight from the caller's recorder and
+ * nothing is copied.
+ *
+ * With a partitioned {@link HDFSWriterPool} there is a batch per
+ * partition.
+ */
+public class HDFSGroupCommit {
+
+	private final Logger LOG = Logger.getLogger(this.getClass().getName());
+
+	/**
+	 * A record waiting in a batch, written by the leader of the batch
+	 */
+	public static abstract class Record {
+		private final String uri;
+		private final long size;
+
+		// set by the leader, read by the caller once done
+		private boolean done = false;
+		private boolean appended = false;
+		private long bytesWritten = 0;
+		private IOException error = null;
+
+		/**
+		 * @param uri key of the record, which picks its partition
+		 * @param size approximate size of the record, counted towards
+		 *  the size of the batch
+		 */
+		public Record(String uri, long size) {
+			this.uri = uri;
+			this.size = size;
+		}
+
+		public String getUri() {
+			return uri;
+		}
+
+		/**
+		 * Appends the record to <code>writer</code>.  Called from the
+		 * thread leading the batch.
+		 */
+		protected abstract void writeTo(HDFSWriter writer) throws IOException;
+	}
+
+	private static class Batch {
+		final List<Record> records = new ArrayList<Record>();
+		final long deadline;
+		long bytes = 0;
+		boolean sealed = false;
+
+		Batch(long deadline) {
+			this.deadline = deadline;
+		}
+	}
+
+	private final HDFSWriterPool pool;
+	private final long batchBytes;
+	private final long maxWaitMs;
+
+	/**
+	 * Batch taking records, by partition
+	 */
+	private final Map<Integer, Batch> open = new HashMap<Integer, Batch>();
+	/**
+	 * Batches opened and not yet appended
+	 */
+	private int batches = 0;
+	private boolean closed = false;
+
+	/**
+	 * @param pool pool to borrow writers from
+	 * @param batchBytes size at which a batch is appended without waiting
+	 *  any longer
+	 * @param maxWaitMs longest a batch waits for more records
+	 */
+	public HDFSGroupCommit(HDFSWriterPool pool, long batchBytes, long maxWaitMs) {
+		this.pool = pool;
+		this.batchBytes = batchBytes;
+		this.maxWaitMs = maxWaitMs;
+	}
+
+	/**
+	 * Adds a record to a batch and waits until it has been appended.
+	 *
+	 * @param record record to write
+	 * @return bytes the record added to the output, including the header
+	 *  of a file opened for it
+	 * @throws IOException if the record could not be written, or group
+	 *  commit has been closed
+	 */
+	public long write(Record record) throws IOException {
+		int partition = Math.max(0, pool.getPartition(record.getUri()));
+		Batch batch;
+		boolean interrupted = false;
+
+		synchronized (this) {
+			if (closed)
+				throw new IOException("Group commit is closed");
+
+			batch = open.get(partition);
+			boolean leader = (batch == null);
+			if (leader) {
+				batch = new Batch(System.currentTimeMillis() + maxWaitMs);
+				open.put(partition, batch);
+				batches++;
+			}
+
+			batch.records.add(record);
+			batch.bytes += record.size;
+			if (batch.bytes >= batchBytes)
+				seal(partition, batch);
+
+			if (leader) {
+				while (!batch.sealed) {
+					long wait = batch.deadline - System.currentTimeMillis();
+					if (wait <= 0)
+						break;
+					try {
+						wait(wait);
+					} catch (InterruptedException e) {
+						interrupted = true;
+						break;
+					}
+				}
+				seal(partition, batch);
+			} else {
+				// The leader may be reading the record; wait for it whatever
+				while (!record.done) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+				batch = null;
+			}
+		}
+
+		if (batch != null)
+			append(batch);
+
+		if (interrupted)
+			Thread.currentThread().interrupt();
+
+		if (record.error != null)
+			throw record.error;
+		return record.bytesWritten;
+	}
+
+	/**
+	 * Stops taking records and waits for the batches being appended
+	 */
+	public synchronized void close() {
+		closed = true;
+		for (Batch batch : open.values()) {
+			batch.sealed = true;
+			notifyAll();
+		}
+		open.clear();
+
+		boolean interrupted = false;
+		while (batches > 0) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	private void seal(int partition, Batch batch) {
+		if (open.get(partition) == batch)
+			open.remove(partition);
+		if (!batch.sealed) {
+			batch.sealed = true;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Appends the records of a batch with one writer.  A record that fails
+	 * invalidates the writer; the rest go to another.
+	 */
+	private void append(Batch batch) {
+		HDFSWriter writer = null;
+		try {
+			for (Record record : batch.records) {
+				try {
+					if (writer == null)
+						writer = (HDFSWriter)pool.borrowFile(record.getUri());
+
+					long position = writer.getPosition();
+					long bytesWritten = 0;
+
+					writer.checkSize();
+
+					if (writer.getPosition() != position) {
+						// A new file was opened; count its header
+						position = writer.getPosition();
+						bytesWritten = position;
+					}
+
+					record.writeTo(writer);
+					record.bytesWritten = bytesWritten + writer.getPosition() - position;
+					record.appended = true;
+				} catch (IOException e) {
+					record.error = e;
+					writer = invalidate(writer);
+				} catch (RuntimeException e) {
+					IOException e2 = new IOException("Failed to write " + record.getUri());
+					e2.initCause(e);
+					record.error = e2;
+					writer = invalidate(writer);
+				}
+			}
+		} finally {
+			if (writer != null) {
+				try {
+					pool.returnFile(writer);
+				} catch (IOException e) {
+					LOG.error(e.getMessage(), e);
+				}
+			}
+
+			synchronized (this) {
+				for (Record record : batch.records) {
+					if (!record.appended && record.error == null)
+						record.error = new IOException("Group commit of " + record.getUri() +
+								" did not complete");
+					record.done = true;
+				}
+				batches--;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * @return null
+	 */
+	private HDFSWriter invalidate(HDFSWriter writer) {
+		if (writer != null) {
+			try {
+				// Invalidate this file (It gets a '.invalid' suffix).
+				pool.invalidateFile(writer);
+			} catch (IOException e) {
+				LOG.error(e.getMessage(), e);
+			}
+		}
+		return null;
+	}
+}
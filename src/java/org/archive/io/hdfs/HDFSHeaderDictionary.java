@@ -0,0 +1,356 @@
+/* HDFSHeaderDictionary
+ *
+ * $Id$
+ *
+ * Copyright (C) 2010 Zvents
+ *
+ * This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ * Heritrix is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * any later version.
+ *
+ * Heritrix is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with Heritrix; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.archive.io.hdfs;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+
+
+/**
+ * Preset deflate dictionary for the header part of records: the header
+ * line, the fields, the request and the response headers.  These repeat
+ * from record to record, which compression of single records cannot take
+ * advantage of; deflating them against a dictionary of the common lines
+ * can.
+ *
+ * The dictionary is trained once per pool on the first records written
+ * ({@link Trainer}) and stored in the metadata of every file created
+ * afterwards, under {@link #METADATA_KEY}.  Records of such files may be
+ * encoded; {@link HDFSWriterDocument} decodes them once given the
+ * dictionary of the file:
+ *
+ * <pre>
+ * doc.setHeaderDictionary(HDFSHeaderDictionary.fromMetadata(reader.getMetadata()));
+ * </pre>
+ *
+ * An encoded record is serialized as {@link #ENCODED}, the dictionary
+ * id, the record length, the length of its header part, the length of the
+ * deflated header part, the deflated header part (raw deflate) and the
+ * rest of the record as is.
+ */
+public class HDFSHeaderDictionary {
+
+	public static final String METADATA_KEY = "hdfswriter.header.dictionary";
+
+	/**
+	 * Written in place of the record length of encoded records
+	 */
+	public static final int ENCODED = -2;
+
+	/**
+	 * Bytes ahead of the deflated header part of an encoded record
+	 */
+	public static final int ENCODED_OVERHEAD = 5 * 4;
+
+	/**
+	 * Deflate cannot refer further back than this
+	 */
+	public static final int MAX_SIZE = 32768;
+
+	/**
+	 * Metadata values are Text; each byte is stored as one character
+	 */
+	private static final String METADATA_CHARSET = "ISO-8859-1";
+
+	private final byte [] bytes;
+	private final int id;
+
+	public HDFSHeaderDictionary(byte [] bytes) {
+		if (bytes.length == 0 || bytes.length > MAX_SIZE)
+			throw new IllegalArgumentException("Dictionary of " + bytes.length + " bytes");
+
+		this.bytes = bytes;
+
+		Adler32 adler = new Adler32();
+		adler.update(bytes);
+		this.id = (int)adler.getValue();
+	}
+
+	public byte [] getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return Adler-32 of the dictionary, which encoded records refer to
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Adds this dictionary to the metadata of a new file
+	 */
+	public void addTo(SequenceFile.Metadata metadata) {
+		try {
+			metadata.set(new Text(METADATA_KEY), new Text(new String(bytes, METADATA_CHARSET)));
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @return dictionary stored in <code>metadata</code>, or null if the
+	 *  file has none
+	 */
+	public static HDFSHeaderDictionary fromMetadata(SequenceFile.Metadata metadata) {
+		Text value = metadata.get(new Text(METADATA_KEY));
+		if (value == null)
+			return null;
+
+		try {
+			return new HDFSHeaderDictionary(value.toString().getBytes(METADATA_CHARSET));
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Inflates the header part of an encoded record.
+	 *
+	 * @param inflater raw (nowrap) inflater, reset here
+	 * @exception IOException if the data does not inflate to exactly
+	 *  <code>dstLength</code> bytes
+	 */
+	public void inflate(byte [] src, int srcOff, int srcLength, byte [] dst, int dstOff,
+			int dstLength, Inflater inflater) throws IOException {
+		inflater.reset();
+		inflater.setDictionary(bytes);
+		inflater.setInput(src, srcOff, srcLength);
+
+		try {
+			int n = 0;
+			while (n < dstLength) {
+				int len = inflater.inflate(dst, dstOff + n, dstLength - n);
+				if (len == 0 && (inflater.finished() || inflater.needsInput()))
+					break;
+				n += len;
+			}
+			if (n != dstLength || !inflater.finished())
+				throw new IOException("Header part inflated to " + n + " bytes, expected " + dstLength);
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt header part: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Deflates header parts against a dictionary.  Not thread safe; each
+	 * writer has its own.
+	 */
+	public static class Encoder {
+		private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		private byte [] buf = new byte [ 4096 ];
+		private int length = 0;
+
+		/**
+		 * Deflates <code>len</code> bytes of <code>src</code>.
+		 *
+		 * @return number of deflated bytes, held by {@link #getBuffer()}
+		 */
+		public int deflate(HDFSHeaderDictionary dictionary, byte [] src, int off, int len) {
+			deflater.reset();
+			deflater.setDictionary(dictionary.bytes);
+			deflater.setInput(src, off, len);
+			deflater.finish();
+
+			length = 0;
+			while (!deflater.finished()) {
+				if (length == buf.length) {
+					byte [] newBuf = new byte [ buf.length * 2 ];
+					System.arraycopy(buf, 0, newBuf, 0, length);
+					buf = newBuf;
+				}
+				length += deflater.deflate(buf, length, buf.length - length);
+			}
+			return length;
+		}
+
+		public byte [] getBuffer() {
+			return buf;
+		}
+
+		public int getLength() {
+			return length;
+		}
+
+		/**
+		 * Frees the native deflater.  The encoder cannot be used afterwards.
+		 */
+		public void end() {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Builds a dictionary from the header parts of sample records: the
+	 * lines and header names seen in more than one record, the most
+	 * valuable ones last, where deflate finds them at the shortest
+	 * distance.  Thread safe.
+	 */
+	public static class Trainer {
+
+		/**
+		 * Longer lines are not taken into the dictionary
+		 */
+		private static final int MAX_LINE = 1024;
+
+		/**
+		 * Bound on the distinct lines counted, to limit memory
+		 */
+		private static final int MAX_CANDIDATES = 200000;
+
+		private final int sampleRecords;
+		private final int maxSize;
+		private final Map<String, int []> counts = new HashMap<String, int []>();
+		private int records = 0;
+
+		/**
+		 * @param sampleRecords number of records to train on
+		 * @param maxSize dictionary size limit, at most {@link #MAX_SIZE}
+		 */
+		public Trainer(int sampleRecords, int maxSize) {
+			this.sampleRecords = sampleRecords;
+			this.maxSize = Math.min(maxSize, MAX_SIZE);
+		}
+
+		/**
+		 * Adds the header part of one record.
+		 *
+		 * @return true once enough records have been added
+		 */
+		public synchronized boolean add(byte [] buf, int off, int len) {
+			if (records >= sampleRecords)
+				return true;
+
+			int end = off + len;
+			int start = off;
+			for (int i = off; i < end; i++) {
+				if (buf[i] == '\n') {
+					addLine(buf, start, i + 1);
+					start = i + 1;
+				}
+			}
+			addLine(buf, start, end);
+
+			return ++records >= sampleRecords;
+		}
+
+		private void addLine(byte [] buf, int start, int end) {
+			int len = end - start;
+			if (len < 3 || len > MAX_LINE)
+				return;
+
+			count(buf, start, len);
+
+			// the header name alone, for lines whose value varies
+			for (int i = start; i < end - 1; i++) {
+				if (buf[i] == ':') {
+					if (buf[i+1] == ' ' && i + 2 < end)
+						count(buf, start, i + 2 - start);
+					break;
+				}
+			}
+		}
+
+		private void count(byte [] buf, int start, int len) {
+			String line;
+			try {
+				line = new String(buf, start, len, METADATA_CHARSET);
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+
+			int [] count = counts.get(line);
+			if (count != null)
+				count[0]++;
+			else if (counts.size() < MAX_CANDIDATES)
+				counts.put(line, new int [] { 1 });
+		}
+
+		public synchronized int getRecords() {
+			return records;
+		}
+
+		/**
+		 * @return the dictionary, or null if the samples had nothing in
+		 *  common
+		 */
+		public synchronized HDFSHeaderDictionary build() {
+			List<Map.Entry<String, int []>> candidates = new ArrayList<Map.Entry<String, int []>>();
+			for (Map.Entry<String, int []> entry : counts.entrySet()) {
+				if (entry.getValue()[0] > 1)
+					candidates.add(entry);
+			}
+
+			// bytes saved, roughly: length times repeats
+			Collections.sort(candidates, new Comparator<Map.Entry<String, int []>>() {
+				public int compare(Map.Entry<String, int []> a, Map.Entry<String, int []> b) {
+					long sa = (long)a.getKey().length() * a.getValue()[0];
+					long sb = (long)b.getKey().length() * b.getValue()[0];
+					if (sa != sb)
+						return (sa > sb) ? -1 : 1;
+					return a.getKey().compareTo(b.getKey());
+				}
+			});
+
+			List<String> chosen = new ArrayList<String>();
+			int size = 0;
+			for (Map.Entry<String, int []> entry : candidates) {
+				int len = entry.getKey().length();
+				if (size + len <= maxSize) {
+					chosen.add(entry.getKey());
+					size += len;
+				}
+			}
+			if (size == 0)
+				return null;
+
+			byte [] bytes = new byte [ size ];
+			int pos = size;
+			for (String line : chosen) {
+				try {
+					byte [] lineBytes = line.getBytes(METADATA_CHARSET);
+					pos -= lineBytes.length;
+					System.arraycopy(lineBytes, 0, bytes, pos, lineBytes.length);
+				} catch (UnsupportedEncodingException e) {
+					throw new RuntimeException(e);
+				}
+			}
+
+			counts.clear();
+			return new HDFSHeaderDictionary(bytes);
+		}
+	}
+}
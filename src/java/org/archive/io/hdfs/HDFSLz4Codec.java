@@ -0,0 +1,507 @@
+/* HDFSLz4Codec
+ *
+ * $Id$
+ *
+ * Copyright (C) 2010 Zvents
+ *
+ * This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ * Heritrix is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * any later version.
+ *
+ * Heritrix is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with Heritrix; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.archive.io.hdfs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.compress.BlockCompressorStream;
+import org.apache.hadoop.io.compress.BlockDecompressorStream;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionInputStream;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.Compressor;
+import org.apache.hadoop.io.compress.Decompressor;
+
+
+/**
+ * Pure Java LZ4 codec.  Compresses several times faster than zlib at
+ * the cost of a lower ratio, and needs no native library.
+ *
+ * Data is cut into chunks of up to <code>io.compression.codec.lz4.buffersize</code>
+ * bytes (256KB by default), each compressed on its own in the LZ4 block
+ * format and framed by {@link BlockCompressorStream}, the layout Hadoop
+ * uses for block codecs such as LZO.  Readers of files written with this
+ * codec need it on their classpath.
+ */
+public class HDFSLz4Codec implements Configurable, CompressionCodec {
+
+	public static final String BUFFER_SIZE_KEY = "io.compression.codec.lz4.buffersize";
+	public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+	private Configuration conf;
+
+	public void setConf(Configuration conf) {
+		this.conf = conf;
+	}
+
+	public Configuration getConf() {
+		return conf;
+	}
+
+	private int getBufferSize() {
+		return (conf == null) ? DEFAULT_BUFFER_SIZE : conf.getInt(BUFFER_SIZE_KEY, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @return worst case growth of a chunk of <code>size</code> bytes
+	 */
+	static int getCompressionOverhead(int size) {
+		return size / 255 + 16;
+	}
+
+	public CompressionOutputStream createOutputStream(OutputStream out) throws IOException {
+		return createOutputStream(out, createCompressor());
+	}
+
+	public CompressionOutputStream createOutputStream(OutputStream out, Compressor compressor)
+			throws IOException {
+		int bufferSize = getBufferSize();
+		return new BlockCompressorStream(out, compressor, bufferSize,
+				getCompressionOverhead(bufferSize));
+	}
+
+	public Class<? extends Compressor> getCompressorType() {
+		return Lz4Compressor.class;
+	}
+
+	public Compressor createCompressor() {
+		return new Lz4Compressor(getBufferSize());
+	}
+
+	public CompressionInputStream createInputStream(InputStream in) throws IOException {
+		return createInputStream(in, createDecompressor());
+	}
+
+	public CompressionInputStream createInputStream(InputStream in, Decompressor decompressor)
+			throws IOException {
+		return new BlockDecompressorStream(in, decompressor, getBufferSize());
+	}
+
+	public Class<? extends Decompressor> getDecompressorType() {
+		return Lz4Decompressor.class;
+	}
+
+	public Decompressor createDecompressor() {
+		return new Lz4Decompressor(getBufferSize());
+	}
+
+	public String getDefaultExtension() {
+		return ".lz4";
+	}
+
+
+	private static final int MIN_MATCH = 4;
+	private static final int LAST_LITERALS = 5;
+	private static final int MF_LIMIT = 12;
+	private static final int MAX_DISTANCE = 65535;
+	private static final int HASH_LOG = 14;
+	private static final int SKIP_TRIGGER = 6;
+
+	/**
+	 * Compresses <code>src</code> into <code>dst</code> as a single LZ4
+	 * block, which must have room for <code>srcLen</code> plus
+	 * {@link #getCompressionOverhead} bytes.
+	 *
+	 * @param table hash table of 2^14 entries, overwritten
+	 * @return compressed length
+	 */
+	static int compressBlock(byte [] src, int srcOff, int srcLen, byte [] dst, int dstOff,
+			int [] table) {
+		final int srcEnd = srcOff + srcLen;
+		int anchor = srcOff;
+		int dp = dstOff;
+
+		if (srcLen >= MF_LIMIT + 1) {
+			final int mfLimit = srcEnd - MF_LIMIT;
+			final int matchLimit = srcEnd - LAST_LITERALS;
+
+			// small inputs only clear and use part of the table
+			int hashLog = HASH_LOG;
+			while (hashLog > 8 && (1 << (hashLog + 2)) > srcLen)
+				hashLog--;
+			final int shift = 32 - hashLog;
+			Arrays.fill(table, 0, 1 << hashLog, -1);
+
+			int ip = srcOff;
+			int searches = 1 << SKIP_TRIGGER;
+
+			while (ip < mfLimit) {
+				int seq = readInt(src, ip);
+				int h = hash(seq, shift);
+				int ref = table[h];
+				table[h] = ip;
+
+				if (ref < 0 || ip - ref > MAX_DISTANCE || readInt(src, ref) != seq) {
+					// skip faster through data that does not compress
+					ip += searches++ >>> SKIP_TRIGGER;
+					continue;
+				}
+				searches = 1 << SKIP_TRIGGER;
+
+				while (ip > anchor && ref > srcOff && src[ip-1] == src[ref-1]) {
+					ip--;
+					ref--;
+				}
+
+				int len = MIN_MATCH;
+				while (ip + len < matchLimit && src[ip+len] == src[ref+len])
+					len++;
+
+				dp = writeSequence(src, anchor, ip - anchor, ip - ref, len, dst, dp);
+				ip += len;
+				anchor = ip;
+
+				if (ip < mfLimit)
+					table[hash(readInt(src, ip - 2), shift)] = ip - 2;
+			}
+		}
+
+		return writeLastLiterals(src, anchor, srcEnd - anchor, dst, dp) - dstOff;
+	}
+
+	private static int writeSequence(byte [] src, int literalOff, int literalLen, int offset,
+			int matchLen, byte [] dst, int dp) {
+		int token = dp++;
+		int ml = matchLen - MIN_MATCH;
+
+		if (literalLen >= 15) {
+			dst[token] = (byte)0xF0;
+			dp = writeLength(literalLen - 15, dst, dp);
+		} else {
+			dst[token] = (byte)(literalLen << 4);
+		}
+		System.arraycopy(src, literalOff, dst, dp, literalLen);
+		dp += literalLen;
+
+		dst[dp++] = (byte)offset;
+		dst[dp++] = (byte)(offset >>> 8);
+
+		if (ml >= 15) {
+			dst[token] |= 0x0F;
+			dp = writeLength(ml - 15, dst, dp);
+		} else {
+			dst[token] |= (byte)ml;
+		}
+		return dp;
+	}
+
+	private static int writeLastLiterals(byte [] src, int literalOff, int literalLen,
+			byte [] dst, int dp) {
+		if (literalLen >= 15) {
+			dst[dp++] = (byte)0xF0;
+			dp = writeLength(literalLen - 15, dst, dp);
+		} else {
+			dst[dp++] = (byte)(literalLen << 4);
+		}
+		System.arraycopy(src, literalOff, dst, dp, literalLen);
+		return dp + literalLen;
+	}
+
+	private static int writeLength(int len, byte [] dst, int dp) {
+		while (len >= 255) {
+			dst[dp++] = (byte)255;
+			len -= 255;
+		}
+		dst[dp++] = (byte)len;
+		return dp;
+	}
+
+	/**
+	 * Decompresses the LZ4 block <code>src</code> into <code>dst</code>.
+	 *
+	 * @return decompressed length, or -1 if it does not fit in
+	 *  <code>dstLen</code> bytes
+	 * @throws IOException if the block is corrupt
+	 */
+	static int decompressBlock(byte [] src, int srcOff, int srcLen, byte [] dst, int dstOff,
+			int dstLen) throws IOException {
+		final int srcEnd = srcOff + srcLen;
+		final int dstEnd = dstOff + dstLen;
+		int sp = srcOff;
+		int dp = dstOff;
+
+		try {
+			while (true) {
+				int token = src[sp++] & 0xFF;
+
+				int literalLen = token >>> 4;
+				if (literalLen == 15) {
+					int b;
+					do {
+						b = src[sp++] & 0xFF;
+						literalLen += b;
+					} while (b == 255);
+				}
+
+				if (literalLen > srcEnd - sp)
+					throw new IOException("Corrupt LZ4 block: literals past end of input");
+				if (literalLen > dstEnd - dp)
+					return -1;
+				System.arraycopy(src, sp, dst, dp, literalLen);
+				sp += literalLen;
+				dp += literalLen;
+
+				if (sp == srcEnd)
+					return dp - dstOff;
+
+				int offset = (src[sp] & 0xFF) | ((src[sp+1] & 0xFF) << 8);
+				sp += 2;
+
+				int matchLen = token & 0x0F;
+				if (matchLen == 15) {
+					int b;
+					do {
+						b = src[sp++] & 0xFF;
+						matchLen += b;
+					} while (b == 255);
+				}
+				matchLen += MIN_MATCH;
+
+				int ref = dp - offset;
+				if (offset == 0 || ref < dstOff)
+					throw new IOException("Corrupt LZ4 block: bad match offset " + offset);
+				if (matchLen > dstEnd - dp)
+					return -1;
+
+				if (offset >= matchLen) {
+					System.arraycopy(dst, ref, dst, dp, matchLen);
+					dp += matchLen;
+				} else {
+					// overlapping copy repeats the last offset bytes
+					for (int end = dp + matchLen; dp < end; )
+						dst[dp++] = dst[ref++];
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Corrupt LZ4 block: truncated");
+		}
+	}
+
+	private static int readInt(byte [] b, int i) {
+		return (b[i] & 0xFF) | ((b[i+1] & 0xFF) << 8) | ((b[i+2] & 0xFF) << 16) | (b[i+3] << 24);
+	}
+
+	private static int hash(int seq, int shift) {
+		return (seq * -1640531535) >>> shift;
+	}
+
+	/**
+	 * Collects input up to the buffer size and compresses it as one block
+	 * when the buffer is full or on finish.
+	 */
+	public static class Lz4Compressor implements Compressor {
+		private final byte [] uncompressed;
+		private int uncompressedLen = 0;
+		private final byte [] compressed;
+		private int compressedOff = 0;
+		private int compressedLen = 0;
+		private final int [] table = new int [ 1 << HASH_LOG ];
+
+		private byte [] userBuf = null;
+		private int userBufOff = 0;
+		private int userBufLen = 0;
+
+		private boolean finish = false;
+		private boolean finished = false;
+		private long bytesRead = 0;
+		private long bytesWritten = 0;
+
+		public Lz4Compressor(int bufferSize) {
+			this.uncompressed = new byte [ bufferSize ];
+			this.compressed = new byte [ bufferSize + getCompressionOverhead(bufferSize) ];
+		}
+
+		public void setInput(byte [] b, int off, int len) {
+			if (b == null)
+				throw new NullPointerException();
+			if (off < 0 || len < 0 || off > b.length - len)
+				throw new ArrayIndexOutOfBoundsException();
+
+			finished = false;
+			userBuf = b;
+			userBufOff = off;
+			userBufLen = len;
+			setInputFromSavedData();
+			bytesRead += len;
+		}
+
+		private void setInputFromSavedData() {
+			if (userBufLen == 0)
+				return;
+
+			int len = Math.min(userBufLen, uncompressed.length - uncompressedLen);
+			System.arraycopy(userBuf, userBufOff, uncompressed, uncompressedLen, len);
+			uncompressedLen += len;
+			userBufOff += len;
+			userBufLen -= len;
+		}
+
+		public boolean needsInput() {
+			return compressedLen == compressedOff && uncompressedLen < uncompressed.length &&
+				userBufLen == 0;
+		}
+
+		public void setDictionary(byte [] b, int off, int len) {
+			// not supported
+		}
+
+		public long getBytesRead() {
+			return bytesRead;
+		}
+
+		public long getBytesWritten() {
+			return bytesWritten;
+		}
+
+		public void finish() {
+			finish = true;
+		}
+
+		public boolean finished() {
+			return finish && finished && compressedLen == compressedOff;
+		}
+
+		public int compress(byte [] b, int off, int len) throws IOException {
+			if (compressedLen == compressedOff) {
+				compressedOff = compressedLen = 0;
+
+				if (uncompressedLen == 0) {
+					setInputFromSavedData();
+					if (uncompressedLen == 0) {
+						finished = true;
+						return 0;
+					}
+				}
+
+				if (uncompressedLen < uncompressed.length && !finish)
+					return 0;
+
+				compressedLen = compressBlock(uncompressed, 0, uncompressedLen, compressed, 0, table);
+				uncompressedLen = 0;
+
+				if (userBufLen == 0)
+					finished = true;
+			}
+
+			int n = Math.min(compressedLen - compressedOff, len);
+			System.arraycopy(compressed, compressedOff, b, off, n);
+			compressedOff += n;
+			bytesWritten += n;
+			return n;
+		}
+
+		public void reset() {
+			finish = false;
+			finished = false;
+			uncompressedLen = 0;
+			compressedOff = compressedLen = 0;
+			userBuf = null;
+			userBufOff = userBufLen = 0;
+			bytesRead = bytesWritten = 0;
+		}
+
+		public void end() {
+			// nothing to release
+		}
+	}
+
+	/**
+	 * Decompresses one LZ4 block per {@link #setInput} call, as handed
+	 * over by {@link BlockDecompressorStream}.
+	 */
+	public static class Lz4Decompressor implements Decompressor {
+		private byte [] compressed;
+		private int compressedLen = 0;
+		private byte [] uncompressed;
+		private int uncompressedOff = 0;
+		private int uncompressedLen = 0;
+
+		public Lz4Decompressor(int bufferSize) {
+			this.compressed = new byte [ bufferSize + getCompressionOverhead(bufferSize) ];
+			this.uncompressed = new byte [ bufferSize ];
+		}
+
+		public void setInput(byte [] b, int off, int len) {
+			if (b == null)
+				throw new NullPointerException();
+			if (off < 0 || len < 0 || off > b.length - len)
+				throw new ArrayIndexOutOfBoundsException();
+
+			if (compressed.length < len)
+				compressed = new byte [ len ];
+			System.arraycopy(b, off, compressed, 0, len);
+			compressedLen = len;
+		}
+
+		public boolean needsInput() {
+			return compressedLen == 0 && uncompressedOff == uncompressedLen;
+		}
+
+		public void setDictionary(byte [] b, int off, int len) {
+			// not supported
+		}
+
+		public boolean needsDictionary() {
+			return false;
+		}
+
+		public boolean finished() {
+			return compressedLen == 0 && uncompressedOff == uncompressedLen;
+		}
+
+		public int decompress(byte [] b, int off, int len) throws IOException {
+			if (uncompressedOff == uncompressedLen) {
+				if (compressedLen == 0)
+					return 0;
+
+				int n;
+				while ((n = decompressBlock(compressed, 0, compressedLen, uncompressed, 0,
+						uncompressed.length)) < 0)
+					uncompressed = new byte [ 2 * uncompressed.length ];
+
+				uncompressedOff = 0;
+				uncompressedLen = n;
+				compressedLen = 0;
+			}
+
+			int n = Math.min(uncompressedLen - uncompressedOff, len);
+			System.arraycopy(uncompressed, uncompressedOff, b, off, n);
+			uncompressedOff += n;
+			return n;
+		}
+
+		public void reset() {
+			compressedLen = 0;
+			uncompressedOff = uncompressedLen = 0;
+		}
+
+		public void end() {
+			// nothing to release
+		}
+	}
+}
@@ -0,0 +1,277 @@
+/* HDFSNamedFieldsEncoder
+ *
+ * $Id$
+ *
+ * Copyright (C) 2010 Zvents
+ *
+ * This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ * Heritrix is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * any later version.
+ *
+ * Heritrix is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with Heritrix; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.archive.io.hdfs;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Encodes the block of named fields written after the header line of a
+ * record, byte for byte the same as building an
+ * {@link org.archive.util.anvl.ANVLRecord} and calling getUTF8Bytes():
+ * "label: value" lines ending in CRLF, then an empty line.  Line breaks
+ * in a value are folded the same way, and a field whose label or value
+ * ANVLRecord would refuse is left out.
+ *
+ * The labels are encoded once, from {@link HDFSParameters}, and values
+ * go straight into a scratch buffer that is kept from one record to the
+ * next, so a block costs one array of its exact size.  Not thread safe,
+ * keep one per thread.
+ */
+public class HDFSNamedFieldsEncoder {
+
+	private final Logger LOG = Logger.getLogger(this.getClass().getName());
+
+	private static final byte [] TRUE = { 't','r','u','e' };
+	private static final byte [] FALSE = { 'f','a','l','s','e' };
+
+	/**
+	 * "label: " of each field, or null if the label is not a valid ANVL label
+	 */
+	private final byte [] urlLabel;
+	private final byte [] ipLabel;
+	private final byte [] crawlTimeLabel;
+	private final byte [] isSeedLabel;
+	private final byte [] seedUrlLabel;
+	private final byte [] pathFromSeedLabel;
+	private final byte [] viaLabel;
+	private final byte [] payloadDigestLabel;
+	private final byte [] revisitOfLabel;
+
+	/**
+	 * Same calendar as the GMT SimpleDateFormat of ArchiveUtils.get14DigitDate
+	 */
+	private final Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+
+	private byte [] buf = new byte [ 1024 ];
+	private int length;
+
+	public HDFSNamedFieldsEncoder(HDFSParameters parameters) {
+		urlLabel = label(parameters.getUrlFieldName());
+		ipLabel = label(parameters.getIpFieldName());
+		crawlTimeLabel = label(parameters.getCrawlTimeFieldName());
+		isSeedLabel = label(parameters.getIsSeedFieldName());
+		seedUrlLabel = label(parameters.getSeedUrlFieldName());
+		pathFromSeedLabel = label(parameters.getPathFromSeedFieldName());
+		viaLabel = label(parameters.getViaFieldName());
+		payloadDigestLabel = label(parameters.getPayloadDigestFieldName());
+		revisitOfLabel = label(parameters.getRevisitOfFieldName());
+	}
+
+	/**
+	 * Starts a new block
+	 */
+	public void reset() {
+		length = 0;
+	}
+
+	public void addUrl(String url) { add(urlLabel, url); }
+	public void addIp(String ip) { add(ipLabel, ip); }
+	public void addSeedUrl(String seedUrl) { add(seedUrlLabel, seedUrl); }
+	public void addPathFromSeed(String pathFromSeed) { add(pathFromSeedLabel, pathFromSeed); }
+	public void addVia(String via) { add(viaLabel, via); }
+	public void addPayloadDigest(String payloadDigest) { add(payloadDigestLabel, payloadDigest); }
+	public void addRevisitOf(String revisitOf) { add(revisitOfLabel, revisitOf); }
+
+	public void addIsSeed(boolean isSeed) {
+		if (start(isSeedLabel))
+			end(isSeed ? TRUE : FALSE);
+	}
+
+	/**
+	 * Adds the crawl time field as a 14 digit GMT timestamp
+	 *
+	 * @param time milliseconds since the epoch
+	 */
+	public void addCrawlTime(long time) {
+		if (!start(crawlTimeLabel))
+			return;
+		calendar.setTimeInMillis(time);
+		ensure(length + 32);
+		digits(calendar.get(Calendar.YEAR), 4);
+		digits(calendar.get(Calendar.MONTH) + 1, 2);
+		digits(calendar.get(Calendar.DAY_OF_MONTH), 2);
+		digits(calendar.get(Calendar.HOUR_OF_DAY), 2);
+		digits(calendar.get(Calendar.MINUTE), 2);
+		digits(calendar.get(Calendar.SECOND), 2);
+		buf[length++] = '\r';
+		buf[length++] = '\n';
+	}
+
+	/**
+	 * @return the fields added since the last {@link #reset()}, followed
+	 *  by the empty line that ends the block
+	 */
+	public byte [] toByteArray() {
+		byte [] block = Arrays.copyOf(buf, length + 2);
+		block[length] = '\r';
+		block[length + 1] = '\n';
+		return block;
+	}
+
+	private void add(byte [] label, String value) {
+		if (!start(label))
+			return;
+		int base = length - label.length;
+		if (!value(value)) {
+			LOG.warn("bad value for field " + new String(label, 0, label.length - 2) + ": " + value);
+			length = base;
+			return;
+		}
+		ensure(length + 2);
+		buf[length++] = '\r';
+		buf[length++] = '\n';
+	}
+
+	/**
+	 * Appends "label: ", unless the label is invalid
+	 */
+	private boolean start(byte [] label) {
+		if (label == null)
+			return false;
+		ensure(length + label.length);
+		System.arraycopy(label, 0, buf, length, label.length);
+		length += label.length;
+		return true;
+	}
+
+	private void end(byte [] value) {
+		ensure(length + value.length + 2);
+		System.arraycopy(value, 0, buf, length, value.length);
+		length += value.length;
+		buf[length++] = '\r';
+		buf[length++] = '\n';
+	}
+
+	/**
+	 * Appends the value in UTF-8, folding CR, LF and CRLF into a CRLF and
+	 * a space and dropping the whitespace after them, as ANVL values do
+	 *
+	 * @return false if the value holds a control character
+	 */
+	private boolean value(String value) {
+		boolean folding = false;
+		int n = value.length();
+		// no char takes more than three bytes, a surrogate pair four
+		ensure(length + 3 * n);
+		for (int i = 0; i < n; i++) {
+			char c = value.charAt(i);
+			if (Character.isISOControl(c) && !Character.isWhitespace(c))
+				return false;
+			if (c == '\r') {
+				folding = true;
+				fold();
+			}
+			else if (c == '\n') {
+				if (!folding) {
+					folding = true;
+					fold();
+				}
+			}
+			else if (folding && Character.isWhitespace(c)) {
+				continue;
+			}
+			else {
+				folding = false;
+				if (c < 0x80) {
+					buf[length++] = (byte)c;
+				}
+				else if (c < 0x800) {
+					buf[length++] = (byte)(0xc0 | (c >> 6));
+					buf[length++] = (byte)(0x80 | (c & 0x3f));
+				}
+				else if (Character.isHighSurrogate(c) && i + 1 < n &&
+						Character.isLowSurrogate(value.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, value.charAt(++i));
+					buf[length++] = (byte)(0xf0 | (cp >> 18));
+					buf[length++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+					buf[length++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+					buf[length++] = (byte)(0x80 | (cp & 0x3f));
+				}
+				else if (Character.isSurrogate(c)) {
+					// unpaired, replaced the way String.getBytes does
+					buf[length++] = '?';
+				}
+				else {
+					buf[length++] = (byte)(0xe0 | (c >> 12));
+					buf[length++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+					buf[length++] = (byte)(0x80 | (c & 0x3f));
+				}
+			}
+		}
+		return true;
+	}
+
+	private void fold() {
+		buf[length++] = '\r';
+		buf[length++] = '\n';
+		buf[length++] = ' ';
+	}
+
+	/**
+	 * Appends <code>v</code> in decimal, zero padded to <code>width</code>
+	 */
+	private void digits(int v, int width) {
+		int n = 1;
+		for (int x = v; x >= 10; x /= 10)
+			n++;
+		for (; n < width; width--)
+			buf[length++] = '0';
+		int end = length + n;
+		for (int i = end - 1; i >= length; i--, v /= 10)
+			buf[i] = (byte)('0' + v % 10);
+		length = end;
+	}
+
+	private void ensure(int capacity) {
+		if (capacity > buf.length)
+			buf = Arrays.copyOf(buf, Math.max(capacity, buf.length * 2));
+	}
+
+	/**
+	 * @return "label: " in UTF-8, or null if <code>label</code> is not
+	 *  a valid ANVL label
+	 */
+	private byte [] label(String label) {
+		if (label == null)
+			return null;
+		for (int i = 0; i < label.length(); i++) {
+			char c = label.charAt(i);
+			if ((Character.isISOControl(c) && !Character.isWhitespace(c)) ||
+					c == '\r' || c == '\n' || c == ':') {
+				LOG.warn("bad field name " + label + ", field will not be written");
+				return null;
+			}
+		}
+		try {
+			return (label + ": ").getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -1,5 +1,11 @@
 package org.archive.io.hdfs;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Partitioner;
 
 
 /**
@@ -34,6 +40,9 @@ public class HDFSParameters {
     public static final String NAMED_FIELD_SEED_URL			= "Seed-Url";
     public static final String NAMED_FIELD_REQUEST			= "Request";
     public static final String NAMED_FIELD_RESPONSE			= "Response";
+    public static final String NAMED_FIELD_PAYLOAD_DIGEST	= "Payload-Digest";
+    public static final String NAMED_FIELD_REVISIT_OF		= "Revisit-Of";
+    public static final String NAMED_FIELD_BODY_RECORD		= "Body-Record";
 
 	private String urlFieldName				= NAMED_FIELD_URL;
     private String crawlTimeFieldName		= NAMED_FIELD_CRAWL_TIME;
@@ -44,6 +53,9 @@ public class HDFSParameters {
 	private String seedUrlFieldName			= NAMED_FIELD_SEED_URL;
 	private String requestFieldName			= NAMED_FIELD_REQUEST;
 	private String responseFieldName		= NAMED_FIELD_RESPONSE;
+	private String payloadDigestFieldName	= NAMED_FIELD_PAYLOAD_DIGEST;
+	private String revisitOfFieldName		= NAMED_FIELD_REVISIT_OF;
+	private String bodyRecordFieldName		= NAMED_FIELD_BODY_RECORD;
 
 	public String getCrawlTimeFieldName() {
 		return crawlTimeFieldName;
@@ -99,6 +111,24 @@ public class HDFSParameters {
 	public void setResponseFieldName(String responseFieldName) {
 		this.responseFieldName = responseFieldName;
 	}
+	public String getPayloadDigestFieldName() {
+		return payloadDigestFieldName;
+	}
+	public void setPayloadDigestFieldName(String payloadDigestFieldName) {
+		this.payloadDigestFieldName = payloadDigestFieldName;
+	}
+	public String getRevisitOfFieldName() {
+		return revisitOfFieldName;
+	}
+	public void setRevisitOfFieldName(String revisitOfFieldName) {
+		this.revisitOfFieldName = revisitOfFieldName;
+	}
+	public String getBodyRecordFieldName() {
+		return bodyRecordFieldName;
+	}
+	public void setBodyRecordFieldName(String bodyRecordFieldName) {
+		this.bodyRecordFieldName = bodyRecordFieldName;
+	}
 	
 
 	private String prefix				= "";
@@ -106,10 +136,215 @@ public class HDFSParameters {
 	private boolean compression			= false;
 	private long maxSize				= 63*1024*1024;
 	private int hdfsReplication			= 3;
+	private long hdfsBlockSize			= 0;	// 0 means the file system default
 	private String hdfsCompressionType	= "DEFAULT";
+	private String hdfsCompressionCodec	= "default";	// default, deflate, lz4, bzip2, gzip or a class name
+	private int hdfsCompressionLevel	= -1;			// deflate level, -1 for the codec default
 	private String hdfsOutputPath		= "/crawl";
     private String hdfsFsDefaultName	= "hdfs://localhost:9000";
 
+    /**
+     * Stream records straight from the Recorder into the SequenceFile
+     * instead of assembling them in memory first.  Files written this way
+     * use {@link HDFSWriterDocument} rather than Text as the value class.
+     */
+    private boolean streamingAppend		= false;
+
+    /**
+     * Group commit: records of several toe threads are appended together
+     * through one writer once they add up to groupCommitBytes, or the
+     * first of them has waited groupCommitMaxWaitMs.  Each toe thread waits
+     * for its own record.  0 appends every record as it arrives; ignored
+     * with write-behind.
+     */
+    private long groupCommitBytes		= 0;
+    private long groupCommitMaxWaitMs	= 1000;
+
+    /**
+     * Memory budget of the record buffers of a pool, in use or idle, kept
+     * by its {@link HDFSBufferPool}, and whether they live off heap.
+     * Records that do not fit are assembled in spillDirectory.
+     */
+    private long bufferPoolMaxBytes		= 64*1024*1024;
+    private boolean bufferPoolDirect	= false;
+
+    /**
+     * Records larger than spillThresholdBytes are assembled in temporary
+     * files in spillDirectory rather than in memory.  A null directory
+     * means the system temporary directory.
+     */
+    private long spillThresholdBytes	= 16*1024*1024;
+    private String spillDirectory		= null;
+
+    /**
+     * Local staging: when localStagingPath is set, files are written there
+     * and copied to hdfsOutputPath by uploadThreads background threads
+     * once closed.  Failed uploads are retried every uploadRetryMs.  On
+     * shutdown, uploads are waited for up to uploadCloseWaitMs; the rest
+     * are uploaded by the next run.
+     */
+    private String localStagingPath		= null;
+    private int uploadThreads			= 2;
+    private long uploadRetryMs			= 30000;
+    private long uploadCloseWaitMs		= 60000;
+
+    /**
+     * Background rotation: create the next file ahead of time and close
+     * full files on rotationThreads background threads, shared by the
+     * pool.  The pool waits up to uploadCloseWaitMs for pending closes
+     * when it is closed.
+     */
+    private boolean backgroundRotation	= false;
+    private int rotationThreads			= 2;
+
+    /**
+     * File rotation.  Files are rotated when they exceed maxSize bytes
+     * (-1 for no limit), hold rotationMaxRecords records or have been open
+     * rotationMaxAgeMs, whichever comes first (0 disables either).  Set
+     * rotationPolicy to use a custom {@link HDFSRotationPolicy} instead.
+     */
+    private long rotationMaxRecords		= 0;
+    private long rotationMaxAgeMs		= 0;
+    private HDFSRotationPolicy rotationPolicy = null;
+
+    /**
+     * Partitioned output: when partitions is above 0, records are routed
+     * by partitioner to that many groups of writers, and the partition
+     * number is part of the file names (...-part-00003).  The default
+     * partitioner hashes the host; {@link RegisteredDomainPartitioner}
+     * hashes the registered domain instead.
+     */
+    private int partitions				= 0;
+    private Partitioner<Text, Writable> partitioner = new HostPartitioner();
+
+    /**
+     * Sorted output: when sortedOutput is set, each file is a Hadoop
+     * MapFile keyed by the SURT form of the URL.  Records are sorted in
+     * up to sortBufferBytes of memory, spilled as sorted runs to
+     * spillDirectory and merged on the rotationThreads when the file is
+     * rotated.
+     */
+    private boolean sortedOutput		= false;
+    private long sortBufferBytes		= 64*1024*1024;
+
+    /**
+     * Record keys: TEXT keys are the URL, or its SURT form with sorted
+     * output, as {@link Text}.  FINGERPRINT keys are the fixed width 64
+     * bit URL fingerprint ({@link HDFSFingerprintKey}); SURT keys are
+     * the SURT form as raw bytes ({@link HDFSSurtKey}).  Both register a
+     * raw comparator, so sorting and joining on them never deserializes
+     * keys.  Only TEXT keys can be partitioned by {@link HostPartitioner}
+     * in MapReduce jobs over the output.
+     */
+    private String keyType				= "TEXT";
+
+    /**
+     * Record index: when set, an index of the URL fingerprint, offset and
+     * length of every record is written next to each file on close, with
+     * the suffix {@link HDFSRecordIndex#INDEX_SUFFIX}.
+     */
+    private boolean recordIndex			= false;
+
+    /**
+     * Compression bypass: when set and output is compressed, records that
+     * would not compress are written to separate uncompressed files,
+     * marked -stored in their names.  A record is taken to be
+     * incompressible if its response has a Content-Encoding, a
+     * Content-Type starting with one of compressionBypassTypes, or a body
+     * whose first compressionBypassSampleBytes bytes have more than
+     * compressionBypassEntropy bits of entropy per byte (0 disables the
+     * sample).
+     */
+    private boolean compressionBypass	= false;
+    private String compressionBypassTypes = "image/jpeg,image/png,image/gif,image/webp," +
+    		"image/x-icon,image/vnd.microsoft.icon,audio/,video/,application/zip," +
+    		"application/gzip,application/x-gzip,application/x-compress," +
+    		"application/x-bzip2,application/x-xz,application/x-7z-compressed," +
+    		"application/x-rar-compressed,application/x-shockwave-flash,font/woff";
+    private double compressionBypassEntropy = 7.5;
+    private int compressionBypassSampleBytes = 4096;
+
+    /**
+     * Header dictionary: when set, a deflate dictionary of the header
+     * lines common to the first headerDictionarySampleRecords records is
+     * trained, at most headerDictionaryMaxBytes long, and stored in the
+     * metadata of every file created afterwards.  The header part of each
+     * record of those files (header line, fields, request and response
+     * headers) is deflated against it.  Files written this way use
+     * {@link HDFSWriterDocument} as the value class, and cannot be read by
+     * MapReduce jobs, see README.txt.
+     */
+    private boolean headerDictionary	= false;
+    private int headerDictionarySampleRecords = 1000;
+    private int headerDictionaryMaxBytes = 32768;
+
+    /**
+     * Deduplication: when set, the payload digest of every response body
+     * of at least dedupMinBytes bytes is looked up in a table of the
+     * digests already written, of dedupTableBytes bytes off heap.  A
+     * duplicate is written as a revisit record: its fields and response
+     * headers only, with a Revisit-Of field naming the file, offset and
+     * length of the original as in the record index.  If dedupTablePath
+     * is set, the table is loaded from that local file on start and saved
+     * there on close.
+     */
+    private boolean dedup				= false;
+    private long dedupTableBytes		= 64*1024*1024;
+    private String dedupTablePath		= null;
+    private long dedupMinBytes			= 1024;
+
+    /**
+     * WARC output: when set, files are WARC 1.0 files with every record
+     * gzipped on its own (.warc.gz), instead of SequenceFiles.  Each
+     * capture becomes a response (or revisit, or resource for non-HTTP
+     * URIs), a request and a metadata record holding the named fields.
+     * Records are deflated at hdfsCompressionLevel.  Sorted output,
+     * streaming append, group commit, background rotation, the record
+     * index, compression bypass and the header dictionary apply to
+     * SequenceFiles only and are ignored.
+     */
+    private boolean warcOutput			= false;
+
+    /**
+     * Split output: when set, each record is written as a metadata record
+     * holding the header line, the fields, the request and the response
+     * headers, and a body record holding the rest of the response.  Body
+     * records go to a file of their own named after the metadata file
+     * with a -body marker, and the two files rotate together.  The
+     * metadata record has a Body-Record field with the file, offset and
+     * length of its body as in the record index; dedup entries point at
+     * bodies, and revisits have no body record.  Streaming append, the
+     * header dictionary and compression bypass are ignored.  WARC output
+     * takes precedence.
+     */
+    private boolean splitBody			= false;
+
+    /**
+     * Writer selection: when writerStripes is positive, each partition
+     * has that many writers, picked by thread id and each guarded on its
+     * own, instead of a commons-pool borrowed from under a global lock.
+     * Setting it to the number of toe threads gives each thread a writer
+     * of its own.  The pool's maximum active count is then ignored.
+     */
+    private int writerStripes			= 0;
+
+    /**
+     * Adaptive writer pool: when adaptiveWriters is set, writers are
+     * striped as with writerStripes, but each partition uses between
+     * minWriters and maxWriters of them.  Every adaptiveIntervalMs a
+     * writer is added if more than adaptiveGrowWaitRatio of the borrows
+     * found every writer taken or callers are waiting, and the last one
+     * is retired, closing its files, if no borrow waited and the others
+     * would have been busy less than adaptiveShrinkUtilization of the
+     * time.  writerStripes is then ignored.
+     */
+    private boolean adaptiveWriters		= false;
+    private int minWriters				= 1;
+    private int maxWriters				= 16;
+    private long adaptiveIntervalMs		= 10000;
+    private double adaptiveGrowWaitRatio	= 0.01;
+    private double adaptiveShrinkUtilization = 0.5;
+
 	public String getPrefix() {
 		if (prefix.isEmpty())
 			throw new RuntimeException("A filename prefix was never set for this object. " +
@@ -148,12 +383,30 @@ public class HDFSParameters {
 	public void setHdfsReplication(int hdfsReplication) {
 		this.hdfsReplication = hdfsReplication;
 	}
+	public long getHdfsBlockSize() {
+		return hdfsBlockSize;
+	}
+	public void setHdfsBlockSize(long hdfsBlockSize) {
+		this.hdfsBlockSize = hdfsBlockSize;
+	}
 	public String getHdfsCompressionType() {
 		return hdfsCompressionType;
 	}
 	public void setHdfsCompressionType(String hdfsCompressionType) {
 		this.hdfsCompressionType = hdfsCompressionType;
 	}
+	public String getHdfsCompressionCodec() {
+		return hdfsCompressionCodec;
+	}
+	public void setHdfsCompressionCodec(String hdfsCompressionCodec) {
+		this.hdfsCompressionCodec = hdfsCompressionCodec;
+	}
+	public int getHdfsCompressionLevel() {
+		return hdfsCompressionLevel;
+	}
+	public void setHdfsCompressionLevel(int hdfsCompressionLevel) {
+		this.hdfsCompressionLevel = hdfsCompressionLevel;
+	}
 	public String getHdfsOutputPath() {
 		return hdfsOutputPath;
 	}
@@ -166,5 +419,273 @@ public class HDFSParameters {
 	public void setHdfsFsDefaultName(String hdfsFsDefaultName) {
 		this.hdfsFsDefaultName = hdfsFsDefaultName;
 	}
+	public boolean isStreamingAppend() {
+		return streamingAppend;
+	}
+	public void setStreamingAppend(boolean streamingAppend) {
+		this.streamingAppend = streamingAppend;
+	}
+	public long getGroupCommitBytes() {
+		return groupCommitBytes;
+	}
+	public void setGroupCommitBytes(long groupCommitBytes) {
+		this.groupCommitBytes = groupCommitBytes;
+	}
+	public long getGroupCommitMaxWaitMs() {
+		return groupCommitMaxWaitMs;
+	}
+	public void setGroupCommitMaxWaitMs(long groupCommitMaxWaitMs) {
+		this.groupCommitMaxWaitMs = groupCommitMaxWaitMs;
+	}
+	public long getBufferPoolMaxBytes() {
+		return bufferPoolMaxBytes;
+	}
+	public void setBufferPoolMaxBytes(long bufferPoolMaxBytes) {
+		this.bufferPoolMaxBytes = bufferPoolMaxBytes;
+	}
+	public boolean isBufferPoolDirect() {
+		return bufferPoolDirect;
+	}
+	public void setBufferPoolDirect(boolean bufferPoolDirect) {
+		this.bufferPoolDirect = bufferPoolDirect;
+	}
+	public long getSpillThresholdBytes() {
+		return spillThresholdBytes;
+	}
+	public void setSpillThresholdBytes(long spillThresholdBytes) {
+		this.spillThresholdBytes = spillThresholdBytes;
+	}
+	public String getSpillDirectory() {
+		return spillDirectory;
+	}
+	public void setSpillDirectory(String spillDirectory) {
+		this.spillDirectory = spillDirectory;
+	}
+	public String getLocalStagingPath() {
+		return localStagingPath;
+	}
+	public void setLocalStagingPath(String localStagingPath) {
+		this.localStagingPath = localStagingPath;
+	}
+	public int getUploadThreads() {
+		return uploadThreads;
+	}
+	public void setUploadThreads(int uploadThreads) {
+		this.uploadThreads = uploadThreads;
+	}
+	public long getUploadRetryMs() {
+		return uploadRetryMs;
+	}
+	public void setUploadRetryMs(long uploadRetryMs) {
+		this.uploadRetryMs = uploadRetryMs;
+	}
+	public long getUploadCloseWaitMs() {
+		return uploadCloseWaitMs;
+	}
+	public void setUploadCloseWaitMs(long uploadCloseWaitMs) {
+		this.uploadCloseWaitMs = uploadCloseWaitMs;
+	}
+	public boolean isBackgroundRotation() {
+		return backgroundRotation;
+	}
+	public void setBackgroundRotation(boolean backgroundRotation) {
+		this.backgroundRotation = backgroundRotation;
+	}
+	public int getRotationThreads() {
+		return rotationThreads;
+	}
+	public void setRotationThreads(int rotationThreads) {
+		this.rotationThreads = rotationThreads;
+	}
+	public long getRotationMaxRecords() {
+		return rotationMaxRecords;
+	}
+	public void setRotationMaxRecords(long rotationMaxRecords) {
+		this.rotationMaxRecords = rotationMaxRecords;
+	}
+	public long getRotationMaxAgeMs() {
+		return rotationMaxAgeMs;
+	}
+	public void setRotationMaxAgeMs(long rotationMaxAgeMs) {
+		this.rotationMaxAgeMs = rotationMaxAgeMs;
+	}
+	/**
+	 * @return the custom rotation policy if one was set, else a policy
+	 *  built from maxSize, rotationMaxRecords and rotationMaxAgeMs
+	 */
+	public HDFSRotationPolicy getRotationPolicy() {
+		if (rotationPolicy != null)
+			return rotationPolicy;
+
+		List<HDFSRotationPolicy> policies = new ArrayList<HDFSRotationPolicy>();
+		if (maxSize != -1)
+			policies.add(new MaxBytesRotationPolicy(maxSize));
+		if (rotationMaxRecords > 0)
+			policies.add(new MaxRecordsRotationPolicy(rotationMaxRecords));
+		if (rotationMaxAgeMs > 0)
+			policies.add(new MaxAgeRotationPolicy(rotationMaxAgeMs));
+
+		return new CompositeRotationPolicy(policies);
+	}
+	public void setRotationPolicy(HDFSRotationPolicy rotationPolicy) {
+		this.rotationPolicy = rotationPolicy;
+	}
+	public int getPartitions() {
+		return partitions;
+	}
+	public void setPartitions(int partitions) {
+		this.partitions = partitions;
+	}
+	public Partitioner<Text, Writable> getPartitioner() {
+		return partitioner;
+	}
+	public void setPartitioner(Partitioner<Text, Writable> partitioner) {
+		this.partitioner = partitioner;
+	}
+	public boolean isSortedOutput() {
+		return sortedOutput;
+	}
+	public void setSortedOutput(boolean sortedOutput) {
+		this.sortedOutput = sortedOutput;
+	}
+	public long getSortBufferBytes() {
+		return sortBufferBytes;
+	}
+	public void setSortBufferBytes(long sortBufferBytes) {
+		this.sortBufferBytes = sortBufferBytes;
+	}
+	public boolean isRecordIndex() {
+		return recordIndex;
+	}
+	public void setRecordIndex(boolean recordIndex) {
+		this.recordIndex = recordIndex;
+	}
+	public boolean isCompressionBypass() {
+		return compressionBypass;
+	}
+	public void setCompressionBypass(boolean compressionBypass) {
+		this.compressionBypass = compressionBypass;
+	}
+	public String getCompressionBypassTypes() {
+		return compressionBypassTypes;
+	}
+	public void setCompressionBypassTypes(String compressionBypassTypes) {
+		this.compressionBypassTypes = compressionBypassTypes;
+	}
+	public double getCompressionBypassEntropy() {
+		return compressionBypassEntropy;
+	}
+	public void setCompressionBypassEntropy(double compressionBypassEntropy) {
+		this.compressionBypassEntropy = compressionBypassEntropy;
+	}
+	public int getCompressionBypassSampleBytes() {
+		return compressionBypassSampleBytes;
+	}
+	public void setCompressionBypassSampleBytes(int compressionBypassSampleBytes) {
+		this.compressionBypassSampleBytes = compressionBypassSampleBytes;
+	}
+	public boolean isHeaderDictionary() {
+		return headerDictionary;
+	}
+	public void setHeaderDictionary(boolean headerDictionary) {
+		this.headerDictionary = headerDictionary;
+	}
+	public int getHeaderDictionarySampleRecords() {
+		return headerDictionarySampleRecords;
+	}
+	public void setHeaderDictionarySampleRecords(int headerDictionarySampleRecords) {
+		this.headerDictionarySampleRecords = headerDictionarySampleRecords;
+	}
+	public int getHeaderDictionaryMaxBytes() {
+		return headerDictionaryMaxBytes;
+	}
+	public void setHeaderDictionaryMaxBytes(int headerDictionaryMaxBytes) {
+		this.headerDictionaryMaxBytes = headerDictionaryMaxBytes;
+	}
+
+	public boolean isDedup() {
+		return dedup;
+	}
+	public void setDedup(boolean dedup) {
+		this.dedup = dedup;
+	}
+	public long getDedupTableBytes() {
+		return dedupTableBytes;
+	}
+	public void setDedupTableBytes(long dedupTableBytes) {
+		this.dedupTableBytes = dedupTableBytes;
+	}
+	public String getDedupTablePath() {
+		return dedupTablePath;
+	}
+	public void setDedupTablePath(String dedupTablePath) {
+		this.dedupTablePath = dedupTablePath;
+	}
+	public long getDedupMinBytes() {
+		return dedupMinBytes;
+	}
+	public void setDedupMinBytes(long dedupMinBytes) {
+		this.dedupMinBytes = dedupMinBytes;
+	}
+	public boolean isWarcOutput() {
+		return warcOutput;
+	}
+	public void setWarcOutput(boolean warcOutput) {
+		this.warcOutput = warcOutput;
+	}
+	public boolean isSplitBody() {
+		return splitBody;
+	}
+	public void setSplitBody(boolean splitBody) {
+		this.splitBody = splitBody;
+	}
+	public String getKeyType() {
+		return keyType;
+	}
+	public void setKeyType(String keyType) {
+		this.keyType = keyType;
+	}
+	public int getWriterStripes() {
+		return writerStripes;
+	}
+	public void setWriterStripes(int writerStripes) {
+		this.writerStripes = writerStripes;
+	}
+	public boolean isAdaptiveWriters() {
+		return adaptiveWriters;
+	}
+	public void setAdaptiveWriters(boolean adaptiveWriters) {
+		this.adaptiveWriters = adaptiveWriters;
+	}
+	public int getMinWriters() {
+		return minWriters;
+	}
+	public void setMinWriters(int minWriters) {
+		this.minWriters = minWriters;
+	}
+	public int getMaxWriters() {
+		return maxWriters;
+	}
+	public void setMaxWriters(int maxWriters) {
+		this.maxWriters = maxWriters;
+	}
+	public long getAdaptiveIntervalMs() {
+		return adaptiveIntervalMs;
+	}
+	public void setAdaptiveIntervalMs(long adaptiveIntervalMs) {
+		this.adaptiveIntervalMs = adaptiveIntervalMs;
+	}
+	public double getAdaptiveGrowWaitRatio() {
+		return adaptiveGrowWaitRatio;
+	}
+	public void setAdaptiveGrowWaitRatio(double adaptiveGrowWaitRatio) {
+		this.adaptiveGrowWaitRatio = adaptiveGrowWaitRatio;
+	}
+	public double getAdaptiveShrinkUtilization() {
+		return adaptiveShrinkUtilization;
+	}
+	public void setAdaptiveShrinkUtilization(double adaptiveShrinkUtilization) {
+		this.adaptiveShrinkUtilization = adaptiveShrinkUtilization;
+	}
 
 }
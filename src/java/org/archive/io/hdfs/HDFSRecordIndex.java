@@ -0,0 +1,375 @@
+/* HDFSRecordIndex
+ *
+ * $Id$
+ *
+ * Copyright (C) 2010 Zvents
+ *
+ * This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ * Heritrix is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * any later version.
+ *
+ * Heritrix is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with Heritrix; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.archive.io.hdfs;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.archive.io.hdfs.util.ByteScan;
+import org.archive.io.hdfs.util.URIUtils;
+
+
+/**
+ * Offset index of the records of one SequenceFile, written next to it
+ * with the {@link #INDEX_SUFFIX} suffix when the file is closed.
+ *
+ * For every record the index holds the URL fingerprint, the offset of
+ * the record in the file and its length, so that a single record can be
+ * read with one positioned read instead of a scan of the file.  In BLOCK
+ * compressed files records cannot be read on their own; there the offset
+ * is that of the compressed block and the length field holds the number
+ * of the record within the block.
+ *
+ * For a MapFile the index goes next to the MapFile directory and covers
+ * its data file.
+ *
+ * The file starts with a header naming the compression type, codec and
+ * value class of the data file, followed by fixed size entries in file
+ * order.
+ */
+public class HDFSRecordIndex {
+
+	public static final String INDEX_SUFFIX = ".idx";
+
+	private static final int MAGIC = 0x48524958;	// HRIX
+	private static final int VERSION = 1;
+	private static final int ENTRY_SIZE = 8 + 8 + 4;
+
+	/**
+	 * SequenceFile sync escape, written in place of a record length
+	 */
+	private static final int SYNC_ESCAPE = -1;
+	private static final int SYNC_SIZE = 4 + 16;
+
+	private final SequenceFile.CompressionType compType;
+	private final String codecClass;
+	private final String valueClass;
+	private final long [] fingerprints;
+	private final long [] offsets;
+	private final int [] lengths;
+
+	/**
+	 * Header dictionary of the data file, see {@link #loadHeaderDictionary}
+	 */
+	private volatile HDFSHeaderDictionary headerDictionary = null;
+	private volatile boolean headerDictionaryLoaded = false;
+
+	private HDFSRecordIndex(SequenceFile.CompressionType compType, String codecClass,
+			String valueClass, int count) {
+		this.compType = compType;
+		this.codecClass = codecClass;
+		this.valueClass = valueClass;
+		this.fingerprints = new long [ count ];
+		this.offsets = new long [ count ];
+		this.lengths = new int [ count ];
+	}
+
+	/**
+	 * @return fingerprint of <code>uri</code> in UTF-8 as computed by
+	 *  {@link URIUtils#ComputeHash}; 0 for URIs without an authority
+	 */
+	public static long fingerprint(String uri, MessageDigest md) {
+		try {
+			return URIUtils.ComputeHash(new ByteScan.State(uri.getBytes("UTF-8")), md);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Reads the index of <code>dataFile</code>.
+	 */
+	public static HDFSRecordIndex read(FileSystem fs, Path dataFile) throws IOException {
+		DataInputStream in = fs.open(new Path(dataFile.toString() + INDEX_SUFFIX));
+		try {
+			if (in.readInt() != MAGIC)
+				throw new IOException("Not a record index: " + dataFile + INDEX_SUFFIX);
+			int version = in.readInt();
+			if (version != VERSION)
+				throw new IOException("Unknown record index version " + version);
+
+			SequenceFile.CompressionType compType = SequenceFile.CompressionType.valueOf(in.readUTF());
+			String codecClass = in.readUTF();
+			String valueClass = in.readUTF();
+			long count = in.readLong();
+			if (count > Integer.MAX_VALUE)
+				throw new IOException("Record index too large: " + count);
+
+			HDFSRecordIndex index = new HDFSRecordIndex(compType, codecClass, valueClass, (int)count);
+			for (int i = 0; i < count; i++) {
+				index.fingerprints[i] = in.readLong();
+				index.offsets[i] = in.readLong();
+				index.lengths[i] = in.readInt();
+			}
+			return index;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return number of records
+	 */
+	public int size() {
+		return offsets.length;
+	}
+
+	public long getFingerprint(int i) {
+		return fingerprints[i];
+	}
+
+	public long getOffset(int i) {
+		return offsets[i];
+	}
+
+	public int getLength(int i) {
+		return lengths[i];
+	}
+
+	public SequenceFile.CompressionType getCompressionType() {
+		return compType;
+	}
+
+	public String getValueClassName() {
+		return valueClass;
+	}
+
+	/**
+	 * @return number of the first record with <code>fingerprint</code>
+	 *  at or after <code>from</code>, or -1 if there is none
+	 */
+	public int indexOf(long fingerprint, int from) {
+		for (int i = from; i < fingerprints.length; i++) {
+			if (fingerprints[i] == fingerprint)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Reads record <code>i</code> of <code>dataFile</code>.  Uncompressed
+	 * and RECORD compressed records take one positioned read; BLOCK
+	 * compressed ones are found by decompressing their block.  An
+	 * {@link HDFSWriterDocument} value is given the header dictionary of
+	 * the file.
+	 *
+	 * @param dataFile the SequenceFile or MapFile directory
+	 * @param key set to the key of the record
+	 * @param value set to the value of the record
+	 */
+	public void readRecord(FileSystem fs, Path dataFile, int i, Writable key, Writable value,
+			Configuration conf) throws IOException {
+		if (fs.getFileStatus(dataFile).isDir())
+			dataFile = new Path(dataFile, MapFile.DATA_FILE_NAME);
+
+		if (compType == SequenceFile.CompressionType.BLOCK) {
+			readBlockRecord(fs, dataFile, offsets[i], lengths[i], key, value, conf);
+			return;
+		}
+
+		if (value instanceof HDFSWriterDocument)
+			loadHeaderDictionary(fs, dataFile, conf);
+
+		FSDataInputStream in = fs.open(dataFile);
+		try {
+			readRecord(in, offsets[i], lengths[i], key, value, conf);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads the uncompressed or RECORD compressed record of
+	 * <code>length</code> bytes at <code>offset</code> of <code>in</code>
+	 * with a positioned read.  <code>in</code> may be shared; its position
+	 * is left alone.  An {@link HDFSWriterDocument} value is given the
+	 * header dictionary only once {@link #loadHeaderDictionary} was called.
+	 */
+	public void readRecord(FSDataInputStream in, long offset, int length, Writable key,
+			Writable value, Configuration conf) throws IOException {
+		byte [] buf = new byte [ length ];
+		in.readFully(offset, buf, 0, length);
+
+		// The record may follow a sync marker
+		if (readInt(buf, 0) == SYNC_ESCAPE)
+			in.readFully(offset + SYNC_SIZE, buf, 0, length);
+
+		int recordLength = readInt(buf, 0);
+		int keyLength = readInt(buf, 4);
+		if (8 + recordLength != length || keyLength > recordLength)
+			throw new IOException("No record of " + length + " bytes at " + offset);
+
+		DataInputBuffer keyIn = new DataInputBuffer();
+		keyIn.reset(buf, 8, keyLength);
+		key.readFields(keyIn);
+
+		InputStream valueIn = new ByteArrayInputStream(buf, 8 + keyLength, recordLength - keyLength);
+		if (compType == SequenceFile.CompressionType.RECORD)
+			valueIn = getCodec(conf).createInputStream(valueIn);
+
+		if (headerDictionaryLoaded && value instanceof HDFSWriterDocument)
+			((HDFSWriterDocument)value).setHeaderDictionary(headerDictionary);
+		value.readFields(new DataInputStream(valueIn));
+	}
+
+	/**
+	 * Loads the header dictionary of <code>dataFile</code> from its
+	 * metadata the first time it is called.
+	 *
+	 * @return the dictionary, or null if the file has none
+	 */
+	public HDFSHeaderDictionary loadHeaderDictionary(FileSystem fs, Path dataFile,
+			Configuration conf) throws IOException {
+		if (headerDictionaryLoaded)
+			return headerDictionary;
+
+		if (fs.getFileStatus(dataFile).isDir())
+			dataFile = new Path(dataFile, MapFile.DATA_FILE_NAME);
+
+		SequenceFile.Reader reader = new SequenceFile.Reader(fs, dataFile, conf);
+		try {
+			headerDictionary = HDFSHeaderDictionary.fromMetadata(reader.getMetadata());
+		} finally {
+			reader.close();
+		}
+		headerDictionaryLoaded = true;
+		return headerDictionary;
+	}
+
+	private void readBlockRecord(FileSystem fs, Path dataFile, long blockOffset, int number,
+			Writable key, Writable value, Configuration conf) throws IOException {
+		SequenceFile.Reader reader = new SequenceFile.Reader(fs, dataFile, conf);
+		try {
+			if (value instanceof HDFSWriterDocument)
+				((HDFSWriterDocument)value).setHeaderDictionary(
+						HDFSHeaderDictionary.fromMetadata(reader.getMetadata()));
+			reader.seek(blockOffset);
+			for (int i = 0; i <= number; i++) {
+				// values before the one wanted are skipped, not deserialized
+				if (!reader.next(key))
+					throw new IOException("No record " + number + " in block at " + blockOffset);
+			}
+			reader.getCurrentValue(value);
+		} finally {
+			reader.close();
+		}
+	}
+
+	private CompressionCodec getCodec(Configuration conf) throws IOException {
+		try {
+			return (CompressionCodec)ReflectionUtils.newInstance(conf.getClassByName(codecClass), conf);
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Unknown codec " + codecClass);
+		}
+	}
+
+	private static int readInt(byte [] buf, int off) {
+		return ((buf[off] & 0xFF) << 24) | ((buf[off+1] & 0xFF) << 16) |
+			((buf[off+2] & 0xFF) << 8) | (buf[off+3] & 0xFF);
+	}
+
+	/**
+	 * Collects the entries of a file while it is written.  Not thread safe.
+	 */
+	public static class Builder {
+		private final SequenceFile.CompressionType compType;
+		private final CompressionCodec codec;
+		private final Class<?> valueClass;
+		private final DataOutputBuffer entries = new DataOutputBuffer();
+		private long count = 0;
+		private long lastOffset = -1;
+		private int blockRecord = 0;
+
+		public Builder(SequenceFile.CompressionType compType, CompressionCodec codec,
+				Class<?> valueClass) {
+			this.compType = compType;
+			this.codec = codec;
+			this.valueClass = valueClass;
+		}
+
+		/**
+		 * Adds the next record of the file.
+		 *
+		 * @param fingerprint URL fingerprint
+		 * @param offset length of the file before the record was appended
+		 * @param length bytes of the record: lengths, key and stored value
+		 */
+		public void add(long fingerprint, long offset, int length) throws IOException {
+			if (compType == SequenceFile.CompressionType.BLOCK) {
+				blockRecord = (offset == lastOffset) ? blockRecord + 1 : 0;
+				length = blockRecord;
+			}
+			lastOffset = offset;
+
+			entries.writeLong(fingerprint);
+			entries.writeLong(offset);
+			entries.writeInt(length);
+			count++;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Writes the index of <code>dataFile</code>.
+		 *
+		 * @return path of the index
+		 */
+		public Path write(FileSystem fs, Path dataFile) throws IOException {
+			if (entries.getLength() != count * ENTRY_SIZE)
+				throw new IOException("Record index of " + dataFile + " is inconsistent");
+
+			Path path = new Path(dataFile.toString() + INDEX_SUFFIX);
+			DataOutputStream out = fs.create(path, true);
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeUTF(compType.name());
+				out.writeUTF((codec == null) ? "" : codec.getClass().getName());
+				out.writeUTF(valueClass.getName());
+				out.writeLong(count);
+				out.write(entries.getData(), 0, entries.getLength());
+			} finally {
+				out.close();
+			}
+			return path;
+		}
+	}
+}
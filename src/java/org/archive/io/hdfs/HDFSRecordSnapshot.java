@@ -0,0 +1,236 @@
+/* HDFSRecordSnapshot
+ *
+ * $Id$
+ *
+ * Copyright (C) 2010 Zvents
+ *
+ * This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ * Heritrix is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * any later version.
+ *
+ * Heritrix is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with Heritrix; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.archive.io.hdfs;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.archive.io.RecordingInputStream;
+import org.archive.io.RecordingOutputStream;
+import org.archive.io.ReplayInputStream;
+
+
+/**
+ * A copy of everything {@link HDFSWriter} needs to write one record.
+ *
+ * The Recorder of a CrawlURI is reused by its toe thread as soon as the
+ * processor returns, so records handed off to another thread must be
+ * copied out of it first.  Responses larger than the spill threshold are
+ * copied to a temporary file rather than to memory; call {@link #discard}
+ * once the snapshot is written to delete it.
+ */
+public class HDFSRecordSnapshot {
+
+	private final String uri;
+	private final byte [] fieldBytes;
+	private final byte [] requestBytes;
+	private final byte [] responseBytes;
+	private final File responseFile;
+	private final long responseLength;
+	private byte [] payloadDigest = null;
+
+	public HDFSRecordSnapshot(String uri, byte [] fieldBytes, byte [] requestBytes,
+			byte [] responseBytes) {
+		this.uri = uri;
+		this.fieldBytes = fieldBytes;
+		this.requestBytes = requestBytes;
+		this.responseBytes = responseBytes;
+		this.responseFile = null;
+		this.responseLength = responseBytes.length;
+	}
+
+	/**
+	 * @param responseFile file holding the response
+	 * @param responseLength length of the response
+	 */
+	public HDFSRecordSnapshot(String uri, byte [] fieldBytes, byte [] requestBytes,
+			File responseFile, long responseLength) {
+		this.uri = uri;
+		this.fieldBytes = fieldBytes;
+		this.requestBytes = requestBytes;
+		this.responseBytes = new byte [0];
+		this.responseFile = responseFile;
+		this.responseLength = responseLength;
+	}
+
+	/**
+	 * Copies a record out of the recording streams.
+	 *
+	 * @param uri URI of crawled document
+	 * @param fieldBytes block of fields to write to output after header line
+	 * @param ros recording output stream that captured the GET request (for http*)
+	 * @param ris recording input stream that captured the response
+	 * @param spillThreshold size above which the response is copied to a file
+	 * @param spillDirectory where to create that file, or null for the
+	 *  default temporary directory
+	 * @return the snapshot
+	 * @throws IOException
+	 */
+	public static HDFSRecordSnapshot capture(String uri, byte [] fieldBytes,
+			RecordingOutputStream ros, RecordingInputStream ris, long spillThreshold,
+			File spillDirectory) throws IOException {
+		byte [] requestBytes = null;
+
+		if (HDFSWriter.isHttp(uri))
+			requestBytes = readFully(ros.getReplayInputStream());
+
+		ReplayInputStream response = ris.getReplayInputStream();
+		if (response.remaining() <= spillThreshold)
+			return new HDFSRecordSnapshot(uri, fieldBytes, requestBytes, readFully(response));
+
+		long length = response.remaining();
+		File file = File.createTempFile("hdfs-snapshot-", ".tmp", spillDirectory);
+		try {
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 65536);
+			try {
+				response.readFullyTo(out);
+			} finally {
+				response.close();
+				out.close();
+			}
+		} catch (IOException e) {
+			file.delete();
+			throw e;
+		}
+
+		return new HDFSRecordSnapshot(uri, fieldBytes, requestBytes, file, length);
+	}
+
+	/**
+	 * Copies the request and only the headers of the response, for a
+	 * revisit record of a duplicate.
+	 *
+	 * @param uri URI of crawled document
+	 * @param fieldBytes block of fields to write to output after header line
+	 * @param ros recording output stream that captured the GET request (for http*)
+	 * @param ris recording input stream that captured the response
+	 * @return the snapshot
+	 * @throws IOException
+	 */
+	public static HDFSRecordSnapshot captureHeaders(String uri, byte [] fieldBytes,
+			RecordingOutputStream ros, RecordingInputStream ris) throws IOException {
+		byte [] requestBytes = null;
+
+		if (HDFSWriter.isHttp(uri))
+			requestBytes = readFully(ros.getReplayInputStream());
+
+		ReplayInputStream response = ris.getReplayInputStream();
+		try {
+			long size = Math.max(0, Math.min(response.getHeaderSize(), response.remaining()));
+			if (size > Integer.MAX_VALUE)
+				throw new IOException("Response headers too large to snapshot: " + size);
+
+			byte [] headerBytes = new byte [ (int)size ];
+			readFully(response, headerBytes);
+			return new HDFSRecordSnapshot(uri, fieldBytes, requestBytes, headerBytes);
+		} finally {
+			response.close();
+		}
+	}
+
+	private static byte [] readFully(ReplayInputStream in) throws IOException {
+		try {
+			long size = in.remaining();
+			if (size > Integer.MAX_VALUE)
+				throw new IOException("Record too large to snapshot: " + size);
+
+			byte [] bytes = new byte [ (int)size ];
+			readFully(in, bytes);
+			return bytes;
+		} finally {
+			in.close();
+		}
+	}
+
+	static void readFully(InputStream in, byte [] bytes) throws IOException {
+		int offset = 0;
+		int numRead = 0;
+		while (offset < bytes.length
+				&& (numRead=in.read(bytes, offset, bytes.length-offset)) >= 0) {
+			offset += numRead;
+		}
+
+		if (offset < bytes.length)
+			throw new IOException("Read " + offset + " but expected " + bytes.length);
+	}
+
+	public String getUri() {
+		return uri;
+	}
+
+	public byte [] getFieldBytes() {
+		return fieldBytes;
+	}
+
+	/**
+	 * @return digest of the response body for the dedup table, or null
+	 */
+	public byte [] getPayloadDigest() {
+		return payloadDigest;
+	}
+
+	public void setPayloadDigest(byte [] payloadDigest) {
+		this.payloadDigest = payloadDigest;
+	}
+
+	/**
+	 * @return number of bytes held by this snapshot
+	 */
+	public long getSize() {
+		long size = fieldBytes.length + responseLength;
+		if (requestBytes != null)
+			size += requestBytes.length;
+		return size;
+	}
+
+	/**
+	 * @return a new replay of the request, or null if the request is not written
+	 */
+	public ReplayInputStream getRequestReplayStream() throws IOException {
+		if (requestBytes == null)
+			return null;
+		return new ReplayInputStream(requestBytes, requestBytes.length, null);
+	}
+
+	/**
+	 * @return a new replay of the response; it holds the file of a
+	 *  spilled response open until it is closed
+	 */
+	public ReplayInputStream getResponseReplayStream() throws IOException {
+		if (responseFile != null)
+			return new ReplayInputStream(responseBytes, responseLength, responseFile.getPath());
+		return new ReplayInputStream(responseBytes, responseBytes.length, null);
+	}
+
+	/**
+	 * Deletes the file holding the response, if any.
+	 */
+	public void discard() {
+		if (responseFile != null)
+			responseFile.delete();
+	}
+}
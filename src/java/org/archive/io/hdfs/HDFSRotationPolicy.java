@@ -0,0 +1,52 @@
+/* HDFSRotationPolicy
+ *
+ * $Id$
+ *
+ * Copyright (C) 2010 Zvents
+ *
+ * This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ * Heritrix is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * any later version.
+ *
+ * Heritrix is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with Heritrix; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.archive.io.hdfs;
+
+
+/**
+ * Decides when a pool member closes its current file and opens the next.
+ *
+ * Asked before every record is written, and every
+ * {@link #getCheckIntervalMs()} for files sitting idle.  Empty files are
+ * never rotated.  Implementations must be thread safe; one instance is
+ * shared by all members of a pool.
+ *
+ * @see HDFSParameters#getRotationPolicy()
+ */
+public interface HDFSRotationPolicy {
+
+	/**
+	 * @param length bytes in the file so far
+	 * @param records records in the file so far
+	 * @param ageMs time since the file was opened
+	 * @return true if the file should be closed before another record
+	 *  is written to it
+	 */
+	boolean shouldRotate(long length, long records, long ageMs);
+
+	/**
+	 * @return how often idle files should be checked, or 0 to check only
+	 *  when records are written
+	 */
+	long getCheckIntervalMs();
+}
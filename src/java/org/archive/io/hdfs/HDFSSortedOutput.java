@@ -0,0 +1,494 @@
+/* HDFSSortedOutput
+ *
+ * $Id$
+ *
+ * Copyright (C) 2010 Zvents
+ *
+ * This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ * Heritrix is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * any later version.
+ *
+ * Heritrix is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with Heritrix; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.archive.io.hdfs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.log4j.Logger;
+
+
+/**
+ * Collects the records of one file and writes them out sorted by key as
+ * a Hadoop MapFile.
+ *
+ * Keys are serialized {@link Text} unless another key class is given,
+ * and compare with the raw comparator registered for their class, the
+ * way MapFile readers compare them.  Records are held in memory until
+ * they take up the memory budget, then sorted and written to a run file;
+ * records larger than half the budget go straight to a run of their own.
+ * At the end the runs and the records still in memory are merged into
+ * the data and index files.  Records with equal keys keep the order they
+ * were added in.
+ *
+ * Values are kept in the form the data file expects them in, so with
+ * RECORD compression they are added already compressed.  Payload digests
+ * of the records travel with them and go into the dedup table once the
+ * records are in the data file.  Not thread safe.
+ */
+public class HDFSSortedOutput {
+
+	private final Logger LOG = Logger.getLogger(this.getClass().getName());
+
+	/**
+	 * Rough per record cost of the entry, the arrays and the list slot
+	 */
+	private static final int ENTRY_OVERHEAD = 64;
+
+	private final Class<? extends WritableComparable<?>> keyClass;
+	private final RawComparator<?> keyOrder;
+
+	private final Comparator<Entry> entryOrder = new Comparator<Entry>() {
+		public int compare(Entry a, Entry b) {
+			return keyOrder.compare(a.key, 0, a.key.length, b.key, 0, b.key.length);
+		}
+	};
+
+	private final long memoryBudget;
+	private final File directory;
+
+	private List<Entry> entries = new ArrayList<Entry>();
+	private long memoryBytes = 0;
+	private final List<File> runs = new ArrayList<File>();
+	private long records = 0;
+
+	/**
+	 * @param memoryBudget bytes of records to hold before writing a run
+	 * @param directory where to create run files, or null for the default
+	 *  temporary directory
+	 */
+	public HDFSSortedOutput(long memoryBudget, File directory) {
+		this(memoryBudget, directory, Text.class);
+	}
+
+	/**
+	 * @param keyClass class of the serialized keys
+	 * @see #HDFSSortedOutput(long, File)
+	 */
+	public HDFSSortedOutput(long memoryBudget, File directory,
+			Class<? extends WritableComparable<?>> keyClass) {
+		this.memoryBudget = memoryBudget;
+		this.directory = directory;
+		this.keyClass = keyClass;
+		this.keyOrder = WritableComparator.get(keyClass);
+	}
+
+	/**
+	 * Adds a record.
+	 *
+	 * @param key serialized key
+	 * @param keyLength length of the key
+	 * @param value the value
+	 * @param compressed true to take the compressed bytes of the value
+	 * @param fingerprint URL fingerprint for the record index
+	 * @param digest payload digest for the dedup table, or null
+	 */
+	public void add(byte [] key, int keyLength, SequenceFile.ValueBytes value,
+			boolean compressed, long fingerprint, byte [] digest) throws IOException {
+		int size = value.getSize();
+		records++;
+
+		if (size > memoryBudget / 2) {
+			spill();
+			writeRun(key, keyLength, value, compressed, fingerprint, digest);
+			return;
+		}
+
+		byte [] data = new byte [ size ];
+		ArrayOutputStream out = new ArrayOutputStream(data);
+		if (compressed)
+			value.writeCompressedBytes(new DataOutputStream(out));
+		else
+			value.writeUncompressedBytes(new DataOutputStream(out));
+		if (out.count != size)
+			throw new IOException("Value of " + size + " bytes wrote " + out.count);
+
+		entries.add(new Entry(Arrays.copyOf(key, keyLength), data, fingerprint, digest));
+		memoryBytes += keyLength + size + ENTRY_OVERHEAD + ((digest == null) ? 0 : digest.length);
+
+		if (memoryBytes >= memoryBudget)
+			spill();
+	}
+
+	/**
+	 * @return number of records added
+	 */
+	public long getRecords() {
+		return records;
+	}
+
+	/**
+	 * @return number of run files written so far
+	 */
+	public int getRuns() {
+		return runs.size();
+	}
+
+	/**
+	 * Sorts the records in memory and writes them to a new run.
+	 */
+	private void spill() throws IOException {
+		if (entries.isEmpty())
+			return;
+
+		Collections.sort(entries, entryOrder);
+
+		DataOutputStream out = createRun();
+		try {
+			for (Entry entry : entries) {
+				out.writeLong(entry.fingerprint);
+				writeDigest(out, entry.digest);
+				out.writeInt(entry.key.length);
+				out.write(entry.key);
+				out.writeInt(entry.value.length);
+				out.write(entry.value);
+			}
+		} finally {
+			out.close();
+		}
+
+		entries = new ArrayList<Entry>();
+		memoryBytes = 0;
+	}
+
+	/**
+	 * Writes a single record to a new run without holding it in memory.
+	 */
+	private void writeRun(byte [] key, int keyLength, SequenceFile.ValueBytes value,
+			boolean compressed, long fingerprint, byte [] digest) throws IOException {
+		DataOutputStream out = createRun();
+		try {
+			out.writeLong(fingerprint);
+			writeDigest(out, digest);
+			int start = out.size();
+			out.writeInt(keyLength);
+			out.write(key, 0, keyLength);
+			out.writeInt(value.getSize());
+			if (compressed)
+				value.writeCompressedBytes(out);
+			else
+				value.writeUncompressedBytes(out);
+			if (out.size() != start + 8 + keyLength + value.getSize())
+				throw new IOException("Value of " + value.getSize() + " bytes wrote " +
+						(out.size() - start - 8 - keyLength));
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void writeDigest(DataOutputStream out, byte [] digest) throws IOException {
+		if (digest == null) {
+			out.writeByte(0);
+		} else {
+			out.writeByte(digest.length);
+			out.write(digest);
+		}
+	}
+
+	private DataOutputStream createRun() throws IOException {
+		File file = File.createTempFile("hdfs-sort-", ".run", directory);
+		runs.add(file);
+		return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+	}
+
+	/**
+	 * Merges everything added into a MapFile.  Every
+	 * <code>indexInterval</code>th key goes into the index along with the
+	 * position of its record in the data file, as MapFile.Writer does it.
+	 *
+	 * @param data writer of the data file
+	 * @param index writer of the index file, with keys of the key class
+	 *  and LongWritable values
+	 * @param indexInterval keys per index entry
+	 * @param recordIndex collects the offsets of the records, or null
+	 * @param dedupFile takes the payload digests of the records, or null
+	 */
+	public void writeTo(SequenceFile.Writer data, SequenceFile.Writer index,
+			int indexInterval, HDFSRecordIndex.Builder recordIndex,
+			HDFSDedupTable.FileRecorder dedupFile) throws IOException {
+		Collections.sort(entries, entryOrder);
+
+		PriorityQueue<Cursor> queue = new PriorityQueue<Cursor>(runs.size() + 1);
+		List<Cursor> cursors = new ArrayList<Cursor>(runs.size() + 1);
+
+		Writable indexKey = ReflectionUtils.newInstance(keyClass, null);
+		LongWritable position = new LongWritable();
+		DataInputBuffer keyIn = new DataInputBuffer();
+		long count = 0;
+
+		try {
+			for (int i = 0; i < runs.size(); i++)
+				cursors.add(new RunCursor(i, runs.get(i)));
+			cursors.add(new MemoryCursor(runs.size(), entries));
+
+			for (Cursor cursor : cursors) {
+				if (cursor.next())
+					queue.add(cursor);
+			}
+
+			while (!queue.isEmpty()) {
+				Cursor cursor = queue.poll();
+
+				if (count % indexInterval == 0) {
+					keyIn.reset(cursor.key, cursor.keyLength);
+					indexKey.readFields(keyIn);
+					position.set(data.getLength());
+					index.append(indexKey, position);
+				}
+
+				long offset = data.getLength();
+				data.appendRaw(cursor.key, 0, cursor.keyLength, cursor);
+				if (recordIndex != null)
+					recordIndex.add(cursor.fingerprint, offset, 8 + cursor.keyLength + cursor.getSize());
+				if (dedupFile != null)
+					dedupFile.add(cursor.digest, offset, 8 + cursor.keyLength + cursor.getSize());
+				count++;
+
+				if (cursor.next())
+					queue.add(cursor);
+			}
+		} finally {
+			for (Cursor cursor : cursors)
+				cursor.close();
+		}
+
+		if (count != records)
+			throw new IOException("Merged " + count + " of " + records + " records");
+	}
+
+	/**
+	 * Deletes the runs and drops the records in memory.
+	 */
+	public void discard() {
+		for (File run : runs) {
+			if (!run.delete())
+				LOG.warn("Failed to delete " + run);
+		}
+		runs.clear();
+		entries = new ArrayList<Entry>();
+		memoryBytes = 0;
+	}
+
+	private static class Entry {
+		final byte [] key;
+		final byte [] value;
+		final long fingerprint;
+		final byte [] digest;
+
+		Entry(byte [] key, byte [] value, long fingerprint, byte [] digest) {
+			this.key = key;
+			this.value = value;
+			this.fingerprint = fingerprint;
+			this.digest = digest;
+		}
+	}
+
+	/**
+	 * Current record of a sorted source.  Ties go to the lower order so
+	 * that older runs come first.
+	 */
+	private abstract class Cursor implements SequenceFile.ValueBytes, Comparable<Cursor> {
+		final int order;
+		byte [] key = new byte [ 256 ];
+		int keyLength = 0;
+		long fingerprint = 0;
+		byte [] digest = null;
+
+		Cursor(int order) {
+			this.order = order;
+		}
+
+		abstract boolean next() throws IOException;
+
+		void close() {
+		}
+
+		public int compareTo(Cursor other) {
+			int cmp = keyOrder.compare(key, 0, keyLength, other.key, 0, other.keyLength);
+			if (cmp != 0)
+				return cmp;
+			return (order < other.order) ? -1 : ((order == other.order) ? 0 : 1);
+		}
+
+		public void writeCompressedBytes(DataOutputStream out) throws IOException {
+			writeUncompressedBytes(out);
+		}
+	}
+
+	private class MemoryCursor extends Cursor {
+		private final List<Entry> entries;
+		private int next = 0;
+		private byte [] value = null;
+
+		MemoryCursor(int order, List<Entry> entries) {
+			super(order);
+			this.entries = entries;
+		}
+
+		boolean next() {
+			if (next == entries.size())
+				return false;
+
+			Entry entry = entries.get(next++);
+			key = entry.key;
+			keyLength = entry.key.length;
+			fingerprint = entry.fingerprint;
+			digest = entry.digest;
+			value = entry.value;
+			return true;
+		}
+
+		public int getSize() {
+			return value.length;
+		}
+
+		public void writeUncompressedBytes(DataOutputStream out) throws IOException {
+			out.write(value);
+		}
+	}
+
+	private class RunCursor extends Cursor {
+		private final File file;
+		private final DataInputStream in;
+		private int valueLength = 0;
+		private int valueRemaining = 0;
+		private byte [] chunk = null;
+
+		RunCursor(int order, File file) throws IOException {
+			super(order);
+			this.file = file;
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+		}
+
+		boolean next() throws IOException {
+			while (valueRemaining > 0) {
+				int skipped = in.skipBytes(valueRemaining);
+				if (skipped <= 0)
+					throw new EOFException("Run " + file + " truncated");
+				valueRemaining -= skipped;
+			}
+
+			try {
+				fingerprint = in.readLong();
+			} catch (EOFException e) {
+				return false;
+			}
+
+			int digestLength = in.readUnsignedByte();
+			if (digestLength == 0) {
+				digest = null;
+			} else {
+				digest = new byte [ digestLength ];
+				in.readFully(digest);
+			}
+
+			keyLength = in.readInt();
+
+			if (key.length < keyLength)
+				key = new byte [ Math.max(keyLength, 2 * key.length) ];
+			in.readFully(key, 0, keyLength);
+
+			valueLength = in.readInt();
+			valueRemaining = valueLength;
+			return true;
+		}
+
+		public int getSize() {
+			return valueLength;
+		}
+
+		public void writeUncompressedBytes(DataOutputStream out) throws IOException {
+			if (valueRemaining != valueLength)
+				throw new IOException("Value of run " + file + " already read");
+
+			if (chunk == null)
+				chunk = new byte [ 65536 ];
+
+			while (valueRemaining > 0) {
+				int len = Math.min(valueRemaining, chunk.length);
+				in.readFully(chunk, 0, len);
+				out.write(chunk, 0, len);
+				valueRemaining -= len;
+			}
+		}
+
+		@Override
+		void close() {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// nothing left to read
+			}
+		}
+	}
+
+	/**
+	 * Writes into an array that was sized for the value up front
+	 */
+	private static class ArrayOutputStream extends OutputStream {
+		private final byte [] buf;
+		int count = 0;
+
+		ArrayOutputStream(byte [] buf) {
+			this.buf = buf;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (count == buf.length)
+				throw new IOException("Value longer than its declared size");
+			buf[count++] = (byte)b;
+		}
+
+		@Override
+		public void write(byte [] b, int off, int len) throws IOException {
+			if (len > buf.length - count)
+				throw new IOException("Value longer than its declared size");
+			System.arraycopy(b, off, buf, count, len);
+			count += len;
+		}
+	}
+}
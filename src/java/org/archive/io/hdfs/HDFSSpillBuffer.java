@@ -0,0 +1,254 @@
+/* HDFSSpillBuffer
+ *
+ * $Id$
+ *
+ * Copyright (C) 2010 Zvents
+ *
+ * This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ * Heritrix is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * any later version.
+ *
+ * Heritrix is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with Heritrix; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.archive.io.hdfs;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Output stream that collects bytes in a buffer from the
+ * {@link HDFSBufferPool} until they would exceed a threshold, and from
+ * then on in a temporary file.  Heap usage per record is thereby bounded
+ * by the threshold, however large the record gets.  Records also go to
+ * the file when the pool has no memory left.
+ *
+ * Instances are reusable; {@link #reset} gives back the buffer and
+ * deletes the file.  Not thread safe.
+ */
+public class HDFSSpillBuffer extends OutputStream {
+
+	private final Logger LOG = Logger.getLogger(this.getClass().getName());
+
+	private static final int MIN_BUFFER_SIZE = 65536;
+
+	private final HDFSBufferPool pool;
+	private final long threshold;
+	private final File directory;
+
+	private ByteBuffer buffer = null;
+	private File file = null;
+	private OutputStream fileOut = null;
+	private long length = 0;
+
+	/**
+	 * @param pool pool to take the in-memory buffer from
+	 * @param threshold size above which the contents go to a file
+	 * @param directory where to create the file, or null for the
+	 *  default temporary directory
+	 */
+	public HDFSSpillBuffer(HDFSBufferPool pool, long threshold, File directory) {
+		this.pool = pool;
+		this.threshold = threshold;
+		this.directory = directory;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		reserve(1);
+
+		if (fileOut != null)
+			fileOut.write(b);
+		else
+			buffer.put((byte)b);
+
+		length++;
+	}
+
+	@Override
+	public void write(byte [] b, int off, int len) throws IOException {
+		reserve(len);
+
+		if (fileOut != null)
+			fileOut.write(b, off, len);
+		else
+			buffer.put(b, off, len);
+
+		length += len;
+	}
+
+	/**
+	 * Reads exactly <code>count</code> bytes from <code>in</code>.
+	 */
+	public void readFrom(InputStream in, long count) throws IOException {
+		reserve(count);
+
+		byte [] chunk = null;
+		long total = 0;
+
+		while (total < count) {
+			int len = (int)Math.min(count - total, 65536);
+			int numRead;
+
+			if (fileOut == null && buffer.hasArray()) {
+				numRead = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), len);
+				if (numRead > 0)
+					buffer.position(buffer.position() + numRead);
+			} else {
+				if (chunk == null)
+					chunk = new byte [ 65536 ];
+				numRead = in.read(chunk, 0, len);
+				if (numRead > 0) {
+					if (fileOut != null)
+						fileOut.write(chunk, 0, numRead);
+					else
+						buffer.put(chunk, 0, numRead);
+				}
+			}
+
+			if (numRead < 0)
+				break;
+			total += numRead;
+			length += numRead;
+		}
+
+		if (total != count)
+			throw new IOException("Read " + total + " but expected " + count);
+	}
+
+	/**
+	 * Makes room for <code>count</code> more bytes, spilling to a file if
+	 * they would take the contents over the threshold or the pool cannot
+	 * provide the memory.
+	 */
+	public void reserve(long count) throws IOException {
+		if (fileOut != null)
+			return;
+
+		long required = length + count;
+
+		if (required > threshold) {
+			spill();
+		} else if (buffer == null) {
+			buffer = pool.acquire((int)Math.max(required, MIN_BUFFER_SIZE));
+			if (buffer == null)
+				spill();
+		} else if (buffer.capacity() < required) {
+			ByteBuffer newBuf = pool.acquire((int)Math.min(Math.max(required, 2L * buffer.capacity()), threshold));
+			if (newBuf == null) {
+				spill();
+				return;
+			}
+			buffer.flip();
+			newBuf.put(buffer);
+			pool.release(buffer);
+			buffer = newBuf;
+		}
+	}
+
+	private void spill() throws IOException {
+		file = File.createTempFile("hdfs-spill-", ".tmp", directory);
+		fileOut = new BufferedOutputStream(new FileOutputStream(file), 65536);
+
+		if (buffer != null) {
+			HDFSBufferPool.writeTo(buffer, (int)length, fileOut);
+			pool.release(buffer);
+			buffer = null;
+		}
+	}
+
+	/**
+	 * @return number of bytes written since the last reset
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	public boolean isSpilled() {
+		return file != null;
+	}
+
+	/**
+	 * Flushes and returns the spill file, or null if the contents are
+	 * still in memory.
+	 */
+	public File getFile() throws IOException {
+		if (fileOut != null)
+			fileOut.flush();
+		return file;
+	}
+
+	/**
+	 * Copies the contents to <code>out</code>.
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		if (file == null) {
+			if (buffer != null)
+				HDFSBufferPool.writeTo(buffer, (int)length, out);
+			return;
+		}
+
+		fileOut.flush();
+		InputStream in = new FileInputStream(file);
+		try {
+			byte [] chunk = new byte [ 65536 ];
+			long remaining = length;
+			while (remaining > 0) {
+				int numRead = in.read(chunk, 0, (int)Math.min(remaining, chunk.length));
+				if (numRead < 0)
+					throw new IOException("Spill file " + file + " truncated");
+				out.write(chunk, 0, numRead);
+				remaining -= numRead;
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Discards the contents, giving back the buffer and deleting the file.
+	 */
+	public void reset() {
+		if (buffer != null) {
+			pool.release(buffer);
+			buffer = null;
+		}
+
+		if (file != null) {
+			try {
+				fileOut.close();
+			} catch (IOException e) {
+				LOG.warn("Failed to close " + file + ": " + e.getMessage());
+			}
+			if (!file.delete())
+				LOG.warn("Failed to delete " + file);
+			file = null;
+			fileOut = null;
+		}
+
+		length = 0;
+	}
+
+	@Override
+	public void close() {
+		reset();
+	}
+}
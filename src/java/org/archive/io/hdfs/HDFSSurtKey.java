@@ -0,0 +1,142 @@
+/* HDFSSurtKey
+ *
+ * $Id$
+ *
+ * Copyright (C) 2010 Zvents
+ *
+ * This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ * Heritrix is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * any later version.
+ *
+ * Heritrix is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with Heritrix; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.archive.io.hdfs;
+
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+import org.archive.io.hdfs.util.URIUtils;
+
+
+/**
+ * Record key holding the SURT form of the URL (see
+ * {@link URIUtils#getSurtKey}) as raw bytes: a vint length followed by
+ * the UTF-8 bytes.  Keys of one site sort together.  Unlike
+ * {@link org.apache.hadoop.io.Text} the bytes are never decoded or
+ * validated, and the raw comparator registered for the class compares
+ * serialized keys byte by byte in place.
+ */
+public class HDFSSurtKey implements WritableComparable<HDFSSurtKey> {
+
+	private static final byte [] EMPTY = new byte [ 0 ];
+
+	private byte [] bytes = EMPTY;
+	private int length = 0;
+
+	public HDFSSurtKey() {
+	}
+
+	public HDFSSurtKey(String uri) {
+		set(uri);
+	}
+
+	/**
+	 * Writes the key of <code>uri</code> the way {@link #write} would
+	 */
+	public static void write(DataOutput out, String uri) throws IOException {
+		byte [] surt = URIUtils.getSurtKey(uri).getBytes("UTF-8");
+		WritableUtils.writeVInt(out, surt.length);
+		out.write(surt);
+	}
+
+	public void set(String uri) {
+		try {
+			bytes = URIUtils.getSurtKey(uri).getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		length = bytes.length;
+	}
+
+	/**
+	 * @return the key bytes; only the first {@link #getLength()} are valid
+	 */
+	public byte [] getBytes() {
+		return bytes;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public void write(DataOutput out) throws IOException {
+		WritableUtils.writeVInt(out, length);
+		out.write(bytes, 0, length);
+	}
+
+	public void readFields(DataInput in) throws IOException {
+		length = WritableUtils.readVInt(in);
+		if (bytes.length < length)
+			bytes = new byte [ length ];
+		in.readFully(bytes, 0, length);
+	}
+
+	public int compareTo(HDFSSurtKey other) {
+		return WritableComparator.compareBytes(bytes, 0, length, other.bytes, 0, other.length);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return (o instanceof HDFSSurtKey) && compareTo((HDFSSurtKey)o) == 0;
+	}
+
+	@Override
+	public int hashCode() {
+		return WritableComparator.hashBytes(bytes, length);
+	}
+
+	@Override
+	public String toString() {
+		try {
+			return new String(bytes, 0, length, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Compares serialized keys without deserializing them
+	 */
+	public static class Comparator extends WritableComparator {
+		public Comparator() {
+			super(HDFSSurtKey.class);
+		}
+
+		@Override
+		public int compare(byte [] b1, int s1, int l1, byte [] b2, int s2, int l2) {
+			int n1 = WritableUtils.decodeVIntSize(b1[s1]);
+			int n2 = WritableUtils.decodeVIntSize(b2[s2]);
+			return compareBytes(b1, s1 + n1, l1 - n1, b2, s2 + n2, l2 - n2);
+		}
+	}
+
+	static {
+		WritableComparator.define(HDFSSurtKey.class, new Comparator());
+	}
+}
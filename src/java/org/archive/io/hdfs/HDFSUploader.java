@@ -0,0 +1,294 @@
+/* HDFSUploader
+ *
+ * $Id$
+ *
+ * Copyright (C) 2010 Zvents
+ *
+ * This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ * Heritrix is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * any later version.
+ *
+ * Heritrix is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with Heritrix; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.archive.io.hdfs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.archive.io.ArchiveFileConstants;
+
+
+/**
+ * Copies finished files from the local staging directory into HDFS.
+ *
+ * In local staging mode the pool members write their SequenceFiles to
+ * local disk and hand each one to the uploader once it is closed and
+ * renamed.  Uploads run on a fixed set of threads.  A file is copied to
+ * its final directory under the <code>.open</code> name, renamed when
+ * complete and only then deleted locally.  Failed uploads are retried
+ * until they succeed, so HDFS outages only delay the data; the crawl
+ * keeps writing locally.  A file whose final name is already taken by a
+ * file of another length is not uploaded but renamed locally with the
+ * <code>.invalid</code> suffix.  Finished files left in the staging
+ * directory by an earlier run are uploaded on startup.  MapFile
+ * directories are uploaded as a whole the same way.
+ *
+ * The uploader belongs to the {@link HDFSClientContext} of a pool.
+ */
+public class HDFSUploader implements ArchiveFileConstants {
+
+	private final Logger LOG = Logger.getLogger(this.getClass().getName());
+
+	private final Configuration conf;
+	private final FileSystem localFs;
+	private final Path stagingDir;
+	private final Path outputDir;
+	private final short replication;
+	private final long blockSize;
+	private final long retryMs;
+	private final long closeWaitMs;
+	private final ScheduledThreadPoolExecutor executor;
+	private final AtomicInteger pending = new AtomicInteger();
+
+	/**
+	 * HDFS, connected on first upload
+	 */
+	private FileSystem fs = null;
+
+	/**
+	 * @param parameters settings of the local staging directory, the HDFS
+	 *  output directory and the uploads
+	 * @param conf Hadoop configuration naming the file system to upload to
+	 * @throws IOException if the staging directory cannot be created
+	 */
+	public HDFSUploader(HDFSParameters parameters, Configuration conf) throws IOException {
+		this.conf = conf;
+
+		this.localFs = FileSystem.getLocal(conf).getRaw();
+		this.stagingDir = new Path(parameters.getLocalStagingPath());
+		this.outputDir = new Path(parameters.getHdfsOutputPath());
+		this.replication = (short)parameters.getHdfsReplication();
+		this.blockSize = parameters.getHdfsBlockSize();
+		this.retryMs = parameters.getUploadRetryMs();
+		this.closeWaitMs = parameters.getUploadCloseWaitMs();
+
+		localFs.mkdirs(stagingDir);
+
+		final AtomicInteger threadNo = new AtomicInteger();
+		this.executor = new ScheduledThreadPoolExecutor(parameters.getUploadThreads(),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "HDFSUploader-" + threadNo.getAndIncrement());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+
+		recover();
+	}
+
+	/**
+	 * @return raw local file system the staged files are written to
+	 */
+	public FileSystem getLocalFileSystem() {
+		return localFs;
+	}
+
+	public Path getStagingDir() {
+		return stagingDir;
+	}
+
+	/**
+	 * Queues a closed file of the staging directory for upload.
+	 */
+	public void upload(Path localFile) {
+		pending.incrementAndGet();
+		schedule(new Upload(localFile), 0);
+	}
+
+	/**
+	 * Runs <code>upload</code> after <code>delayMs</code>, unless the
+	 * uploader is closed; the file is then left for the next run.
+	 */
+	private void schedule(Upload upload, long delayMs) {
+		try {
+			executor.schedule(upload, delayMs, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			pending.decrementAndGet();
+			LOG.warn("Uploader closed, leaving " + upload.localFile + " for the next run");
+		}
+	}
+
+	/**
+	 * @return number of files waiting to be uploaded
+	 */
+	public int getPending() {
+		return pending.get();
+	}
+
+	/**
+	 * Waits for the queued uploads to finish.  Files that are still not
+	 * uploaded after <code>maxWaitMs</code> stay in the staging directory
+	 * and are picked up by the next run.
+	 *
+	 * @return true if everything was uploaded
+	 */
+	public boolean awaitUploads(long maxWaitMs) {
+		long deadline = System.currentTimeMillis() + maxWaitMs;
+
+		try {
+			while (pending.get() > 0 && System.currentTimeMillis() < deadline)
+				Thread.sleep(100);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		if (pending.get() > 0) {
+			LOG.warn(pending.get() + " files not uploaded from " + stagingDir);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Waits up to uploadCloseWaitMs for the queued uploads, then stops the
+	 * upload threads.  Files not uploaded by then, or handed over later,
+	 * stay in the staging directory for the next run.
+	 */
+	public void close() {
+		awaitUploads(closeWaitMs);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Queues finished files left behind by an earlier run.  Files still
+	 * carrying the <code>.open</code> suffix were never closed, and those
+	 * with the <code>.invalid</code> suffix failed to close or to upload;
+	 * both are left alone.
+	 */
+	private void recover() throws IOException {
+		FileStatus [] files = localFs.listStatus(stagingDir);
+		if (files == null)
+			return;
+
+		for (FileStatus status : files) {
+			Path path = status.getPath();
+
+			if (path.getName().endsWith(OCCUPIED_SUFFIX) || path.getName().endsWith(INVALID_SUFFIX)) {
+				LOG.warn("Not uploading unfinished file " + path);
+				continue;
+			}
+
+			LOG.info("Uploading " + path + " left by an earlier run");
+			upload(path);
+		}
+	}
+
+	private synchronized FileSystem getFileSystem() throws IOException {
+		if (fs == null) {
+			FileSystem hdfs = FileSystem.get(conf);
+			hdfs.mkdirs(outputDir);
+			fs = hdfs;
+		}
+		return fs;
+	}
+
+	private class Upload implements Runnable {
+
+		private final Path localFile;
+
+		Upload(Path localFile) {
+			this.localFile = localFile;
+		}
+
+		public void run() {
+			try {
+				copy();
+				pending.decrementAndGet();
+			} catch (IOException e) {
+				LOG.warn("Failed upload of " + localFile + ", retrying in " + retryMs +
+						"ms: " + e.getMessage());
+				schedule(this, retryMs);
+			} catch (RuntimeException e) {
+				// Rescheduled too: dropping the task would leave it pending forever
+				LOG.error("Failed upload of " + localFile + ", retrying in " + retryMs + "ms", e);
+				schedule(this, retryMs);
+			}
+		}
+
+		private void copy() throws IOException {
+			FileSystem hdfs = getFileSystem();
+			Path openPath = new Path(outputDir, localFile.getName() + OCCUPIED_SUFFIX);
+			Path finalPath = new Path(outputDir, localFile.getName());
+
+			boolean isDir = localFs.getFileStatus(localFile).isDir();
+
+			if (hdfs.exists(finalPath)) {
+				if (isDir ||
+						hdfs.getFileStatus(finalPath).getLen() == localFs.getFileStatus(localFile).getLen()) {
+					// Uploaded before, but not deleted locally
+					localFs.delete(localFile, true);
+					return;
+				}
+
+				// Another file of the same name; the rename would fail on every retry
+				Path invalidPath = new Path(localFile.getParent(), localFile.getName() + INVALID_SUFFIX);
+				LOG.error("Not uploading " + localFile + ", " + finalPath +
+						" exists with a different length; moving it to " + invalidPath);
+				if (!localFs.rename(localFile, invalidPath))
+					LOG.warn("Failed rename of " + localFile);
+				return;
+			}
+
+			if (isDir) {
+				hdfs.delete(openPath, true);
+				for (FileStatus child : localFs.listStatus(localFile))
+					copyFile(hdfs, child.getPath(), new Path(openPath, child.getPath().getName()));
+			} else {
+				copyFile(hdfs, localFile, openPath);
+			}
+
+			if (!hdfs.rename(openPath, finalPath))
+				throw new IOException("Failed rename of " + openPath);
+
+			if (!localFs.delete(localFile, true))
+				LOG.warn("Failed to delete uploaded file " + localFile);
+
+			LOG.info("Uploaded " + finalPath);
+		}
+
+		private void copyFile(FileSystem hdfs, Path from, Path to) throws IOException {
+			InputStream in = localFs.open(from);
+			try {
+				OutputStream out = hdfs.create(to, true,
+						conf.getInt("io.file.buffer.size", 4096), replication,
+						(blockSize > 0) ? blockSize : hdfs.getDefaultBlockSize());
+				IOUtils.copyBytes(in, out, conf, true);
+			} finally {
+				in.close();
+			}
+		}
+	}
+}
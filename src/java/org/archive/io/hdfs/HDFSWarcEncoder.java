@@ -0,0 +1,208 @@
+/* HDFSWarcEncoder
+ *
+ * $Id$
+ *
+ * Copyright (C) 2010 Zvents
+ *
+ * This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ * Heritrix is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * any later version.
+ *
+ * Heritrix is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with Heritrix; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.archive.io.hdfs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.UUID;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.archive.io.ReplayInputStream;
+
+
+/**
+ * Writes WARC 1.0 records, each compressed as a gzip member of its own,
+ * so that any record of a file can be read by seeking to its offset.
+ *
+ * Headers are passed as name/value pairs; WARC-Type, WARC-Record-ID,
+ * Content-Type and Content-Length are written by the encoder.  The
+ * deflater and buffers are reused from record to record.  Not thread
+ * safe; each writer has its own.
+ */
+public class HDFSWarcEncoder {
+
+	public static final String WARC_VERSION = "WARC/1.0";
+
+	public static final String CRLF = "\r\n";
+
+	private static final byte [] GZIP_HEADER = {
+		(byte)0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte)0xff
+	};
+
+	private static final byte [] RECORD_END = { '\r', '\n', '\r', '\n' };
+
+	private final Deflater deflater;
+	private final CRC32 crc = new CRC32();
+	private final byte [] buf = new byte [ 65536 ];
+	private final byte [] deflated = new byte [ 65536 ];
+	private final StringBuilder header = new StringBuilder(1024);
+
+	private OutputStream out = null;
+	private long memberBytes = 0;
+	private long bytesIn = 0;
+
+	/**
+	 * @param level deflate level, or -1 for the zlib default
+	 */
+	public HDFSWarcEncoder(int level) {
+		this.deflater = new Deflater(level, true);
+	}
+
+	/**
+	 * @return a new WARC-Record-ID
+	 */
+	public static String newRecordId() {
+		return "<urn:uuid:" + UUID.randomUUID() + ">";
+	}
+
+	/**
+	 * @return WARC-Date of a 14 digit timestamp
+	 */
+	public static String toWarcDate(String timestamp14) {
+		StringBuilder date = new StringBuilder(20);
+		date.append(timestamp14, 0, 4).append('-');
+		date.append(timestamp14, 4, 6).append('-');
+		date.append(timestamp14, 6, 8).append('T');
+		date.append(timestamp14, 8, 10).append(':');
+		date.append(timestamp14, 10, 12).append(':');
+		date.append(timestamp14, 12, 14).append('Z');
+		return date.toString();
+	}
+
+	/**
+	 * Writes a record whose block is <code>block</code>.
+	 *
+	 * @param headers name/value pairs of named fields to write after
+	 *  WARC-Type and WARC-Record-ID; null values are left out
+	 * @return bytes written to <code>out</code>
+	 */
+	public long write(OutputStream out, String type, String recordId, String [] headers,
+			String contentType, byte [] block) throws IOException {
+		begin(out, type, recordId, headers, contentType, block.length);
+		deflate(block, 0, block.length);
+		return finishMember();
+	}
+
+	/**
+	 * Writes a record whose block is the rest of <code>block</code>.
+	 *
+	 * @see #write(OutputStream, String, String, String[], String, byte[])
+	 */
+	public long write(OutputStream out, String type, String recordId, String [] headers,
+			String contentType, ReplayInputStream block) throws IOException {
+		long length = block.remaining();
+		begin(out, type, recordId, headers, contentType, length);
+
+		long n = 0;
+		for (int len; n < length && (len = block.read(buf, 0, (int)Math.min(buf.length, length - n))) > 0; ) {
+			deflate(buf, 0, len);
+			n += len;
+		}
+		if (n != length)
+			throw new IOException("Block of " + length + " bytes ended after " + n);
+
+		return finishMember();
+	}
+
+	private void begin(OutputStream out, String type, String recordId, String [] headers,
+			String contentType, long length) throws IOException {
+		this.out = out;
+		memberBytes = GZIP_HEADER.length;
+		out.write(GZIP_HEADER);
+		deflater.reset();
+		crc.reset();
+
+		header.setLength(0);
+		header.append(WARC_VERSION).append(CRLF);
+		appendField("WARC-Type", type);
+		appendField("WARC-Record-ID", recordId);
+		for (int i = 0; i + 1 < headers.length; i += 2)
+			appendField(headers[i], headers[i+1]);
+		appendField("Content-Type", contentType);
+		appendField("Content-Length", Long.toString(length));
+		header.append(CRLF);
+
+		// URIs and header values are not always ASCII
+		byte [] bytes = header.toString().getBytes("UTF-8");
+		deflate(bytes, 0, bytes.length);
+	}
+
+	private void appendField(String name, String value) {
+		if (value != null)
+			header.append(name).append(": ").append(value).append(CRLF);
+	}
+
+	private void deflate(byte [] b, int off, int len) throws IOException {
+		if (len == 0)
+			return;
+		crc.update(b, off, len);
+		deflater.setInput(b, off, len);
+		while (!deflater.needsInput())
+			drain();
+	}
+
+	private long finishMember() throws IOException {
+		deflate(RECORD_END, 0, RECORD_END.length);
+
+		deflater.finish();
+		while (!deflater.finished())
+			drain();
+
+		writeIntLE((int)crc.getValue());
+		writeIntLE(deflater.getTotalIn());
+		bytesIn += deflater.getBytesRead();
+		out = null;
+		return memberBytes;
+	}
+
+	private void drain() throws IOException {
+		int len = deflater.deflate(deflated, 0, deflated.length);
+		if (len > 0) {
+			out.write(deflated, 0, len);
+			memberBytes += len;
+		}
+	}
+
+	private void writeIntLE(int v) throws IOException {
+		out.write(v & 0xff);
+		out.write((v >>> 8) & 0xff);
+		out.write((v >>> 16) & 0xff);
+		out.write((v >>> 24) & 0xff);
+		memberBytes += 4;
+	}
+
+	/**
+	 * @return uncompressed bytes of all records written so far
+	 */
+	public long getBytesIn() {
+		return bytesIn;
+	}
+
+	/**
+	 * Frees the native deflater.  The encoder cannot be used afterwards.
+	 */
+	public void end() {
+		deflater.end();
+	}
+}
@@ -0,0 +1,246 @@
+/* HDFSWriteBehindQueue
+ *
+ * $Id$
+ *
+ * Copyright (C) 2010 Zvents
+ *
+ * This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ * Heritrix is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * any later version.
+ *
+ * Heritrix is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with Heritrix; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.archive.io.hdfs;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.archive.io.WriterPool;
+
+
+/**
+ * Bounded queue of {@link HDFSRecordSnapshot}s drained by a fixed set of
+ * flusher threads.
+ *
+ * Toe threads hand records off with {@link #offer} and go back to
+ * fetching.  Each flusher thread borrows one {@link HDFSWriter} from the
+ * pool and keeps it for its lifetime, so HDFS latency only stalls the
+ * flushers.  With a partitioned {@link HDFSWriterPool} a writer of the
+ * record's partition is borrowed for each record instead.  When the
+ * queue is full, {@link #offer} blocks the caller up to a maximum wait
+ * and then fails, which pushes back on the crawl instead of growing
+ * memory without bound.
+ */
+public class HDFSWriteBehindQueue {
+
+	private final Logger LOG = Logger.getLogger(this.getClass().getName());
+
+	/**
+	 * Receives the outcome of every record taken off the queue.
+	 * Called from the flusher threads.
+	 */
+	public interface Listener {
+		/**
+		 * @param snapshot record written
+		 * @param bytesWritten bytes the record added to the output,
+		 *  including the header of a file opened for it
+		 */
+		void recordWritten(HDFSRecordSnapshot snapshot, long bytesWritten);
+
+		void recordFailed(HDFSRecordSnapshot snapshot, IOException e);
+	}
+
+	/**
+	 * Longest close() waits to hand each flusher its shutdown marker
+	 */
+	private static final long CLOSE_WAIT_MS = 60000;
+
+	/**
+	 * Marker telling a flusher thread to exit
+	 */
+	private static final HDFSRecordSnapshot SHUTDOWN =
+		new HDFSRecordSnapshot("", new byte [0], null, new byte [0]);
+
+	private final WriterPool pool;
+	private final boolean partitioned;
+	private final Listener listener;
+	private final BlockingQueue<HDFSRecordSnapshot> queue;
+	private final Thread [] flushers;
+	private volatile boolean closed = false;
+
+	/**
+	 * @param pool pool to borrow writers from
+	 * @param listener listener for written and failed records
+	 * @param queueDepth maximum number of records waiting to be written
+	 * @param flusherCount number of flusher threads, at most the maximum
+	 *  number of active writers in <code>pool</code>
+	 */
+	public HDFSWriteBehindQueue(WriterPool pool, Listener listener, int queueDepth,
+			int flusherCount) {
+		this.pool = pool;
+		this.partitioned = (pool instanceof HDFSWriterPool) && ((HDFSWriterPool)pool).isPartitioned();
+		this.listener = listener;
+		this.queue = new ArrayBlockingQueue<HDFSRecordSnapshot>(queueDepth);
+		this.flushers = new Thread [ flusherCount ];
+
+		for (int i=0; i<flusherCount; i++) {
+			flushers[i] = new Thread(new Flusher(), "HDFSWriteBehind-" + i);
+			flushers[i].setDaemon(true);
+			flushers[i].start();
+		}
+	}
+
+	/**
+	 * Queues a record for writing.
+	 *
+	 * @param snapshot record to write
+	 * @param maxWaitMs how long to wait for room in the queue
+	 * @throws IOException if the queue stayed full for <code>maxWaitMs</code>
+	 *  or has been closed
+	 */
+	public void offer(HDFSRecordSnapshot snapshot, long maxWaitMs) throws IOException {
+		if (closed)
+			throw new IOException("Write-behind queue is closed");
+
+		try {
+			if (!queue.offer(snapshot, maxWaitMs, TimeUnit.MILLISECONDS))
+				throw new IOException("Write-behind queue full (" + queue.size() +
+						" records) for " + maxWaitMs + "ms");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for write-behind queue");
+		}
+	}
+
+	/**
+	 * @return number of records waiting to be written
+	 */
+	public int size() {
+		return queue.size();
+	}
+
+	/**
+	 * Stops accepting records, waits for everything already queued to be
+	 * written and returns the writers to the pool.  Gives up if the queue
+	 * does not drain within a minute per flusher.
+	 */
+	public void close() {
+		closed = true;
+
+		try {
+			for (int i=0; i<flushers.length; i++) {
+				if (!queue.offer(SHUTDOWN, CLOSE_WAIT_MS, TimeUnit.MILLISECONDS)) {
+					LOG.error("Write-behind queue not draining; " + queue.size() +
+							" records not written");
+					return;
+				}
+			}
+			for (int i=0; i<flushers.length; i++)
+				flushers[i].join(CLOSE_WAIT_MS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			LOG.warn("Interrupted draining write-behind queue; " + queue.size() +
+					" records not written");
+		}
+	}
+
+	private class Flusher implements Runnable {
+
+		private HDFSWriter writer = null;
+
+		public void run() {
+			try {
+				while (true) {
+					HDFSRecordSnapshot snapshot = queue.take();
+					if (snapshot == SHUTDOWN)
+						break;
+					try {
+						write(snapshot);
+					} catch (RuntimeException e) {
+						// from the listener or discard(); keep draining
+						LOG.error(e.getMessage(), e);
+					}
+				}
+			} catch (InterruptedException e) {
+				LOG.warn(Thread.currentThread().getName() + " interrupted");
+			} finally {
+				if (writer != null) {
+					try {
+						pool.returnFile(writer);
+					} catch (IOException e) {
+						LOG.error(e.getMessage(), e);
+					}
+				}
+			}
+		}
+
+		private void write(HDFSRecordSnapshot snapshot) {
+			try {
+				if (partitioned)
+					writer = (HDFSWriter)((HDFSWriterPool)pool).borrowFile(snapshot.getUri());
+				else if (writer == null)
+					writer = (HDFSWriter)pool.borrowFile();
+
+				long position = writer.getPosition();
+				long bytesWritten = 0;
+
+				writer.checkSize();
+
+				if (writer.getPosition() != position) {
+					// A new file was opened; count its header
+					position = writer.getPosition();
+					bytesWritten = position;
+				}
+
+				writer.write(snapshot);
+				bytesWritten += writer.getPosition() - position;
+
+				listener.recordWritten(snapshot, bytesWritten);
+			} catch (IOException e) {
+				invalidate();
+				listener.recordFailed(snapshot, e);
+			} catch (RuntimeException e) {
+				invalidate();
+				IOException e2 = new IOException("Failed to write " + snapshot.getUri());
+				e2.initCause(e);
+				listener.recordFailed(snapshot, e2);
+			} finally {
+				snapshot.discard();
+
+				if (partitioned && writer != null) {
+					try {
+						pool.returnFile(writer);
+					} catch (IOException e) {
+						LOG.error(e.getMessage(), e);
+					}
+					writer = null;
+				}
+			}
+		}
+
+		private void invalidate() {
+			if (writer != null) {
+				try {
+					// Invalidate this file (It gets a '.invalid' suffix).
+					pool.invalidateFile(writer);
+				} catch (IOException e) {
+					LOG.error(e.getMessage(), e);
+				}
+				writer = null;
+			}
+		}
+	}
+}
@@ -25,9 +25,14 @@
  */
 package org.archive.io.hdfs;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.SequenceFile;
 import org.apache.log4j.Logger;
 import org.archive.io.RecordingInputStream;
 import org.archive.io.RecordingOutputStream;
@@ -44,16 +49,76 @@ public class HDFSWriter extends HDFSWriterPoolMember {
 
 	public String HDFSWRITER_ID = "HDFSWriter/0.3";
 
-	@SuppressWarnings("unused")
 	private HDFSParameters _parameters;
 
 	public HDFSWriter(HDFSParameters parameters) throws IOException {
 		super(parameters);
 		this._parameters = parameters;
+		this.headerBytes = (HDFSWRITER_ID + CRLF).getBytes();
+		this.bypass = createBypass(parameters);
+	}
+
+	public HDFSWriter(AtomicInteger serialNo, HDFSParameters parameters,
+			HDFSClientContext context) throws IOException {
+		super(serialNo, parameters, context);
+		this._parameters = parameters;
+		this.headerBytes = (HDFSWRITER_ID + CRLF).getBytes();
+		this.bypass = createBypass(parameters);
 	}
 
-    private int mCaptureStreamCapacity = 262144;
-    private ByteArrayOutputStream mCaptureStream = new ByteArrayOutputStream(mCaptureStreamCapacity);
+	private HDFSCompressionBypass createBypass(HDFSParameters parameters) {
+		if (!parameters.isCompressionBypass() || parameters.isWarcOutput() ||
+				parameters.isSplitBody() ||
+				getContext().getCompressionType() == SequenceFile.CompressionType.NONE)
+			return null;
+		return new HDFSCompressionBypass(parameters);
+	}
+
+    /**
+     * Header line plus CRLF, encoded once
+     */
+    private final byte [] headerBytes;
+
+    /**
+     * Reusable value for streaming appends
+     */
+    private final HDFSWriterRecord record = new HDFSWriterRecord();
+
+    /**
+     * Picks the records that bypass compression, or null if all records
+     * go to the compressed file
+     */
+    private final HDFSCompressionBypass bypass;
+
+    /**
+     * Writes the records that bypass compression to their own uncompressed
+     * files.  Created on first use.
+     */
+    private HDFSWriter storedWriter = null;
+
+    /**
+     * Writes the bodies of split records to the files paired with ours.
+     * Created on first use.
+     */
+    private HDFSWriter bodyWriter = null;
+
+    /**
+     * Header parts longer than this are not encoded
+     */
+    private static final int MAX_HEADER_PART = 16384;
+
+    private static final String HTTP_RESPONSE_MIMETYPE = "application/http; msgtype=response";
+    private static final String HTTP_REQUEST_MIMETYPE = "application/http; msgtype=request";
+    private static final String WARC_PROFILE_IDENTICAL_PAYLOAD_DIGEST =
+    	"http://netpreserve.org/warc/1.0/revisit/identical-payload-digest";
+
+    /**
+     * Header part of the current record, collected for the header
+     * dictionary: header line, fields, request and response headers
+     */
+    private byte [] headerPart = null;
+    private int headerPartLength = 0;
+    private HDFSHeaderDictionary.Encoder headerEncoder = null;
 
 
     /**
@@ -66,67 +131,560 @@ public class HDFSWriter extends HDFSWriterPoolMember {
      */
     public void write(final CrawlURI curi, byte [] fieldBytes, RecordingOutputStream ros,
     		RecordingInputStream ris) throws IOException {
+    	write(curi, fieldBytes, ros, ris, null);
+    }
+
+    /**
+     * Write, adding the record to the dedup table of the pool if it has one
+     *
+     * @param uri URI of crawled document
+     * @param fieldBytes block of fields to write to output after header line
+     * @param ros recording output stream that captured the GET request (for http*)
+     * @param ris recording input stream that captured the response
+     * @param payloadDigest digest of the response body, or null
+     */
+    public void write(final CrawlURI curi, byte [] fieldBytes, RecordingOutputStream ros,
+    		RecordingInputStream ris, byte [] payloadDigest) throws IOException {
     	String uri = curi.toString();
-    	ReplayInputStream replayStream = null;
+    	ReplayInputStream requestStream = null;
+    	ReplayInputStream responseStream = null;
 
-    	preWriteRecordTasks();
+    	try {
+    		if (isHttp(uri))
+    			requestStream = ros.getReplayInputStream();
+    		responseStream = ris.getReplayInputStream();
+
+    		setPayloadDigest(payloadDigest);
+    		write(uri, fieldBytes, requestStream, responseStream);
+    	} finally {
+    		setPayloadDigest(null);
+    		if (requestStream != null)
+    			requestStream.close();
+    		if (responseStream != null)
+    			responseStream.close();
+    	}
+    }
+
+    /**
+     * Write a record captured earlier with {@link HDFSRecordSnapshot#capture}
+     *
+     * @param snapshot copy of the record
+     */
+    public void write(final HDFSRecordSnapshot snapshot) throws IOException {
+    	ReplayInputStream requestStream = null;
+    	ReplayInputStream responseStream = null;
 
     	try {
+    		requestStream = snapshot.getRequestReplayStream();
+    		responseStream = snapshot.getResponseReplayStream();
+
+    		setPayloadDigest(snapshot.getPayloadDigest());
+    		write(snapshot.getUri(), snapshot.getFieldBytes(), requestStream, responseStream);
+    	} finally {
+    		setPayloadDigest(null);
+    		if (requestStream != null)
+    			requestStream.close();
+    		if (responseStream != null)
+    			responseStream.close();
+    	}
+    }
+
+    /**
+     * Write
+     *
+     * @param uri URI of crawled document
+     * @param fieldBytes block of fields to write to output after header line
+     * @param requestStream replay of the request, or null if not written
+     * @param responseStream replay of the response
+     */
+    protected void write(String uri, byte [] fieldBytes, ReplayInputStream requestStream,
+    		ReplayInputStream responseStream) throws IOException {
+    	if (_parameters.isWarcOutput()) {
+    		writeWarc(uri, fieldBytes, requestStream, responseStream);
+    		return;
+    	}
+
+    	if (_parameters.isSplitBody()) {
+    		writeSplit(uri, fieldBytes, requestStream, responseStream);
+    		return;
+    	}
+
+    	if (bypass != null && !isStored() && bypass.isIncompressible(isHttp(uri), responseStream)) {
+    		HDFSWriter stored = getStoredWriter();
+    		stored.setPayloadDigest(getPayloadDigest());
     		try {
+    			stored.write(uri, fieldBytes, requestStream, responseStream);
+    		} finally {
+    			stored.setPayloadDigest(null);
+    		}
+    		return;
+    	}
 
-    			int recordLength = 256 + fieldBytes.length + (int)ros.getSize() + (int)ris.getSize();
+    	if (_parameters.isStreamingAppend() || _parameters.isHeaderDictionary()) {
+    		writeStreaming(uri, fieldBytes, requestStream, responseStream);
+    		return;
+    	}
 
-    			if (mCaptureStreamCapacity < recordLength) {
-    				mCaptureStreamCapacity = recordLength + 8192;
-    				mCaptureStream = new ByteArrayOutputStream(mCaptureStreamCapacity);
-    			} else {
-    				mCaptureStream.reset();
-    			}
+    	preWriteRecordTasks();
 
-    			byte [] CRLF_BYTES = CRLF.getBytes();
+    	try {
+    		long recordLength = headerBytes.length + fieldBytes.length + responseStream.remaining();
+    		if (requestStream != null)
+    			recordLength += requestStream.remaining();
 
-    			// write header line
-    			mCaptureStream.write(HDFSWRITER_ID.getBytes());
-    			mCaptureStream.write(CRLF_BYTES);
+    		ensureAccumCapacity(recordLength);
 
-    			// write fields
-    			mCaptureStream.write(fieldBytes);
+    		// write header line
+    		write(headerBytes);
 
-    			// write request
-    			char [] uriChars = uri.toCharArray();
-    			if ((uriChars[0] == 'h' || uriChars[0] == 'H') &&
-    					(uriChars[1] == 't' || uriChars[1] == 'T') &&
-    					(uriChars[2] == 't' || uriChars[2] == 'T') &&
-    					(uriChars[3] == 'p' || uriChars[3] == 'P')) {
-    				replayStream = ros.getReplayInputStream();
-    				replayStream.readFullyTo(mCaptureStream);
-    				replayStream.close();
-    			}
+    		// write fields
+    		write(fieldBytes);
 
-    			// write response
-    			replayStream = ris.getReplayInputStream();
-    			replayStream.readFullyTo(mCaptureStream);
-    			write(mCaptureStream.toByteArray());
+    		// write request
+    		if (requestStream != null)
+    			requestStream.readFullyTo(getAccumulatorStream());
 
-    			long remaining = replayStream.remaining();
+    		// write response
+    		responseStream.readFullyTo(getAccumulatorStream());
 
-    			// Should be zero at this stage.  If not, something is
-    			// wrong.
-    			if (remaining != 0) {
-    				String message = "Gap between expected and actual: " +
-    					remaining + "\n" + DevUtils.extraInfo() + "writing arc ";
+    		long remaining = responseStream.remaining();
 
-    				DevUtils.warnHandle(new Throwable(message), message);
+    		// Should be zero at this stage.  If not, something is
+    		// wrong.
+    		if (remaining != 0) {
+    			String message = "Gap between expected and actual: " +
+    				remaining + "\n" + DevUtils.extraInfo() + "writing arc ";
 
-    				throw new IOException(message);
-    			}
+    			DevUtils.warnHandle(new Throwable(message), message);
+
+    			throw new IOException(message);
+    		}
+    	} finally {
+    		postWriteRecordTasks(uri);
+    	}
+    }
+
+    /**
+     * Writes the record as WARC records: a response, resource or revisit
+     * record with the response, a request record with the request and a
+     * metadata record with the fields, each gzipped on its own.
+     *
+     * @see #write(String, byte[], ReplayInputStream, ReplayInputStream)
+     */
+    private synchronized void writeWarc(String uri, byte [] fieldBytes, ReplayInputStream requestStream,
+    		ReplayInputStream responseStream) throws IOException {
+    	preWriteRecordTasks();
+
+    	FSDataOutputStream out = getWarcStream();
+    	HDFSWarcEncoder encoder = getWarcEncoder();
+    	long start = System.nanoTime();
+    	long bytesIn = encoder.getBytesIn();
+
+    	String crawlTime = getFieldValue(fieldBytes, _parameters.getCrawlTimeFieldName());
+    	String date = HDFSWarcEncoder.toWarcDate(
+    			(crawlTime != null && crawlTime.length() >= 14) ? crawlTime : getCreateTimestamp());
+    	String ip = getFieldValue(fieldBytes, _parameters.getIpFieldName());
+    	String payloadDigest = getFieldValue(fieldBytes, _parameters.getPayloadDigestFieldName());
+    	boolean revisit = getFieldValue(fieldBytes, _parameters.getRevisitOfFieldName()) != null;
+
+    	String type;
+    	String profile = null;
+    	String contentType;
+    	if (revisit) {
+    		type = "revisit";
+    		profile = WARC_PROFILE_IDENTICAL_PAYLOAD_DIGEST;
+    		contentType = HTTP_RESPONSE_MIMETYPE;
+    	} else if (isHttp(uri)) {
+    		type = "response";
+    		contentType = HTTP_RESPONSE_MIMETYPE;
+    	} else if (uri.regionMatches(true, 0, "dns:", 0, 4)) {
+    		type = "response";
+    		contentType = "text/dns";
+    	} else {
+    		type = "resource";
+    		contentType = "application/octet-stream";
+    	}
+
+    	String recordId = HDFSWarcEncoder.newRecordId();
+    	long offset = out.getPos();
+    	long length = encoder.write(out, type, recordId, new String [] {
+    			"WARC-Target-URI", uri,
+    			"WARC-Date", date,
+    			"WARC-IP-Address", ip,
+    			"WARC-Profile", profile,
+    			"WARC-Payload-Digest", payloadDigest
+    		}, contentType, responseStream);
+
+    	if (requestStream != null) {
+    		encoder.write(out, "request", HDFSWarcEncoder.newRecordId(), new String [] {
+    				"WARC-Target-URI", uri,
+    				"WARC-Date", date,
+    				"WARC-Concurrent-To", recordId
+    			}, HTTP_REQUEST_MIMETYPE, requestStream);
+    	}
+
+    	encoder.write(out, "metadata", HDFSWarcEncoder.newRecordId(), new String [] {
+    			"WARC-Target-URI", uri,
+    			"WARC-Date", date,
+    			"WARC-Concurrent-To", recordId
+    		}, "application/warc-fields", fieldBytes);
+
+    	warcRecordsWritten(offset, length, encoder.getBytesIn() - bytesIn, System.nanoTime() - start);
+    }
+
+    /**
+     * Writes the body of the response to the paired body file, then a
+     * metadata record with the header line, the fields plus a pointer to
+     * the body, the request and the response headers.  Revisits and
+     * responses without a body get no body record.
+     *
+     * @see #write(String, byte[], ReplayInputStream, ReplayInputStream)
+     */
+    private void writeSplit(String uri, byte [] fieldBytes, ReplayInputStream requestStream,
+    		ReplayInputStream responseStream) throws IOException {
+    	preWriteRecordTasks();
+
+    	// bodies go in the dedup table, not their metadata
+    	byte [] payloadDigest = getPayloadDigest();
+    	setPayloadDigest(null);
+
+    	int responseHeaderLength = readResponseHeaders(uri, responseStream);
+    	if (responseStream.remaining() > responseHeaderLength &&
+    			getFieldValue(fieldBytes, _parameters.getRevisitOfFieldName()) == null) {
+    		IOUtils.skipFully(responseStream, responseHeaderLength);
+
+    		HDFSWriter body = getBodyWriter();
+    		body.openBodyFile(getFinalName(new Path(getFilename())));
+    		body.setPayloadDigest(payloadDigest);
+    		try {
+    			body.writeBody(uri, responseStream);
     		} finally {
-    			if (replayStream != null)
-    				replayStream.close();
-    		} 
+    			body.setPayloadDigest(null);
+    		}
+    		fieldBytes = addField(fieldBytes, _parameters.getBodyRecordFieldName(),
+    				body.getLastRecordLocation());
+    	}
 
+    	try {
+    		long recordLength = headerBytes.length + fieldBytes.length + responseHeaderLength;
+    		if (requestStream != null)
+    			recordLength += requestStream.remaining();
+
+    		ensureAccumCapacity(recordLength);
+
+    		write(headerBytes);
+    		write(fieldBytes);
+    		if (requestStream != null)
+    			requestStream.readFullyTo(getAccumulatorStream());
+    		write(headerPart, 0, responseHeaderLength);
     	} finally {
     		postWriteRecordTasks(uri);
     	}
     }
+
+    /**
+     * Appends the rest of <code>responseStream</code> as the value of a
+     * record of the body file.
+     */
+    private void writeBody(String uri, ReplayInputStream responseStream) throws IOException {
+    	preWriteRecordTasks();
+
+    	try {
+    		ensureAccumCapacity(responseStream.remaining());
+    		responseStream.readFullyTo(getAccumulatorStream());
+    	} finally {
+    		postWriteRecordTasks(uri);
+    	}
+    }
+
+    /**
+     * Copies the response headers into headerPart, leaving the stream
+     * where it was.
+     *
+     * @return length of the response headers, or 0 if <code>uri</code>
+     *  is not http or their end was not found in the first
+     *  MAX_HEADER_PART bytes
+     */
+    private int readResponseHeaders(String uri, ReplayInputStream responseStream) throws IOException {
+    	if (headerPart == null)
+    		headerPart = new byte [ MAX_HEADER_PART ];
+    	headerPartLength = 0;
+
+    	if (!isHttp(uri))
+    		return 0;
+
+    	int end = readAhead(responseStream, (int)Math.min(MAX_HEADER_PART, responseStream.remaining()));
+    	return Math.max(0, findHeadersEnd(headerPart, 0, end));
+    }
+
+    /**
+     * @return <code>fieldBytes</code> with the field <code>name</code>
+     *  added before the empty line that ends them
+     */
+    static byte [] addField(byte [] fieldBytes, String name, String value) throws IOException {
+    	byte [] field = (name + ": " + value + CRLF).getBytes("UTF-8");
+    	int at = fieldBytes.length;
+    	if (at >= 2 && fieldBytes[at - 2] == '\r' && fieldBytes[at - 1] == '\n')
+    		at -= 2;
+
+    	byte [] b = new byte [ fieldBytes.length + field.length ];
+    	System.arraycopy(fieldBytes, 0, b, 0, at);
+    	System.arraycopy(field, 0, b, at, field.length);
+    	System.arraycopy(fieldBytes, at, b, at + field.length, fieldBytes.length - at);
+    	return b;
+    }
+
+    /**
+     * @return value of the field <code>name</code> in a block of
+     *  "name: value" lines, or null if it has none
+     */
+    static String getFieldValue(byte [] fieldBytes, String name) {
+    	int n = name.length();
+    	for (int i = 0; i < fieldBytes.length; ) {
+    		int end = i;
+    		while (end < fieldBytes.length && fieldBytes[end] != '\n')
+    			end++;
+    		int lineEnd = (end > i && fieldBytes[end - 1] == '\r') ? end - 1 : end;
+    		if (lineEnd - i > n && fieldBytes[i + n] == ':' && matches(fieldBytes, i, name)) {
+    			int v = i + n + 1;
+    			while (v < lineEnd && fieldBytes[v] == ' ')
+    				v++;
+    			try {
+    				return new String(fieldBytes, v, lineEnd - v, "UTF-8");
+    			} catch (UnsupportedEncodingException e) {
+    				throw new RuntimeException(e);
+    			}
+    		}
+    		i = end + 1;
+    	}
+    	return null;
+    }
+
+    private static boolean matches(byte [] b, int off, String s) {
+    	for (int i = 0; i < s.length(); i++)
+    		if (b[off + i] != s.charAt(i))
+    			return false;
+    	return true;
+    }
+
+    /**
+     * Write without intermediate buffers.  The header line, the fields and
+     * the replay streams are handed to the SequenceFile writer as a single
+     * {@link HDFSWriterRecord} value.
+     *
+     * @see #write(String, byte[], ReplayInputStream, ReplayInputStream)
+     */
+    private void writeStreaming(String uri, byte [] fieldBytes, ReplayInputStream requestStream,
+    		ReplayInputStream responseStream) throws IOException {
+    	preWriteRecordTasks();
+
+    	try {
+    		record.reset(headerBytes, fieldBytes, requestStream, responseStream);
+    		if (_parameters.isHeaderDictionary())
+    			encodeHeaders(uri, fieldBytes, requestStream, responseStream);
+    		appendRecord(uri, record);
+    	} finally {
+    		record.clear();
+    	}
+    }
+
+    /**
+     * Deflates the header part of the record against the header dictionary
+     * of the current file or, until the pool has a dictionary, adds it to
+     * the training sample.
+     */
+    private void encodeHeaders(String uri, byte [] fieldBytes, ReplayInputStream requestStream,
+    		ReplayInputStream responseStream) throws IOException {
+    	HDFSHeaderDictionary dictionary = getHeaderDictionary();
+    	if (dictionary == null && !getContext().isTrainingHeaderDictionary())
+    		return;
+
+    	long responseHeaderLength = readHeaderPart(uri, fieldBytes, requestStream, responseStream);
+    	if (responseHeaderLength < 0)
+    		return;
+
+    	if (dictionary == null) {
+    		getContext().trainHeaderDictionary(headerPart, 0, headerPartLength);
+    		return;
+    	}
+
+    	if (headerEncoder == null)
+    		headerEncoder = new HDFSHeaderDictionary.Encoder();
+    	int encodedLength = headerEncoder.deflate(dictionary, headerPart, 0, headerPartLength);
+
+    	// not worth it
+    	if (HDFSHeaderDictionary.ENCODED_OVERHEAD + encodedLength >= 4 + headerPartLength)
+    		return;
+
+    	record.setEncodedHeaders(dictionary, headerEncoder.getBuffer(), encodedLength,
+    			responseHeaderLength);
+    }
+
+    /**
+     * Collects the header part of a record into headerPart, leaving the
+     * replay streams where they were.
+     *
+     * @return length of the response headers, or -1 if the header part
+     *  is too long or the end of the response headers was not found
+     */
+    private long readHeaderPart(String uri, byte [] fieldBytes, ReplayInputStream requestStream,
+    		ReplayInputStream responseStream) throws IOException {
+    	if (headerPart == null)
+    		headerPart = new byte [ MAX_HEADER_PART ];
+    	headerPartLength = 0;
+
+    	long requestLength = (requestStream == null) ? 0 : requestStream.remaining();
+    	if (headerBytes.length + fieldBytes.length + requestLength > MAX_HEADER_PART)
+    		return -1;
+
+    	System.arraycopy(headerBytes, 0, headerPart, 0, headerBytes.length);
+    	System.arraycopy(fieldBytes, 0, headerPart, headerBytes.length, fieldBytes.length);
+    	headerPartLength = headerBytes.length + fieldBytes.length;
+
+    	if (requestStream != null && readAhead(requestStream, (int)requestLength) != requestLength)
+    		return -1;
+
+    	if (!isHttp(uri))
+    		return 0;
+
+    	int start = headerPartLength;
+    	int end = start + readAhead(responseStream,
+    			(int)Math.min(MAX_HEADER_PART - start, responseStream.remaining()));
+
+    	int length = findHeadersEnd(headerPart, start, end);
+    	if (length >= 0)
+    		headerPartLength = start + length;
+    	return length;
+    }
+
+    /**
+     * The response headers end with an empty line.
+     *
+     * @return length of the headers starting at <code>start</code>, or -1
+     *  if they do not end before <code>end</code>
+     */
+    private static int findHeadersEnd(byte [] b, int start, int end) {
+    	for (int i = start; i < end - 1; i++) {
+    		if (b[i] != '\n')
+    			continue;
+    		if (b[i+1] == '\n')
+    			return i + 2 - start;
+    		if (i < end - 2 && b[i+1] == '\r' && b[i+2] == '\n')
+    			return i + 3 - start;
+    	}
+    	return -1;
+    }
+
+    /**
+     * Copies up to <code>len</code> bytes of <code>in</code> to the end of
+     * headerPart and moves <code>in</code> back.
+     *
+     * @return number of bytes copied
+     */
+    private int readAhead(ReplayInputStream in, int len) throws IOException {
+    	long position = in.position();
+    	int n = 0;
+    	try {
+    		for (int r; n < len && (r = in.read(headerPart, headerPartLength + n, len - n)) > 0; )
+    			n += r;
+    	} finally {
+    		// ReplayInputStream cannot seek to the end of an empty buffer
+    		if (n > 0)
+    			in.position(position);
+    	}
+    	headerPartLength += n;
+    	return n;
+    }
+
+    private HDFSWriter getBodyWriter() throws IOException {
+    	if (bodyWriter == null) {
+    		bodyWriter = new HDFSWriter(getSerialNo(), _parameters, getContext());
+    		bodyWriter.setBody(true);
+    		bodyWriter.setPartition(getPartition());
+    	}
+    	return bodyWriter;
+    }
+
+    private HDFSWriter getStoredWriter() throws IOException {
+    	if (storedWriter == null) {
+    		storedWriter = new HDFSWriter(getSerialNo(), _parameters, getContext());
+    		storedWriter.setStored(true);
+    		storedWriter.setPartition(getPartition());
+    	}
+    	return storedWriter;
+    }
+
+    /**
+     * Also rotates the file of records that bypass compression if it is
+     * full, so that both rotate before the caller measures the position,
+     * and rotates the current file if its body file is full.
+     */
+    @Override
+    public void checkSize() throws IOException {
+    	super.checkSize();
+    	if (storedWriter != null)
+    		storedWriter.rotateIfFull();
+    	if (bodyWriter != null && bodyWriter.isOpenAndFull()) {
+    		// background rotation does not go through close()
+    		createFile();
+    		bodyWriter.close();
+    	}
+    }
+
+    /**
+     * Also closes the body file paired with the current file, if any, so
+     * that both rotate together.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+    	try {
+    		super.close();
+    	} finally {
+    		if (bodyWriter != null)
+    			bodyWriter.close();
+    	}
+    }
+
+    /**
+     * @return bytes written to the current file and, with compression
+     *  bypass or split output, to the current file of records that bypass
+     *  compression or of bodies
+     */
+    @Override
+    public long getPosition() throws IOException {
+    	long position = super.getPosition();
+    	if (storedWriter != null)
+    		position += storedWriter.getPosition();
+    	if (bodyWriter != null)
+    		position += bodyWriter.getPosition();
+    	return position;
+    }
+
+    /**
+     * Closes the current file and the file of records that bypass
+     * compression.  {@link #close()} alone leaves the latter open, since
+     * it is also how the current file gets rotated.
+     */
+    public void closeAll() throws IOException {
+    	try {
+    		close();
+    	} finally {
+    		if (storedWriter != null)
+    			storedWriter.closeAll();
+    		if (bodyWriter != null)
+    			bodyWriter.closeAll();
+    		if (headerEncoder != null) {
+    			headerEncoder.end();
+    			headerEncoder = null;
+    		}
+    		endWarcEncoder();
+    	}
+    }
+
+    /**
+     * @return true if the request of <code>uri</code> is written with the record
+     */
+    static boolean isHttp(String uri) {
+    	return uri.length() >= 4 && uri.regionMatches(true, 0, "http", 0, 4);
+    }
 }
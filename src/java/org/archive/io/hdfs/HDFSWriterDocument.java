@@ -28,6 +28,7 @@ import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -38,9 +39,16 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.StringTokenizer;
 import java.util.Map.Entry;
+import java.util.zip.Inflater;
 
 import org.apache.commons.lang.StringUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.util.ReflectionUtils;
 import org.apache.log4j.Logger;
 import org.archive.io.hdfs.util.ByteScan;
 
@@ -48,6 +56,12 @@ import org.archive.io.hdfs.util.ByteScan;
 /**
  * A class to parse and generate the document objects created by the hdfs-writer-processor
  *
+ * Records whose header part was deflated against a header dictionary
+ * can only be read once the dictionary of their file is set with
+ * {@link #setHeaderDictionary}.  Instances created by a MapReduce job
+ * (through ReflectionUtils) are not, so jobs cannot read files written
+ * with a header dictionary; see README.txt.
+ *
  * @author Doug Judd
  */
 public class HDFSWriterDocument implements Writable {
@@ -92,6 +106,13 @@ public class HDFSWriterDocument implements Writable {
 
 	private String extension = null;
 
+	/**
+	 * Dictionary of encoded records, and scratch space for decoding them
+	 */
+	private HDFSHeaderDictionary headerDictionary = null;
+	private Inflater inflater = null;
+	private byte [] encodedHeaders = null;
+
 	/**
 	 * Returns the byte array holding the document
 	 */
@@ -141,6 +162,16 @@ public class HDFSWriterDocument implements Writable {
 
 	public String getURLScheme() { return scheme; }
 
+	public HDFSHeaderDictionary getHeaderDictionary() { return headerDictionary; }
+
+	/**
+	 * Sets the header dictionary of the file being read, see
+	 * {@link HDFSHeaderDictionary#fromMetadata}
+	 */
+	public void setHeaderDictionary(HDFSHeaderDictionary headerDictionary) {
+		this.headerDictionary = headerDictionary;
+	}
+
 
 	/**
 	 * Returns lowercased file extension
@@ -482,7 +513,7 @@ public class HDFSWriterDocument implements Writable {
 	 * <?xml ... encoding=" and extracts content-type and/or
 	 * charset info
 	 */
-	private void findAndParseContentType(ByteScan.State bss) {
+	void findAndParseContentType(ByteScan.State bss) {
 
 		if (!ByteScan.FindSkip(bss, '<'))
 			return;
@@ -734,16 +765,98 @@ public class HDFSWriterDocument implements Writable {
 	 */
 	public void readFields(DataInput in) throws IOException {
 		int length = in.readInt();
+		if (length == HDFSHeaderDictionary.ENCODED) {
+			readEncoded(in);
+			return;
+		}
 		byte [] docBytes = new byte [ length ];
 		in.readFully(docBytes);
 		load(docBytes, 0, length);
 	}
 
+	/**
+	 * Reads a record whose header part is deflated, following the
+	 * {@link HDFSHeaderDictionary#ENCODED} marker.
+	 */
+	private void readEncoded(DataInput in) throws IOException {
+		int dictionaryId = in.readInt();
+		int length = in.readInt();
+		int headerLength = in.readInt();
+		int encodedLength = in.readInt();
+
+		if (headerDictionary == null)
+			throw new IOException("Record is encoded with a header dictionary; set the " +
+					"dictionary of its file first");
+		if (headerDictionary.getId() != dictionaryId)
+			throw new IOException("Record is encoded with header dictionary " +
+					Integer.toHexString(dictionaryId) + ", not " +
+					Integer.toHexString(headerDictionary.getId()));
+		if (headerLength < 0 || headerLength > length || encodedLength < 0)
+			throw new IOException("Corrupt encoded record");
+
+		if (encodedHeaders == null || encodedHeaders.length < encodedLength)
+			encodedHeaders = new byte [ encodedLength ];
+		in.readFully(encodedHeaders, 0, encodedLength);
+
+		if (inflater == null)
+			inflater = new Inflater(true);
+
+		byte [] docBytes = new byte [ length ];
+		headerDictionary.inflate(encodedHeaders, 0, encodedLength, docBytes, 0, headerLength, inflater);
+		in.readFully(docBytes, headerLength, length - headerLength);
+		load(docBytes, 0, length);
+	}
+
 	static void printUsage() {
-		System.out.println("HDFSWriterDocument <input-file>");
+		System.out.println("HDFSWriterDocument <input-file> [<output-file>]");
+		System.out.println("  <input-file> holds one serialized document, or is a SequenceFile");
+		System.out.println("  whose first record is read");
 		System.exit(1);
 	}
 
+	/**
+	 * Reads the first record of the SequenceFile <code>fileName</code>
+	 * into <code>doc</code>, with the header dictionary of the file.
+	 */
+	static void readFirstRecord(String fileName, HDFSWriterDocument doc) throws IOException {
+		Configuration conf = new Configuration();
+		FileSystem fs = FileSystem.getLocal(conf);
+		SequenceFile.Reader reader = new SequenceFile.Reader(fs, new Path(fileName), conf);
+		try {
+			doc.setHeaderDictionary(HDFSHeaderDictionary.fromMetadata(reader.getMetadata()));
+			Writable key = (Writable)ReflectionUtils.newInstance(reader.getKeyClass(), conf);
+			if (!reader.next(key))
+				throw new IOException("No records in " + fileName);
+
+			if (reader.getValueClass() == Text.class) {
+				Text text = new Text();
+				reader.getCurrentValue(text);
+				doc.load(text.getBytes(), 0, text.getLength());
+			} else if (reader.getValueClass() == HDFSWriterDocument.class)
+				reader.getCurrentValue(doc);
+			else
+				throw new IOException("Unexpected value class " + reader.getValueClassName());
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * @return true if <code>fileName</code> starts with the SequenceFile magic
+	 */
+	static boolean isSequenceFile(String fileName) throws IOException {
+		byte [] magic = new byte [ 3 ];
+		DataInputStream in = new DataInputStream(new FileInputStream(fileName));
+		try {
+			in.readFully(magic);
+		} catch (EOFException e) {
+			return false;
+		} finally {
+			in.close();
+		}
+		return magic[0] == 'S' && magic[1] == 'E' && magic[2] == 'Q';
+	}
+
 	/**
 	 * Test driver for HDFSWriterDocument
 	 * @throws IOException When there is an IO error
@@ -755,9 +868,13 @@ public class HDFSWriterDocument implements Writable {
 		if (args.length < 1)
 			printUsage();
 
-		FileInputStream fis = new FileInputStream(args[0]);
-		DataInputStream dis = new DataInputStream(fis);
-		hdfsDoc.readFields(dis);
+		if (isSequenceFile(args[0]))
+			readFirstRecord(args[0], hdfsDoc);
+		else {
+			FileInputStream fis = new FileInputStream(args[0]);
+			DataInputStream dis = new DataInputStream(fis);
+			hdfsDoc.readFields(dis);
+		}
 
 		System.out.println("\nANVL FIELDS:");
 		HashMap<String,String> fmap = hdfsDoc.getFieldMap();
@@ -781,7 +898,8 @@ public class HDFSWriterDocument implements Writable {
 
 		if (hdfsDoc.getResponseLength() > 0) {	
 			byte [] responseBytes = hdfsDoc.getResponseBytes();
-			String responseStr = new String(responseBytes, hdfsDoc.getResponseOffset(), 512);
+			String responseStr = new String(responseBytes, hdfsDoc.getResponseOffset(),
+					Math.min(512, hdfsDoc.getResponseLength()));
 			System.out.println("RESPONSE:");
 			System.out.print(responseStr);
 			System.out.print("\n[...]\n\n");
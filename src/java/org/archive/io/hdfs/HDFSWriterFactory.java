@@ -2,6 +2,7 @@ package org.archive.io.hdfs;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.pool.BasePoolableObjectFactory;
 import org.apache.log4j.Logger;
@@ -11,20 +12,49 @@ public class HDFSWriterFactory extends BasePoolableObjectFactory {
 	private final Logger LOG = Logger.getLogger(this.getClass().getName());
 
 	private HDFSParameters _parameters;
+	private HDFSClientContext _context;
+	private final AtomicInteger _serialNo;
+	private final int _partition;
 
 	public HDFSWriterFactory(HDFSParameters parameters) {
+		this(parameters, new HDFSClientContext(parameters), new AtomicInteger());
+	}
+
+	/**
+	 * @param parameters settings of the writers
+	 * @param context file system state shared by the writers
+	 * @param serialNo serial number sequence shared by the writers
+	 */
+	public HDFSWriterFactory(HDFSParameters parameters, HDFSClientContext context,
+			AtomicInteger serialNo) {
+		this(parameters, context, serialNo, -1);
+	}
+
+	/**
+	 * @param partition output partition of the writers, or -1
+	 * @see #HDFSWriterFactory(HDFSParameters, HDFSClientContext, AtomicInteger)
+	 */
+	public HDFSWriterFactory(HDFSParameters parameters, HDFSClientContext context,
+			AtomicInteger serialNo, int partition) {
 		_parameters = parameters;
+		_context = context;
+		_serialNo = serialNo;
+		_partition = partition;
 	}
 
 	@Override
 	public Object makeObject() throws Exception {
-		return new HDFSWriter(_parameters);
+		HDFSWriter writer = new HDFSWriter(_serialNo, _parameters, _context);
+		writer.setPartition(_partition);
+		return writer;
 	}
 
 	@Override
 	public void destroyObject(Object obj) throws Exception {
 		try {
-			if (obj instanceof Closeable)
+			if (obj instanceof HDFSWriter)
+				((HDFSWriter)obj).closeAll();
+			else if (obj instanceof Closeable)
 				((Closeable)obj).close();
 		} catch (IOException e) {
 			LOG.error(e.getMessage(), e);
@@ -0,0 +1,335 @@
+/* HDFSWriterMetrics
+ *
+ * $Id$
+ *
+ * Copyright (C) 2010 Zvents
+ *
+ * This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ * Heritrix is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * any later version.
+ *
+ * Heritrix is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with Heritrix; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.archive.io.hdfs;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Counters of the write path of one pool: records and bytes appended,
+ * append latency, pool borrow wait, file rotation and file counts.
+ * Updated with atomics by the writers and the pool, so cheap enough to
+ * stay on; read through JMX or {@link #report()}.
+ *
+ * Uncompressed bytes are the keys and values handed to the files, disk
+ * bytes what the files grew by, so their ratio is the compression ratio.
+ * Disk bytes of a file are counted as it grows, and corrected from its
+ * final length once it is closed.
+ */
+public class HDFSWriterMetrics implements HDFSWriterMetricsMBean {
+
+	/**
+	 * Shortest window rates are measured over
+	 */
+	private static final long RATE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+	private static final int LATENCY_BUCKETS = 32;
+
+	private final AtomicLong records = new AtomicLong();
+	private final AtomicLong uncompressedBytes = new AtomicLong();
+	private final AtomicLong diskBytes = new AtomicLong();
+	private final AtomicLong appendNanos = new AtomicLong();
+	private final AtomicLong appendMaxNanos = new AtomicLong();
+	private final AtomicLongArray appendLatency = new AtomicLongArray(LATENCY_BUCKETS);
+
+	private final AtomicLong borrows = new AtomicLong();
+	private final AtomicLong borrowWaitNanos = new AtomicLong();
+	private final AtomicLong borrowWaitMaxNanos = new AtomicLong();
+
+	private final AtomicLong rotations = new AtomicLong();
+	private final AtomicLong rotationNanos = new AtomicLong();
+	private final AtomicLong rotationMaxNanos = new AtomicLong();
+
+	private final AtomicInteger openFiles = new AtomicInteger();
+	private final AtomicLong invalidatedFiles = new AtomicLong();
+
+	/**
+	 * Start of the current rate window and the counters then, and the
+	 * rates of the last complete window
+	 */
+	private long windowStart = System.nanoTime();
+	private long windowRecords = 0;
+	private long windowUncompressed = 0;
+	private long windowDisk = 0;
+	private boolean windowDone = false;
+	private double recordsRate = 0;
+	private double uncompressedRate = 0;
+	private double diskRate = 0;
+
+	/**
+	 * Accounts for one record appended.
+	 *
+	 * @param bytes uncompressed length of its key and value
+	 * @param nanos time taken by the append
+	 */
+	public void recordAppended(long bytes, long nanos) {
+		records.incrementAndGet();
+		uncompressedBytes.addAndGet(bytes);
+		appendNanos.addAndGet(nanos);
+		max(appendMaxNanos, nanos);
+		appendLatency.incrementAndGet(getBucket(TimeUnit.NANOSECONDS.toMicros(nanos)));
+	}
+
+	/**
+	 * Accounts for bytes the files grew by.  May be negative to correct
+	 * an earlier estimate.
+	 */
+	public void diskBytesWritten(long bytes) {
+		if (bytes != 0)
+			diskBytes.addAndGet(bytes);
+	}
+
+	/**
+	 * Accounts for a writer taken from the pool after waiting
+	 * <code>nanos</code>.
+	 */
+	public void writerBorrowed(long nanos) {
+		borrows.incrementAndGet();
+		borrowWaitNanos.addAndGet(nanos);
+		max(borrowWaitMaxNanos, nanos);
+	}
+
+	public void fileOpened() {
+		openFiles.incrementAndGet();
+	}
+
+	/**
+	 * Accounts for a file closed, taking <code>nanos</code> to close,
+	 * rename and index.
+	 */
+	public void fileClosed(long nanos) {
+		openFiles.decrementAndGet();
+		rotations.incrementAndGet();
+		rotationNanos.addAndGet(nanos);
+		max(rotationMaxNanos, nanos);
+	}
+
+	/**
+	 * Accounts for a file given up on without being closed normally.
+	 */
+	public void fileAbandoned() {
+		openFiles.decrementAndGet();
+	}
+
+	public void fileInvalidated() {
+		invalidatedFiles.incrementAndGet();
+	}
+
+	private static void max(AtomicLong max, long value) {
+		for (long m; value > (m = max.get()); )
+			if (max.compareAndSet(m, value))
+				return;
+	}
+
+	/**
+	 * @return histogram bucket of a latency of <code>micros</code>
+	 */
+	static int getBucket(long micros) {
+		return Math.min(LATENCY_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+	}
+
+	public long getRecords() {
+		return records.get();
+	}
+
+	public long getUncompressedBytes() {
+		return uncompressedBytes.get();
+	}
+
+	public long getDiskBytes() {
+		return diskBytes.get();
+	}
+
+	public double getRecordsPerSecond() {
+		updateRates();
+		return recordsRate;
+	}
+
+	public double getUncompressedBytesPerSecond() {
+		updateRates();
+		return uncompressedRate;
+	}
+
+	public double getDiskBytesPerSecond() {
+		updateRates();
+		return diskRate;
+	}
+
+	/**
+	 * Closes the current rate window if it is long enough.  Until the
+	 * first one is, rates are averages since the start.
+	 */
+	private synchronized void updateRates() {
+		long now = System.nanoTime();
+		long elapsed = now - windowStart;
+		if (elapsed < RATE_WINDOW_NANOS && windowDone)
+			return;
+
+		double seconds = Math.max(1, elapsed) / 1e9;
+		long r = records.get(), u = uncompressedBytes.get(), d = diskBytes.get();
+		recordsRate = (r - windowRecords) / seconds;
+		uncompressedRate = (u - windowUncompressed) / seconds;
+		diskRate = (d - windowDisk) / seconds;
+
+		if (elapsed >= RATE_WINDOW_NANOS) {
+			windowStart = now;
+			windowRecords = r;
+			windowUncompressed = u;
+			windowDisk = d;
+			windowDone = true;
+		}
+	}
+
+	public double getAppendLatencyMeanMicros() {
+		return mean(appendNanos.get(), records.get()) / 1000;
+	}
+
+	/**
+	 * @return upper bound of the histogram bucket holding the given
+	 *  percentile of append latencies
+	 */
+	public long getAppendLatencyPercentileMicros(double percentile) {
+		long [] histogram = getAppendLatencyHistogram();
+		long total = 0;
+		for (long n : histogram)
+			total += n;
+		if (total == 0)
+			return 0;
+
+		long rank = (long)Math.ceil(total * percentile / 100);
+		long seen = 0;
+		for (int i=0; i<histogram.length; i++) {
+			seen += histogram[i];
+			if (seen >= rank)
+				return 1L << i;
+		}
+		return 1L << (histogram.length - 1);
+	}
+
+	public long getAppendLatency50thMicros() {
+		return getAppendLatencyPercentileMicros(50);
+	}
+
+	public long getAppendLatency99thMicros() {
+		return getAppendLatencyPercentileMicros(99);
+	}
+
+	public long getAppendLatencyMaxMicros() {
+		return Math.round(appendMaxNanos.get() / 1e3);
+	}
+
+	public long [] getAppendLatencyHistogram() {
+		long [] histogram = new long [ LATENCY_BUCKETS ];
+		for (int i=0; i<histogram.length; i++)
+			histogram[i] = appendLatency.get(i);
+		return histogram;
+	}
+
+	public long getBorrows() {
+		return borrows.get();
+	}
+
+	public double getBorrowWaitMeanMicros() {
+		return mean(borrowWaitNanos.get(), borrows.get()) / 1000;
+	}
+
+	public long getBorrowWaitMaxMicros() {
+		return Math.round(borrowWaitMaxNanos.get() / 1e3);
+	}
+
+	public long getRotations() {
+		return rotations.get();
+	}
+
+	public double getRotationMeanMillis() {
+		return mean(rotationNanos.get(), rotations.get()) / 1000000;
+	}
+
+	public long getRotationMaxMillis() {
+		return Math.round(rotationMaxNanos.get() / 1e6);
+	}
+
+	public int getOpenFiles() {
+		return openFiles.get();
+	}
+
+	public long getInvalidatedFiles() {
+		return invalidatedFiles.get();
+	}
+
+	private static double mean(long total, long count) {
+		return (count == 0) ? 0 : (double)total / count;
+	}
+
+	/**
+	 * Zeroes the counters, except open files.
+	 */
+	public synchronized void reset() {
+		records.set(0);
+		uncompressedBytes.set(0);
+		diskBytes.set(0);
+		appendNanos.set(0);
+		appendMaxNanos.set(0);
+		for (int i=0; i<LATENCY_BUCKETS; i++)
+			appendLatency.set(i, 0);
+		borrows.set(0);
+		borrowWaitNanos.set(0);
+		borrowWaitMaxNanos.set(0);
+		rotations.set(0);
+		rotationNanos.set(0);
+		rotationMaxNanos.set(0);
+		invalidatedFiles.set(0);
+
+		windowStart = System.nanoTime();
+		windowRecords = 0;
+		windowUncompressed = 0;
+		windowDisk = 0;
+		windowDone = false;
+	}
+
+	/**
+	 * @return the metrics as lines for a crawl report
+	 */
+	public String report() {
+		StringBuilder report = new StringBuilder();
+		report.append("  Records written: ").append(getRecords())
+			.append(String.format(" (%.1f/s)", getRecordsPerSecond())).append('\n');
+		report.append("  Bytes uncompressed: ").append(getUncompressedBytes())
+			.append(String.format(" (%.0f/s)", getUncompressedBytesPerSecond())).append('\n');
+		report.append("  Bytes on disk: ").append(getDiskBytes())
+			.append(String.format(" (%.0f/s)", getDiskBytesPerSecond())).append('\n');
+		report.append(String.format("  Append latency: mean %.1fus, p50 <%dus, p99 <%dus, max %dus\n",
+				getAppendLatencyMeanMicros(), getAppendLatency50thMicros(),
+				getAppendLatency99thMicros(), getAppendLatencyMaxMicros()));
+		report.append(String.format("  Pool borrow wait: %d borrows, mean %.1fus, max %dus\n",
+				getBorrows(), getBorrowWaitMeanMicros(), getBorrowWaitMaxMicros()));
+		report.append(String.format("  File rotation: %d files, mean %.1fms, max %dms\n",
+				getRotations(), getRotationMeanMillis(), getRotationMaxMillis()));
+		report.append("  Open files: ").append(getOpenFiles()).append('\n');
+		report.append("  Invalidated files: ").append(getInvalidatedFiles()).append('\n');
+		return report.toString();
+	}
+}
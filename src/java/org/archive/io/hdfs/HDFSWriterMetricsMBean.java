@@ -0,0 +1,78 @@
+/* HDFSWriterMetricsMBean
+ *
+ * $Id$
+ *
+ * Copyright (C) 2010 Zvents
+ *
+ * This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ * Heritrix is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * any later version.
+ *
+ * Heritrix is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with Heritrix; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.archive.io.hdfs;
+
+
+/**
+ * JMX view of {@link HDFSWriterMetrics}.  Rates are per second over the
+ * last complete sampling window; latencies are in microseconds and
+ * durations in milliseconds.
+ */
+public interface HDFSWriterMetricsMBean {
+
+	long getRecords();
+
+	long getUncompressedBytes();
+
+	long getDiskBytes();
+
+	double getRecordsPerSecond();
+
+	double getUncompressedBytesPerSecond();
+
+	double getDiskBytesPerSecond();
+
+	double getAppendLatencyMeanMicros();
+
+	long getAppendLatencyPercentileMicros(double percentile);
+
+	long getAppendLatency50thMicros();
+
+	long getAppendLatency99thMicros();
+
+	long getAppendLatencyMaxMicros();
+
+	/**
+	 * @return counts of appends by latency: entry 0 for under 1us, entry
+	 *  i for [2^(i-1), 2^i) microseconds
+	 */
+	long [] getAppendLatencyHistogram();
+
+	long getBorrows();
+
+	double getBorrowWaitMeanMicros();
+
+	long getBorrowWaitMaxMicros();
+
+	long getRotations();
+
+	double getRotationMeanMillis();
+
+	long getRotationMaxMillis();
+
+	int getOpenFiles();
+
+	long getInvalidatedFiles();
+
+	void reset();
+}
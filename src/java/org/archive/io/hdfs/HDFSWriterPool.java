@@ -1,29 +1,624 @@
 package org.archive.io.hdfs;
 
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.commons.pool.BasePoolableObjectFactory;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.log4j.Logger;
 import org.archive.io.DefaultWriterPoolSettings;
 import org.archive.io.WriterPool;
+import org.archive.io.WriterPoolMember;
 
 /**
+ * Pool of {@link HDFSWriter}s.
+ *
+ * When {@link HDFSParameters#getPartitions()} is set, the pool holds one
+ * sub-pool of writers per partition and {@link #borrowFile(String)}
+ * hands out a writer of the partition the configured Partitioner picks
+ * for the URI.  Each partition writes its own files.
+ *
+ * When {@link HDFSParameters#getWriterStripes()} is set, writers are not
+ * borrowed from commons-pool but picked among a fixed set of striped
+ * writers by thread id; see {@link Stripes}.  With
+ * {@link HDFSParameters#isAdaptiveWriters()} the number of striped
+ * writers in use follows demand between the configured limits.
+ *
  * @author greglu
  */
 public class HDFSWriterPool extends WriterPool {
 
+	private final HDFSClientContext context;
+
+	/**
+	 * Sub-pools by partition, or null if output is not partitioned
+	 */
+	private final WriterPool [] partitionPools;
+	private final Partitioner<Text, Writable> partitioner;
+
+	/**
+	 * Striped writers, and those of each partition, or null to borrow
+	 * from commons-pool
+	 */
+	private final Stripes stripes;
+	private final Stripes [] partitionStripes;
+
+	/**
+	 * Resizes the stripes of an adaptive pool every adaptiveIntervalMs,
+	 * or null
+	 */
+	private ScheduledExecutorService sizer = null;
+
 	/**
 	 * Create a pool of HDFSWriter objects.
 	 *
 	 * @param parameters the {@link org.archive.io.hdfs.HDFSParameters} object containing your settings
-	 * @param poolMaximumActive the maximum number of writers in the writer pool.
+	 * @param poolMaximumActive the maximum number of writers in the writer pool,
+	 *  per partition if partitioned.
 	 * @param poolMaximumWait the maximum waittime for all writers in the pool.
 	 */
 	public HDFSWriterPool(final HDFSParameters parameters, final int poolMaximumActive,
 			final int poolMaximumWait) {
+		this(parameters, new HDFSClientContext(parameters), new AtomicInteger(),
+				poolMaximumActive, poolMaximumWait);
+	}
+
+	private HDFSWriterPool(final HDFSParameters parameters, final HDFSClientContext context,
+			final AtomicInteger serialNo, final int poolMaximumActive, final int poolMaximumWait) {
 		super(
-			new AtomicInteger(),
-			new HDFSWriterFactory(parameters),
+			serialNo,
+			new HDFSWriterFactory(parameters, context, serialNo),
 			new DefaultWriterPoolSettings(),
 			poolMaximumActive,
 			poolMaximumWait);
+
+		this.context = context;
+
+		if (parameters.getPartitions() > 0) {
+			this.partitioner = parameters.getPartitioner();
+			this.partitionPools = new WriterPool [ parameters.getPartitions() ];
+			for (int i=0; i<partitionPools.length; i++)
+				partitionPools[i] = new PartitionPool(serialNo,
+						new HDFSWriterFactory(parameters, context, serialNo, i),
+						poolMaximumActive, poolMaximumWait);
+		} else {
+			this.partitioner = null;
+			this.partitionPools = null;
+		}
+
+		if (parameters.getWriterStripes() > 0 || parameters.isAdaptiveWriters()) {
+			this.stripes = newStripes(parameters, new HDFSWriterFactory(parameters, context, serialNo),
+					poolMaximumWait);
+			if (partitionPools != null) {
+				this.partitionStripes = new Stripes [ partitionPools.length ];
+				for (int i=0; i<partitionStripes.length; i++)
+					partitionStripes[i] = newStripes(parameters,
+							new HDFSWriterFactory(parameters, context, serialNo, i), poolMaximumWait);
+			} else {
+				this.partitionStripes = null;
+			}
+			if (parameters.isAdaptiveWriters())
+				startSizer(parameters);
+		} else {
+			this.stripes = null;
+			this.partitionStripes = null;
+		}
+	}
+
+	private static Stripes newStripes(HDFSParameters parameters, HDFSWriterFactory factory,
+			int poolMaximumWait) {
+		if (parameters.isAdaptiveWriters())
+			return new Stripes(factory, parameters.getMinWriters(), parameters.getMaxWriters(),
+					poolMaximumWait);
+		return new Stripes(factory, parameters.getWriterStripes(), poolMaximumWait);
+	}
+
+	private void startSizer(final HDFSParameters parameters) {
+		sizer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "HDFSWriterPoolSizer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		long interval = parameters.getAdaptiveIntervalMs();
+		sizer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				stripes.resize(parameters.getAdaptiveGrowWaitRatio(),
+						parameters.getAdaptiveShrinkUtilization());
+				if (partitionStripes != null)
+					for (Stripes s : partitionStripes)
+						s.resize(parameters.getAdaptiveGrowWaitRatio(),
+								parameters.getAdaptiveShrinkUtilization());
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return number of striped writers in use, over all partitions, or
+	 *  -1 if writers come from commons-pool
+	 */
+	public int getNumWriters() {
+		if (stripes == null)
+			return -1;
+		int n = stripes.getLive();
+		if (partitionStripes != null)
+			for (Stripes s : partitionStripes)
+				n += s.getLive();
+		return n;
+	}
+
+	/**
+	 * @return file system state shared by the writers of this pool
+	 */
+	public HDFSClientContext getContext() {
+		return context;
+	}
+
+	public boolean isPartitioned() {
+		return partitionPools != null;
+	}
+
+	/**
+	 * @return partition of the records of <code>uri</code>, or -1 if
+	 *  output is not partitioned
+	 */
+	public int getPartition(String uri) {
+		if (partitionPools == null)
+			return -1;
+		if (partitioner instanceof HostPartitioner)
+			return ((HostPartitioner)partitioner).getPartition(uri, partitionPools.length);
+		return partitioner.getPartition(new Text(uri), null, partitionPools.length);
+	}
+
+	/**
+	 * Borrows a writer for the record of <code>uri</code>: one of its
+	 * partition if output is partitioned, else any.
+	 */
+	public WriterPoolMember borrowFile(String uri) throws IOException {
+		if (partitionPools == null)
+			return borrowFile();
+
+		long start = System.nanoTime();
+		WriterPoolMember writer = (partitionStripes != null) ?
+				partitionStripes[getPartition(uri)].borrow() : partitionPools[getPartition(uri)].borrowFile();
+		context.getMetrics().writerBorrowed(System.nanoTime() - start);
+		return writer;
+	}
+
+	@Override
+	public WriterPoolMember borrowFile() throws IOException {
+		long start = System.nanoTime();
+		WriterPoolMember writer = (stripes != null) ? stripes.borrow() : super.borrowFile();
+		context.getMetrics().writerBorrowed(System.nanoTime() - start);
+		return writer;
+	}
+
+	@Override
+	public void returnFile(WriterPoolMember writer) throws IOException {
+		if (stripes != null) {
+			getStripes(writer).release(writer);
+			return;
+		}
+
+		WriterPool pool = getPool(writer);
+		if (pool == null)
+			super.returnFile(writer);
+		else
+			pool.returnFile(writer);
+	}
+
+	@Override
+	public void invalidateFile(WriterPoolMember writer) throws IOException {
+		context.getMetrics().fileInvalidated();
+
+		if (stripes != null) {
+			getStripes(writer).invalidate(writer);
+			return;
+		}
+
+		WriterPool pool = getPool(writer);
+		try {
+			if (pool == null)
+				super.invalidateFile(writer);
+			else
+				pool.invalidateFile(writer);
+		} catch (NullPointerException e) {
+			// WriterPool destroys the writer, then renames its local File,
+			// which HDFS members do not have.
+			if (writer.getFile() != null)
+				throw e;
+		}
+	}
+
+	/**
+	 * @return the sub-pool <code>writer</code> came from, or null for this pool
+	 */
+	private WriterPool getPool(WriterPoolMember writer) {
+		if (partitionPools == null)
+			return null;
+
+		int partition = ((HDFSWriterPoolMember)writer).getPartition();
+		return (partition < 0) ? null : partitionPools[partition];
+	}
+
+	/**
+	 * @return the stripes <code>writer</code> came from
+	 */
+	private Stripes getStripes(WriterPoolMember writer) {
+		if (partitionStripes == null)
+			return stripes;
+
+		int partition = ((HDFSWriterPoolMember)writer).getPartition();
+		return (partition < 0) ? stripes : partitionStripes[partition];
+	}
+
+	@Override
+	public int getNumActive() {
+		if (stripes != null) {
+			int active = stripes.getNumActive();
+			if (partitionStripes != null)
+				for (Stripes s : partitionStripes)
+					active += s.getNumActive();
+			return active;
+		}
+
+		int active = super.getNumActive();
+		if (partitionPools != null)
+			for (WriterPool pool : partitionPools)
+				active += pool.getNumActive();
+		return active;
+	}
+
+	@Override
+	public int getNumIdle() {
+		if (stripes != null) {
+			int idle = stripes.getNumIdle();
+			if (partitionStripes != null)
+				for (Stripes s : partitionStripes)
+					idle += s.getNumIdle();
+			return idle;
+		}
+
+		int idle = super.getNumIdle();
+		if (partitionPools != null)
+			for (WriterPool pool : partitionPools)
+				idle += pool.getNumIdle();
+		return idle;
+	}
+
+	/**
+	 * Closes all writers and, in local staging mode, waits for their files
+	 * to be uploaded.
+	 */
+	@Override
+	public void close() {
+		if (sizer != null)
+			sizer.shutdownNow();
+
+		if (partitionStripes != null)
+			for (Stripes s : partitionStripes)
+				s.close();
+		if (stripes != null)
+			stripes.close();
+
+		if (partitionPools != null)
+			for (WriterPool pool : partitionPools)
+				pool.close();
+
+		super.close();
+		context.close();
+	}
+
+	/**
+	 * Writers of one partition
+	 */
+	private static class PartitionPool extends WriterPool {
+		PartitionPool(AtomicInteger serialNo, BasePoolableObjectFactory factory,
+				int poolMaximumActive, int poolMaximumWait) {
+			super(serialNo, factory, new DefaultWriterPoolSettings(), poolMaximumActive,
+					poolMaximumWait);
+		}
+	}
+
+	/**
+	 * Set of writers, each guarded by a permit of its own instead of the
+	 * monitor of a shared pool.  A thread takes the writer of its home
+	 * stripe, picked by thread id, or else any free one; only if all are
+	 * taken does it wait.  With at least as many stripes as threads
+	 * writing, each thread mostly keeps a writer of its own and taking it
+	 * is a single uncontended compare and set.  Writers are created on
+	 * first use and invalidated ones are replaced.
+	 *
+	 * Only the first <code>live</code> of the stripes are used.  The
+	 * permit of every stripe past them is held by the sizer, so nobody
+	 * can take it; {@link #resize} moves the boundary.  Permits rather
+	 * than locks, since a writer may be returned by another thread than
+	 * the one that took it.
+	 */
+	private static class Stripes {
+		private final Logger LOG = Logger.getLogger(this.getClass().getName());
+
+		/**
+		 * Longest single wait for a permit, so that waiters notice
+		 * stripes added or retired meanwhile
+		 */
+		private static final long WAIT_SLICE_MS = 10;
+
+		private final HDFSWriterFactory factory;
+		private final Semaphore [] permits;
+		private final HDFSWriter [] writers;
+		private final long [] takenAt;
+		private final long maxWaitMs;
+		private final int minLive;
+		private volatile int live;
+		private volatile boolean closed = false;
+
+		/**
+		 * Demand since the last resize: borrows, borrows that found every
+		 * writer taken, time spent waiting and holding writers, and the
+		 * callers waiting right now
+		 */
+		private final AtomicLong borrows = new AtomicLong();
+		private final AtomicLong waits = new AtomicLong();
+		private final AtomicLong waitNanos = new AtomicLong();
+		private final AtomicLong holdNanos = new AtomicLong();
+		private final AtomicInteger waiting = new AtomicInteger();
+		private long lastResize = System.nanoTime();
+
+		/**
+		 * Fixed set of <code>n</code> writers
+		 */
+		Stripes(HDFSWriterFactory factory, int n, long maxWaitMs) {
+			this(factory, n, n, maxWaitMs);
+		}
+
+		/**
+		 * Between <code>min</code> and <code>max</code> writers, starting
+		 * with <code>min</code>
+		 */
+		Stripes(HDFSWriterFactory factory, int min, int max, long maxWaitMs) {
+			this.factory = factory;
+			this.permits = new Semaphore [ max ];
+			this.writers = new HDFSWriter [ max ];
+			this.takenAt = new long [ max ];
+			this.maxWaitMs = maxWaitMs;
+			this.minLive = Math.max(1, Math.min(min, max));
+			this.live = minLive;
+			for (int i=0; i<max; i++)
+				permits[i] = new Semaphore((i < live) ? 1 : 0);
+		}
+
+		HDFSWriter borrow() throws IOException {
+			borrows.incrementAndGet();
+
+			HDFSWriter writer = tryTake();
+			if (writer != null)
+				return writer;
+
+			waits.incrementAndGet();
+			waiting.incrementAndGet();
+			long start = System.nanoTime();
+			long deadline = start + TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+			try {
+				while (true) {
+					int n = live;
+					int home = (int)(Thread.currentThread().getId() % n);
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0)
+						throw new IOException("No writer free after " + maxWaitMs + "ms");
+
+					if (permits[home].tryAcquire(Math.min(remaining,
+							TimeUnit.MILLISECONDS.toNanos(WAIT_SLICE_MS)), TimeUnit.NANOSECONDS))
+						return take(home);
+
+					writer = tryTake();
+					if (writer != null)
+						return writer;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted waiting for a writer");
+			} finally {
+				waiting.decrementAndGet();
+				waitNanos.addAndGet(System.nanoTime() - start);
+			}
+		}
+
+		/**
+		 * @return the writer of the home stripe or of any free one, or
+		 *  null if all are taken
+		 */
+		private HDFSWriter tryTake() throws IOException {
+			int n = live;
+			int home = (int)(Thread.currentThread().getId() % n);
+			for (int i=0; i<n; i++) {
+				int stripe = (home + i) % n;
+				if (permits[stripe].tryAcquire())
+					return take(stripe);
+			}
+			return null;
+		}
+
+		/**
+		 * Called holding the permit of <code>stripe</code>
+		 */
+		private HDFSWriter take(int stripe) throws IOException {
+			if (closed) {
+				permits[stripe].release();
+				throw new IOException("Writer pool is closed");
+			}
+			if (writers[stripe] == null) {
+				try {
+					writers[stripe] = (HDFSWriter)factory.makeObject();
+				} catch (Exception e) {
+					permits[stripe].release();
+					IOException e2 = new IOException("Failed to create writer: " + e.getMessage());
+					e2.initCause(e);
+					throw e2;
+				}
+			}
+			takenAt[stripe] = System.nanoTime();
+			return writers[stripe];
+		}
+
+		void release(WriterPoolMember writer) throws IOException {
+			int stripe = indexOf(writer);
+			holdNanos.addAndGet(System.nanoTime() - takenAt[stripe]);
+			if (closed) {
+				// close() gave up waiting for this writer
+				writers[stripe] = null;
+				permits[stripe].release();
+				destroy(writer);
+				return;
+			}
+			permits[stripe].release();
+		}
+
+		void invalidate(WriterPoolMember writer) throws IOException {
+			int stripe = indexOf(writer);
+			holdNanos.addAndGet(System.nanoTime() - takenAt[stripe]);
+			writers[stripe] = null;
+			permits[stripe].release();
+			destroy(writer);
+		}
+
+		private void destroy(WriterPoolMember writer) throws IOException {
+			try {
+				factory.destroyObject(writer);
+			} catch (Exception e) {
+				IOException e2 = new IOException(e.getMessage());
+				e2.initCause(e);
+				throw e2;
+			}
+		}
+
+		private int indexOf(WriterPoolMember writer) throws IOException {
+			for (int i=0; i<writers.length; i++)
+				if (writers[i] == writer)
+					return i;
+			throw new IOException("Writer " + writer + " is not from this pool");
+		}
+
+		/**
+		 * Adds a writer if callers waited for one while the writers were
+		 * busy, or retires the last one, closing its files, if the rest
+		 * would have done.  Only called from the sizer.
+		 *
+		 * @param growWaitRatio fraction of borrows that may wait before a
+		 *  writer is added
+		 * @param shrinkUtilization utilization of the remaining writers
+		 *  below which one is retired
+		 */
+		void resize(double growWaitRatio, double shrinkUtilization) {
+			long now = System.nanoTime();
+			long elapsed = Math.max(1, now - lastResize);
+			lastResize = now;
+
+			long b = borrows.getAndSet(0);
+			long w = waits.getAndSet(0);
+			long waited = waitNanos.getAndSet(0);
+			long held = holdNanos.getAndSet(0);
+			int n = live;
+
+			// share of the live writers' time spent holding them
+			double utilization = (double)held / ((double)elapsed * n);
+
+			if (n < permits.length && (waiting.get() > 0 || (b > 0 && w > growWaitRatio * b))) {
+				live = n + 1;
+				permits[n].release();
+				LOG.info("Added writer " + (n + 1) + ": " + w + " of " + b + " borrows waited " +
+						TimeUnit.NANOSECONDS.toMillis(waited) + "ms, utilization " + percent(utilization));
+				return;
+			}
+
+			if (n > minLive && w == 0 && (double)held / ((double)elapsed * (n - 1)) < shrinkUtilization &&
+					permits[n - 1].tryAcquire()) {
+				live = n - 1;
+				HDFSWriter writer = writers[n - 1];
+				writers[n - 1] = null;
+				if (writer != null) {
+					try {
+						factory.destroyObject(writer);
+					} catch (Exception e) {
+						LOG.error(e.getMessage(), e);
+					}
+				}
+				LOG.info("Retired writer " + n + ": utilization " + percent(utilization));
+			}
+		}
+
+		private static String percent(double fraction) {
+			return Math.round(100 * fraction) + "%";
+		}
+
+		int getLive() {
+			return live;
+		}
+
+		int getNumActive() {
+			int active = 0;
+			int n = live;
+			for (int i=0; i<n; i++)
+				if (permits[i].availablePermits() == 0)
+					active++;
+			return active;
+		}
+
+		int getNumIdle() {
+			int idle = 0;
+			int n = live;
+			for (int i=0; i<n; i++)
+				if (writers[i] != null && permits[i].availablePermits() > 0)
+					idle++;
+			return idle;
+		}
+
+		/**
+		 * Fails further borrows and closes each writer once it has been
+		 * returned, waiting up to the borrow timeout for it.  A writer
+		 * still out after that is closed when it comes back.
+		 */
+		void close() {
+			closed = true;
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+			boolean interrupted = false;
+			for (int i=0; i<writers.length; i++) {
+				if (writers[i] == null)
+					continue;
+				boolean acquired;
+				try {
+					acquired = permits[i].tryAcquire(Math.max(0, deadline - System.nanoTime()),
+							TimeUnit.NANOSECONDS);
+				} catch (InterruptedException e) {
+					interrupted = true;
+					acquired = permits[i].tryAcquire();
+				}
+				if (!acquired) {
+					LOG.warn("Writer " + (i + 1) + " still in use, closing it when returned");
+					continue;
+				}
+				HDFSWriter writer = writers[i];
+				writers[i] = null;
+				permits[i].release();
+				if (writer == null)
+					continue;
+				try {
+					destroy(writer);
+				} catch (IOException e) {
+					LOG.error(e.getMessage(), e);
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
 	}
 }
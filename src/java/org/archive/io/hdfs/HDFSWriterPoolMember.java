@@ -22,24 +22,45 @@
  */
 package org.archive.io.hdfs;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.Closeable;
+import java.io.File;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
-import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.MapFile;
 import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.Compressor;
 import org.archive.io.ArchiveFileConstants;
 import org.archive.io.WriterPool;
 import org.archive.io.WriterPoolMember;
+import org.archive.io.hdfs.util.URIUtils;
 import org.archive.util.ArchiveUtils;
 import org.archive.util.TimestampSerialno;
 
@@ -73,25 +94,162 @@ public abstract class HDFSWriterPoolMember extends WriterPoolMember implements A
 	private SequenceFile.Writer sfWriter = null;
 
 	/**
-	 * HDFS FileSystem object
+	 * File system, output directory and settings shared with the other
+	 * members of the pool
 	 */
-	private FileSystem fs = null;
+	private final HDFSClientContext context;
+
+	/**
+	 * Background rotation.  When enabled, the next file is created on the
+	 * context's rotation executor while the current one fills, and full
+	 * files are closed and renamed there too.  A file that fails to close
+	 * there is renamed to the .invalid suffix and the failure is thrown by
+	 * the next {@link #checkSize()}.
+	 */
+	private boolean backgroundRotation = false;
+	private Future<SequenceFile.Writer> nextWriter = null;
+	private Path nextPath = null;
+	private String nextTimestamp = null;
+	private HDFSHeaderDictionary nextHeaderDictionary = null;
+	private volatile IOException rotationFailure = null;
+
+	/**
+	 * Sorted output.  When enabled, the current file is a MapFile
+	 * directory whose records are collected by sorter, and sfWriter stays
+	 * null; the MapFile is written when the file is rotated.  Text keys
+	 * are the SURT form of the URL.
+	 */
+	private boolean sortedOutput = false;
+	private long sortBufferBytes = 0;
+	private HDFSSortedOutput sorter = null;
+
+	/**
+	 * WARC output.  When enabled, the current file is a plain stream of
+	 * WARC records gzipped one by one with warcEncoder, and sfWriter stays
+	 * null.
+	 */
+	private boolean warcOutput = false;
+	private FSDataOutputStream warcOut = null;
+	private HDFSWarcEncoder warcEncoder = null;
+	private int warcLevel = -1;
+
+	/**
+	 * Offsets of the records of the current file, written next to it
+	 * when it is closed if the record index is enabled
+	 */
+	private boolean recordIndexEnabled = false;
+	private HDFSRecordIndex.Builder recordIndex = null;
+	private MessageDigest fingerprintDigest = null;
+
+	/**
+	 * Deduplication.  The payload digest of the record being written is
+	 * set by the writer; once the record is in the file, its location goes
+	 * into the pool's digest table through dedupFile.
+	 */
+	private HDFSDedupTable dedupTable = null;
+	private HDFSDedupTable.FileRecorder dedupFile = null;
+	private byte [] payloadDigest = null;
+
+	/**
+	 * Output partition of this member, or -1 if output is not partitioned
+	 */
+	private int partition = -1;
+
+	/**
+	 * Set on the member that writes the records bypassing compression:
+	 * its files are never compressed and have {@link #STORED_MARKER} in
+	 * their names
+	 */
+	private boolean stored = false;
+
+	/**
+	 * Set on the member that writes the bodies of split records: its
+	 * current file is named after pairedName, the file of the metadata
+	 * records, and is opened and rotated by the metadata member only
+	 */
+	private boolean body = false;
+	private String pairedName = null;
+
+	/**
+	 * Location of the last record appended, as in the record index: offset
+	 * and length or, for BLOCK compressed files, offset of the block and
+	 * number of the record in it
+	 */
+	private long lastRecordOffset = -1;
+	private int lastRecordLength = 0;
 
 	private final boolean compressed;
 	private String prefix = DEFAULT_PREFIX;
 	private String suffix = DEFAULT_SUFFIX;
 	private final long maxSize;   //pratyush
-	private String hdfsOutputPath = null;
-	private String hdfsFsDefaultName = "local";
-	private String hdfsCompressionType = "DEFAULT";
-	private Configuration hdfsConf = null;
-	private int hdfsReplication = 3;
 
 	/**
-	 * Accumulator to hold record contents
+	 * Decides when to rotate.  Length, records and open time of the
+	 * current file are tracked here rather than asked of the writer;
+	 * lastSyncPos follows the writer's sync marker placement so that
+	 * fileLength is exact for uncompressed and RECORD compressed files.
+	 * BLOCK compressed files buffer inside the writer, so their length is
+	 * taken from the writer.  Idle files are checked by rotationCheck.
+	 */
+	private HDFSRotationPolicy rotationPolicy = null;
+	private long fileLength = 0;
+	private long fileRecords = 0;
+	private long fileOpenedAt = 0;
+	private long lastSyncPos = 0;
+	private ScheduledFuture<?> rotationCheck = null;
+
+	/**
+	 * Length of the current file already counted in the disk bytes of
+	 * the metrics
+	 */
+	private long fileDiskBytes = 0;
+
+	/**
+	 * Value class of the files we write.  {@link Text} unless records are
+	 * streamed with {@link #appendRecord(String, SequenceFile.ValueBytes)}.
+	 */
+	private Class<?> valueClass = Text.class;
+
+	/**
+	 * Compression type of the file currently open
+	 */
+	private SequenceFile.CompressionType compType = null;
+
+	/**
+	 * Header dictionary in the metadata of the current file, or null.
+	 * The pool's dictionary is set only once, so every file created after
+	 * this one has it too.
 	 */
-	private byte [] accumBuffer = new byte [ 262144 ];
-	private int accumOffset = 4;
+	private HDFSHeaderDictionary headerDictionary = null;
+
+	/**
+	 * Scratch space for raw appends.  The key is serialized into
+	 * rawKeyBuffer; with RECORD compression the value is compressed into
+	 * rawValueBuffer since the writer expects pre-compressed bytes.
+	 */
+	private DataOutputBuffer rawKeyBuffer = new DataOutputBuffer();
+	private HDFSSpillBuffer rawValueBuffer = null;
+	private Compressor compressor = null;
+	private CompressionOutputStream deflateFilter = null;
+	private DataOutputStream deflateOut = null;
+	private CompressedValue compressedValue = new CompressedValue();
+
+	private TextValue textValue = new TextValue();
+
+	/**
+	 * Timer shared by all members for checking idle files
+	 */
+	private static ScheduledExecutorService timer = null;
+
+	/**
+	 * Accumulator to hold record contents.  Its memory comes from the
+	 * buffer pool of the context and is given back once the record is
+	 * appended; records over spillThresholdBytes, or that the pool has no
+	 * memory left for, are assembled in a file in spillDirectory instead.
+	 */
+	private HDFSSpillBuffer accum = null;
+	private long spillThresholdBytes = 16*1024*1024;
+	private File spillDirectory = null;
 
 	/**
 	 * Creation date for the current file.
@@ -111,16 +269,81 @@ public abstract class HDFSWriterPoolMember extends WriterPoolMember implements A
 	 */
 	private static NumberFormat serialNoFormatter = new DecimalFormat("00000");
 
+	/**
+	 * Size of the sync hash SequenceFile writes after each sync escape
+	 */
+	private static final int SYNC_HASH_SIZE = 16;
+
+	/**
+	 * Marks the names of files whose records bypassed compression
+	 */
+	public static final String STORED_MARKER = "-stored";
+
+	/**
+	 * Marks the names of files holding the bodies of split records
+	 */
+	public static final String BODY_MARKER = "-body";
+
+	/**
+	 * Extension of WARC files
+	 */
+	public static final String WARC_SUFFIX = ".warc.gz";
+
 
 	public HDFSWriterPoolMember(HDFSParameters parameters) throws IOException {
 		this(new AtomicInteger(), parameters);
 	}
 
 	public HDFSWriterPoolMember(AtomicInteger serialNo, HDFSParameters parameters) throws IOException {
-		this(serialNo, parameters.getPrefix(), parameters.getSuffix(),
-				parameters.isCompression(), parameters.getMaxSize(), parameters.getHdfsReplication(),
-				parameters.getHdfsCompressionType(), parameters.getHdfsOutputPath(),
-				parameters.getHdfsFsDefaultName());
+		this(serialNo, parameters, new HDFSClientContext(parameters));
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param serialNo  used to create unique filename sequences
+	 * @param parameters settings of this member
+	 * @param context file system state shared with the rest of the pool
+	 * @exception IOException
+	 */
+	public HDFSWriterPoolMember(AtomicInteger serialNo, HDFSParameters parameters,
+			HDFSClientContext context) throws IOException {
+
+		super(serialNo, null, parameters.getPrefix(), parameters.getSuffix(),
+				parameters.isCompression(), parameters.getMaxSize(), null);
+
+		this.suffix = parameters.getSuffix();
+		this.prefix = parameters.getPrefix();
+		this.maxSize = parameters.getMaxSize();
+		this.compressed = parameters.isCompression();
+		this.serialNo = serialNo;
+		this.context = context;
+		this.backgroundRotation = parameters.isBackgroundRotation();
+		this.rotationPolicy = parameters.getRotationPolicy();
+		this.sortedOutput = parameters.isSortedOutput();
+		this.sortBufferBytes = parameters.getSortBufferBytes();
+		this.recordIndexEnabled = parameters.isRecordIndex();
+		this.dedupTable = context.getDedupTable();
+		this.warcOutput = parameters.isWarcOutput();
+		this.warcLevel = parameters.getHdfsCompressionLevel();
+
+		if ((parameters.isStreamingAppend() || parameters.isHeaderDictionary()) &&
+				!parameters.isSplitBody())
+			this.valueClass = HDFSWriterDocument.class;
+
+		this.spillThresholdBytes = parameters.getSpillThresholdBytes();
+		if (parameters.getSpillDirectory() != null)
+			this.spillDirectory = new File(parameters.getSpillDirectory());
+
+		if (warcOutput) {
+			// SequenceFile features
+			this.sortedOutput = false;
+			this.backgroundRotation = false;
+			this.recordIndexEnabled = false;
+		}
+
+		// make sure the output directory exists
+		context.getFileSystem();
 	}
 
 	/**
@@ -144,33 +367,24 @@ public abstract class HDFSWriterPoolMember extends WriterPoolMember implements A
 			final String hdfsCompressionType, final String hdfsOutputPath,
 			final String hdfsFsDefaultName)
 			throws IOException {
+		this(serialNo, toParameters(prefix, suffix, cmprs, maxSize, hdfsReplication,
+				hdfsCompressionType, hdfsOutputPath, hdfsFsDefaultName));
+	}
 
-		super(serialNo, null, prefix, suffix, cmprs, maxSize, null);
-
-		this.suffix = suffix;
-		this.prefix = prefix;
-		this.maxSize = maxSize;
-		this.compressed = cmprs;
-		this.serialNo = serialNo;
-		this.hdfsReplication = hdfsReplication;
-
-		if (hdfsOutputPath.endsWith("/"))
-			this.hdfsOutputPath =
-				hdfsOutputPath.substring(0, hdfsOutputPath.length()-1);
-		else
-			this.hdfsOutputPath = hdfsOutputPath;
-
-		this.hdfsFsDefaultName = hdfsFsDefaultName;
-		this.hdfsCompressionType = hdfsCompressionType;
-
-		this.hdfsConf = new Configuration();
-		hdfsConf.set("fs.default.name", this.hdfsFsDefaultName);
-
-		this.fs = FileSystem.get(hdfsConf);
-
-		// make sure the output directory exists
-		Path outputDir = new Path(this.hdfsOutputPath);
-		fs.mkdirs(outputDir);
+	private static HDFSParameters toParameters(final String prefix, final String suffix,
+			final boolean cmprs, final long maxSize, final int hdfsReplication,
+			final String hdfsCompressionType, final String hdfsOutputPath,
+			final String hdfsFsDefaultName) {
+		HDFSParameters parameters = new HDFSParameters();
+		parameters.setPrefix(prefix);
+		parameters.setSuffix(suffix);
+		parameters.setCompression(cmprs);
+		parameters.setMaxSize(maxSize);
+		parameters.setHdfsReplication(hdfsReplication);
+		parameters.setHdfsCompressionType(hdfsCompressionType);
+		parameters.setHdfsOutputPath(hdfsOutputPath);
+		parameters.setHdfsFsDefaultName(hdfsFsDefaultName);
+		return parameters;
 	}
 
 	/**
@@ -185,12 +399,128 @@ public abstract class HDFSWriterPoolMember extends WriterPoolMember implements A
 	 * @exception IOException
 	 */
 	@Override
-	public void checkSize() throws IOException {
-		if (sfWriter == null ||
-				(this.maxSize != -1 && (this.sfWriter.getLength() > this.maxSize)))
+	public synchronized void checkSize() throws IOException {
+		IOException failure = rotationFailure;
+		if (failure != null) {
+			rotationFailure = null;
+			throw failure;
+		}
+
+		if (body) {
+			if (!isFileOpen())
+				throw new IOException("No body file open; see openBodyFile()");
+			return;
+		}
+		if (!isFileOpen() || isFull())
+			createFile();
+	}
+
+	/**
+	 * @return true if a file is open for writing
+	 */
+	private boolean isFileOpen() {
+		return sfWriter != null || sorter != null || warcOut != null;
+	}
+
+	/**
+	 * Rotates the current file if it is open and full, but does not open
+	 * one otherwise.
+	 */
+	synchronized void rotateIfFull() throws IOException {
+		if (isFileOpen() && isFull())
 			createFile();
 	}
 
+	/**
+	 * @return true if a file is open and the rotation policy says it is done
+	 */
+	synchronized boolean isOpenAndFull() throws IOException {
+		return isFileOpen() && isFull();
+	}
+
+	/**
+	 * @return true if the rotation policy says the current file is done
+	 */
+	private boolean isFull() throws IOException {
+		if (fileRecords == 0)
+			return false;
+
+		return rotationPolicy.shouldRotate(getFileLength(), fileRecords,
+				System.currentTimeMillis() - fileOpenedAt);
+	}
+
+	/**
+	 * @return bytes written to the current file
+	 */
+	private long getFileLength() throws IOException {
+		if (warcOut != null)
+			return warcOut.getPos();
+		if (compType == SequenceFile.CompressionType.BLOCK && sfWriter != null)
+			return sfWriter.getLength();
+		return fileLength;
+	}
+
+	/**
+	 * Resets the file statistics for a newly opened file and makes sure
+	 * idle files get checked if the rotation policy asks for it.
+	 */
+	private void fileOpened() throws IOException {
+		fileLength = (sfWriter != null) ? sfWriter.getLength() : 0;
+		fileRecords = 0;
+		fileOpenedAt = System.currentTimeMillis();
+		lastSyncPos = 0;
+		recordIndex = (recordIndexEnabled) ?
+				new HDFSRecordIndex.Builder(compType, context.getCodec(), valueClass) : null;
+		dedupFile = (dedupTable != null && sorter == null) ?
+				dedupTable.forFile(getFinalName(fpath), compType) : null;
+		lastRecordOffset = -1;
+		lastRecordLength = 0;
+
+		context.getMetrics().fileOpened();
+		fileDiskBytes = 0;
+		countDiskBytes();
+
+		long interval = rotationPolicy.getCheckIntervalMs();
+		if (interval > 0 && rotationCheck == null && !body) {
+			rotationCheck = getTimer().scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					checkIdleFile();
+				}
+			}, interval, interval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Counts what the current file grew by in the metrics.  Sorted files
+	 * are only written when closed, and counted then.
+	 */
+	private void countDiskBytes() throws IOException {
+		if (sorter != null)
+			return;
+		long length = getFileLength();
+		context.getMetrics().diskBytesWritten(length - fileDiskBytes);
+		fileDiskBytes = length;
+	}
+
+	/**
+	 * Called from the timer thread.  Closes the current file if the
+	 * rotation policy says so; the next record opens a new one.
+	 */
+	private synchronized void checkIdleFile() {
+		if (!isFileOpen()) {
+			rotationCheck.cancel(false);
+			rotationCheck = null;
+			return;
+		}
+
+		try {
+			if (isFull())
+				close();
+		} catch (IOException e) {
+			LOGGER.warning("Failed to close " + fstr + ": " + e.getMessage());
+		}
+	}
+
 	/**
 	 * Create a new file.
 	 * 
@@ -202,41 +532,284 @@ public abstract class HDFSWriterPoolMember extends WriterPoolMember implements A
 	 * @return Name of file created.
 	 * @throws IOException
 	 */
-	protected String createFile() throws IOException {
-		TimestampSerialno tsn = getTimestampSerialNo();
+	protected synchronized String createFile() throws IOException {
+		if (warcOutput)
+			return createWarcFile();
+		if (sortedOutput)
+			return createSortedFile();
+		if (backgroundRotation)
+			return rotateFile();
 
-		String name = this.prefix + '-' + getUniqueBasename(tsn) +
-			((this.suffix == null || this.suffix.length() <= 0) ? "" : "-" + this.suffix) +
-			OCCUPIED_SUFFIX;
+		TimestampSerialno tsn = getTimestampSerialNo();
 
 		close();
 
 		this.createTimestamp = tsn.getTimestamp();
-		fstr  = hdfsOutputPath + "/" + name;
-		this.fpath = new Path(fstr);
+		this.fpath = new Path(context.getOutputDir(), getFileName(tsn));
+		fstr = this.fpath.toString();
+
+		this.compType = getCompressionType();
+		this.headerDictionary = context.getHeaderDictionary();
+		sfWriter = context.createWriter(this.fpath, valueClass, compType, headerDictionary);
+		fileOpened();
+
+		LOGGER.info("Opened " + this.fpath.toString());
+
+		return this.fpath.toString();
+	}
+
+	/**
+	 * Background version of {@link #createFile()}.  Switches to the file
+	 * created ahead of time, hands the current one to the rotation
+	 * executor for closing and starts creating the one after.  Falls back
+	 * to creating the file here if it is not ready or could not be created.
+	 */
+	private String rotateFile() throws IOException {
+		SequenceFile.Writer writer = null;
+
+		if (nextWriter != null) {
+			try {
+				writer = nextWriter.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted waiting for " + nextPath);
+			} catch (ExecutionException e) {
+				LOGGER.warning("Failed to create " + nextPath + " ahead of time: " +
+						e.getCause().getMessage());
+			} finally {
+				nextWriter = null;
+			}
+		}
 
-		// Determine SequenceFile compression type
-		SequenceFile.CompressionType compType;
-		if (hdfsCompressionType.equals("DEFAULT")) {
-			String zname = hdfsConf.get("io.seqfile.compression.type");
+		if (sfWriter != null) {
+			final SequenceFile.Writer oldWriter = sfWriter;
+			final Path oldPath = fpath;
+			final HDFSRecordIndex.Builder oldIndex = recordIndex;
+			final long oldDiskBytes = fileDiskBytes;
+			sfWriter = null;
+
+			context.getRotationExecutor().execute(new Runnable() {
+				public void run() {
+					try {
+						finishFile(oldWriter, oldPath, oldIndex, oldDiskBytes);
+					} catch (IOException e) {
+						rotationFailed(oldPath, e);
+					} catch (RuntimeException e) {
+						rotationFailed(oldPath, e);
+					}
+				}
+			});
+		}
+
+		this.compType = getCompressionType();
 
-			compType = (zname == null) ? SequenceFile.CompressionType.RECORD : 
-				SequenceFile.CompressionType.valueOf(zname);
+		if (writer != null) {
+			this.createTimestamp = nextTimestamp;
+			this.fpath = nextPath;
+			this.headerDictionary = nextHeaderDictionary;
 		} else {
-			compType = SequenceFile.CompressionType.valueOf(hdfsCompressionType);
+			TimestampSerialno tsn = getTimestampSerialNo();
+			this.createTimestamp = tsn.getTimestamp();
+			this.fpath = new Path(context.getOutputDir(), getFileName(tsn));
+			this.headerDictionary = context.getHeaderDictionary();
+			writer = context.createWriter(this.fpath, valueClass, compType, headerDictionary);
 		}
 
-		int origRep = hdfsConf.getInt("dfs.replication", -1);
-		hdfsConf.setInt("dfs.replication", hdfsReplication);
+		sfWriter = writer;
+		fstr = this.fpath.toString();
+		fileOpened();
 
-		sfWriter = SequenceFile.createWriter(this.fs, hdfsConf, this.fpath,
-				Text.class, Text.class, compType);
+		LOGGER.info("Opened " + this.fpath.toString());
 
-		hdfsConf.setInt("dfs.replication", origRep);
+		prepareNextFile();
+
+		return fstr;
+	}
+
+	/**
+	 * Called on the rotation executor when <code>path</code> could not be
+	 * closed.  Renames what was written to the .invalid suffix and keeps
+	 * the failure for the next {@link #checkSize()}.
+	 */
+	private void rotationFailed(Path path, Exception e) {
+		LOGGER.severe("Failed to close " + path + ": " + e.getMessage());
+
+		String name = path.toString();
+		if (name.endsWith(OCCUPIED_SUFFIX)) {
+			Path invalidPath = new Path(name.substring(0, name.length() - OCCUPIED_SUFFIX.length()) +
+					INVALID_SUFFIX);
+			try {
+				FileSystem fs = context.getFileSystem();
+				if (fs.exists(path) && !fs.rename(path, invalidPath))
+					LOGGER.warning("Failed rename of " + name);
+			} catch (IOException e2) {
+				LOGGER.warning("Failed rename of " + name + ": " + e2.getMessage());
+			}
+		}
+
+		IOException failure = new IOException("Failed to close " + path + " in the background");
+		failure.initCause(e);
+		rotationFailure = failure;
+	}
+
+	/**
+	 * Sorted version of {@link #createFile()}.  Nothing is created in the
+	 * file system until the file is rotated; the sorted file is then
+	 * merged on the rotation executor, so that the merge does not hold up
+	 * the thread writing the records.
+	 */
+	private String createSortedFile() throws IOException {
+		TimestampSerialno tsn = getTimestampSerialNo();
+
+		if (sorter != null) {
+			final HDFSSortedOutput oldSorter = sorter;
+			final Path oldPath = fpath;
+			final Class<?> oldValueClass = valueClass;
+			final SequenceFile.CompressionType oldCompType = compType;
+			final HDFSHeaderDictionary oldDictionary = headerDictionary;
+			final HDFSRecordIndex.Builder oldIndex = recordIndex;
+			sorter = null;
+
+			context.getRotationExecutor().execute(new Runnable() {
+				public void run() {
+					try {
+						finishSortedFile(oldSorter, oldPath, oldValueClass, oldCompType,
+								oldDictionary, oldIndex);
+					} catch (IOException e) {
+						rotationFailed(oldPath, e);
+					} catch (RuntimeException e) {
+						rotationFailed(oldPath, e);
+					}
+				}
+			});
+		} else {
+			close();
+		}
+
+		this.createTimestamp = tsn.getTimestamp();
+		this.fpath = new Path(context.getOutputDir(), getFileName(tsn));
+		fstr = this.fpath.toString();
+
+		this.compType = getCompressionType();
+		this.headerDictionary = context.getHeaderDictionary();
+		sorter = new HDFSSortedOutput(sortBufferBytes, spillDirectory, context.getKeyClass());
+		fileOpened();
 
 		LOGGER.info("Opened " + this.fpath.toString());
 
-		return this.fpath.toString();
+		return fstr;
+	}
+
+	/**
+	 * WARC version of {@link #createFile()}.  The file starts with a
+	 * warcinfo record.
+	 */
+	private String createWarcFile() throws IOException {
+		TimestampSerialno tsn = getTimestampSerialNo();
+
+		close();
+
+		this.createTimestamp = tsn.getTimestamp();
+		this.fpath = new Path(context.getOutputDir(), getFileName(tsn));
+		fstr = this.fpath.toString();
+
+		this.compType = SequenceFile.CompressionType.NONE;
+		warcOut = context.createStream(this.fpath);
+		try {
+			getWarcEncoder().write(warcOut, "warcinfo", HDFSWarcEncoder.newRecordId(),
+					new String [] {
+						"WARC-Date", HDFSWarcEncoder.toWarcDate(createTimestamp),
+						"WARC-Filename", getFinalName(this.fpath)
+					},
+					"application/warc-fields", getWarcInfo());
+		} catch (IOException e) {
+			warcOut.close();
+			warcOut = null;
+			throw e;
+		}
+		fileOpened();
+
+		LOGGER.info("Opened " + this.fpath.toString());
+
+		return fstr;
+	}
+
+	/**
+	 * @return block of the warcinfo record of new WARC files
+	 */
+	protected byte [] getWarcInfo() {
+		return ("software: Heritrix HDFSWriter" + HDFSWarcEncoder.CRLF +
+				"format: WARC File Format 1.0" + HDFSWarcEncoder.CRLF).getBytes();
+	}
+
+	/**
+	 * Starts creating the next file on the rotation executor.
+	 */
+	private void prepareNextFile() throws IOException {
+		TimestampSerialno tsn = getTimestampSerialNo();
+		final Path path = new Path(context.getOutputDir(), getFileName(tsn));
+		final Class<?> fileValueClass = valueClass;
+		final SequenceFile.CompressionType fileCompType = compType;
+		final HDFSHeaderDictionary fileDictionary = context.getHeaderDictionary();
+
+		nextTimestamp = tsn.getTimestamp();
+		nextPath = path;
+		nextHeaderDictionary = fileDictionary;
+		nextWriter = context.getRotationExecutor().submit(new Callable<SequenceFile.Writer>() {
+			public SequenceFile.Writer call() throws IOException {
+				return context.createWriter(path, fileValueClass, fileCompType, fileDictionary);
+			}
+		});
+	}
+
+	/**
+	 * Closes and deletes the file created ahead of time, if any.
+	 */
+	private void discardNextFile() throws IOException {
+		if (nextWriter == null)
+			return;
+
+		try {
+			nextWriter.get().close();
+			context.getFileSystem().delete(nextPath, false);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for " + nextPath);
+		} catch (ExecutionException e) {
+			// Nothing was created
+		} finally {
+			nextWriter = null;
+		}
+	}
+
+	/**
+	 * @return name of a new file, including the occupied suffix
+	 */
+	private String getFileName(TimestampSerialno tsn) {
+		if (body)
+			return pairedName + BODY_MARKER + OCCUPIED_SUFFIX;
+		return this.prefix + '-' + getUniqueBasename(tsn) +
+			((this.suffix == null || this.suffix.length() <= 0) ? "" : "-" + this.suffix) +
+			((this.partition < 0) ? "" : "-part-" + serialNoFormatter.format(this.partition)) +
+			((this.stored) ? STORED_MARKER : "") +
+			((this.warcOutput) ? WARC_SUFFIX : "") +
+			OCCUPIED_SUFFIX;
+	}
+
+	/**
+	 * @return name <code>path</code> will have once closed
+	 */
+	static String getFinalName(Path path) {
+		String name = path.getName();
+		return name.endsWith(OCCUPIED_SUFFIX) ?
+				name.substring(0, name.length() - OCCUPIED_SUFFIX.length()) : name;
+	}
+
+	/**
+	 * @return compression type of new files
+	 */
+	private SequenceFile.CompressionType getCompressionType() {
+		return (stored) ? SequenceFile.CompressionType.NONE : context.getCompressionType();
 	}
 
 	protected synchronized TimestampSerialno getTimestampSerialNo() {
@@ -253,8 +826,9 @@ public abstract class HDFSWriterPoolMember extends WriterPoolMember implements A
 	 * @return Instance of data structure that has timestamp and serial no.
 	 */
 	protected synchronized TimestampSerialno getTimestampSerialNo(final String timestamp) {
+		// body files take the name of their metadata file
 		return new TimestampSerialno((timestamp != null) ? timestamp: ArchiveUtils.get14DigitDate(),
-				serialNo.getAndIncrement());
+				(body) ? -1 : serialNo.getAndIncrement());
 	}
 
 	/**
@@ -271,30 +845,6 @@ public abstract class HDFSWriterPoolMember extends WriterPoolMember implements A
 			HDFSWriterPoolMember.serialNoFormatter.format(tsn.getSerialNumber());
 	}
 
-	/**
-	 * Class for serializing an integer to a byte buffer
-	 */
-	private static class IntegerSerializer extends ByteArrayOutputStream {
-		DataOutputStream dos = null;
-
-		public IntegerSerializer() {
-			super(4);
-			dos = new DataOutputStream(this);
-		}
-
-		public void write(int val, byte [] dst, int offset) throws IOException {
-			reset();
-			dos.writeInt(val);
-
-			if (count != 4)
-				throw new AssertionError(count != 4);
-
-			System.arraycopy(buf, 0, dst, offset, 4);
-		}
-	}
-
-	private IntegerSerializer iser = new IntegerSerializer();
-
 	/**
 	 * Post write tasks.
 	 * 
@@ -313,19 +863,228 @@ public abstract class HDFSWriterPoolMember extends WriterPoolMember implements A
 	 * @exception IOException
 	 */
 	protected void postWriteRecordTasks(String uri) throws IOException {
-		Text key = new Text(uri);
-		Text value = new Text();
-		iser.write(accumOffset-4, accumBuffer, 0);
-		value.set(accumBuffer, 0, accumOffset);
-		sfWriter.append(key, value);
-		accumOffset = 4;
+		try {
+			textValue.set(getAccumulator());
+
+			appendRaw(uri, textValue, payloadDigest);
+		} finally {
+			textValue.set(null);
+			accum.reset();
+		}
+
+		super.postWriteRecordTasks();
+	}
 
-		if (accumBuffer.length > 1048576)
-			accumBuffer = new byte [ 262144 ];
+	/**
+	 * Appends a record whose value is streamed by <code>value</code> rather
+	 * than accumulated with the write methods.  The value must serialize
+	 * as an instance of the value class of the file, which is
+	 * {@link HDFSWriterDocument} when streaming appends are enabled.
+	 *
+	 * @param uri key of the record
+	 * @param value uncompressed value bytes
+	 * @exception IOException
+	 */
+	protected void appendRecord(String uri, SequenceFile.ValueBytes value) throws IOException {
+		appendRaw(uri, value, payloadDigest);
 
 		super.postWriteRecordTasks();
 	}
 
+	/**
+	 * Appends one record to the current file right away.
+	 */
+	private synchronized void appendRaw(String uri, SequenceFile.ValueBytes value,
+			byte [] digest) throws IOException {
+		if (!isFileOpen()) {
+			// Closed by the idle check since checkSize()
+			createFile();
+		}
+
+		rawKeyBuffer.reset();
+		writeKey(rawKeyBuffer, uri);
+
+		appendRaw(rawKeyBuffer.getData(), rawKeyBuffer.getLength(), value, getFingerprint(uri),
+				digest);
+
+		if (rawKeyBuffer.getData().length > 65536)
+			rawKeyBuffer = new DataOutputBuffer();
+	}
+
+	private void appendRaw(byte [] key, int keyLength, SequenceFile.ValueBytes value,
+			long fingerprint, byte [] digest) throws IOException {
+		boolean compress = (compType == SequenceFile.CompressionType.RECORD);
+		long start = System.nanoTime();
+		int uncompressedLength = keyLength + value.getSize();
+
+		try {
+			if (compress)
+				value = compressValue(value);
+
+			if (sorter != null) {
+				sorter.add(key, keyLength, value, compress, fingerprint, digest);
+			} else {
+				long offset = sfWriter.getLength();
+				sfWriter.appendRaw(key, 0, keyLength, value);
+				if (recordIndex != null)
+					recordIndex.add(fingerprint, offset, 8 + keyLength + value.getSize());
+				if (dedupFile != null)
+					dedupFile.add(digest, offset, 8 + keyLength + value.getSize());
+				if (compType == SequenceFile.CompressionType.BLOCK)
+					lastRecordLength = (offset == lastRecordOffset) ? lastRecordLength + 1 : 0;
+				else
+					lastRecordLength = 8 + keyLength + value.getSize();
+				lastRecordOffset = offset;
+			}
+			fileAppended(keyLength, value.getSize());
+			countDiskBytes();
+			context.getMetrics().recordAppended(uncompressedLength, System.nanoTime() - start);
+		} finally {
+			if (compress)
+				rawValueBuffer.reset();
+		}
+	}
+
+	/**
+	 * @return URL fingerprint of <code>uri</code> for the record index,
+	 *  or 0 if there is no index
+	 */
+	private long getFingerprint(String uri) throws IOException {
+		if (!recordIndexEnabled)
+			return 0;
+		return HDFSRecordIndex.fingerprint(uri, getFingerprintDigest());
+	}
+
+	private MessageDigest getFingerprintDigest() throws IOException {
+		if (fingerprintDigest == null) {
+			try {
+				fingerprintDigest = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IOException("MD5 not available");
+			}
+		}
+		return fingerprintDigest;
+	}
+
+	/**
+	 * Serializes the key of the record for <code>uri</code> as an
+	 * instance of the key class of the pool.
+	 */
+	private void writeKey(DataOutputBuffer out, String uri) throws IOException {
+		Class<?> keyClass = context.getKeyClass();
+		if (keyClass == HDFSFingerprintKey.class)
+			out.writeLong(HDFSFingerprintKey.fingerprint(uri, getFingerprintDigest()));
+		else if (keyClass == HDFSSurtKey.class)
+			HDFSSurtKey.write(out, uri);
+		else
+			Text.writeString(out, (sortedOutput) ? URIUtils.getSurtKey(uri) : uri);
+	}
+
+	/**
+	 * Accounts for a record appended to the current file
+	 */
+	private void fileAppended(int keyLength, int valueLength) {
+		fileRecords++;
+
+		// Mirrors SequenceFile.Writer.checkAndWriteSync()
+		if (fileLength >= lastSyncPos + SequenceFile.SYNC_INTERVAL) {
+			fileLength += 4 + SYNC_HASH_SIZE;
+			lastSyncPos = fileLength;
+		}
+
+		// record length, key length, key, value
+		fileLength += 4 + 4 + keyLength + valueLength;
+	}
+
+	private static synchronized ScheduledExecutorService getTimer() {
+		if (timer == null) {
+			timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "HDFSWriterTimer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return timer;
+	}
+
+	/**
+	 * Raw form of a Text value holding the accumulated record: the Text
+	 * length, then the 4 byte record length and the record itself.
+	 */
+	private static class TextValue implements SequenceFile.ValueBytes {
+		private HDFSSpillBuffer data;
+
+		public void set(HDFSSpillBuffer data) {
+			this.data = data;
+		}
+
+		public int getSize() {
+			int length = 4 + (int)data.getLength();
+			return WritableUtils.getVIntSize(length) + length;
+		}
+
+		public void writeUncompressedBytes(DataOutputStream out) throws IOException {
+			WritableUtils.writeVInt(out, 4 + (int)data.getLength());
+			out.writeInt((int)data.getLength());
+			data.writeTo(out);
+		}
+
+		public void writeCompressedBytes(DataOutputStream out) throws IOException {
+			throw new IllegalArgumentException("TextValue is not compressed");
+		}
+	}
+
+	/**
+	 * Compresses <code>value</code> the same way SequenceFile's RECORD
+	 * compression would, for use with {@link SequenceFile.Writer#appendRaw}.
+	 */
+	private SequenceFile.ValueBytes compressValue(SequenceFile.ValueBytes value) throws IOException {
+		if (deflateFilter == null) {
+			CompressionCodec codec = context.getCodec();
+			rawValueBuffer = new HDFSSpillBuffer(context.getBufferPool(), spillThresholdBytes, spillDirectory);
+			compressor = CodecPool.getCompressor(codec);
+			deflateFilter = codec.createOutputStream(rawValueBuffer, compressor);
+			deflateOut = new DataOutputStream(new BufferedOutputStream(deflateFilter));
+		}
+
+		rawValueBuffer.reset();
+		deflateFilter.resetState();
+		value.writeUncompressedBytes(deflateOut);
+		deflateOut.flush();
+		deflateFilter.finish();
+
+		if (rawValueBuffer.getLength() > Integer.MAX_VALUE)
+			throw new IOException("Compressed record too large: " + rawValueBuffer.getLength());
+
+		compressedValue.set(rawValueBuffer);
+		return compressedValue;
+	}
+
+	/**
+	 * Value that has already been compressed by {@link #compressValue}
+	 */
+	private static class CompressedValue implements SequenceFile.ValueBytes {
+		private HDFSSpillBuffer data;
+
+		public void set(HDFSSpillBuffer data) {
+			this.data = data;
+		}
+
+		public int getSize() {
+			return (int)data.getLength();
+		}
+
+		public void writeUncompressedBytes(DataOutputStream out) throws IOException {
+			throw new IllegalArgumentException("CompressedValue is compressed");
+		}
+
+		public void writeCompressedBytes(DataOutputStream out) throws IOException {
+			data.writeTo(out);
+		}
+	}
+
 	/**
 	 * Postion in current physical file.
 	 * Used making accounting of bytes written.
@@ -336,10 +1095,11 @@ public abstract class HDFSWriterPoolMember extends WriterPoolMember implements A
 	public long getPosition() throws IOException {
 		long position = 0;
 
-		if (this.sfWriter != null) {
+		if (isFileOpen()) {
 			// Call flush on underlying file though probably not needed assuming
 			// above this.out.flush called through to this.fos.
-			position = this.sfWriter.getLength() + accumOffset;
+			position = getFileLength() + 4 +
+				((accum == null) ? 0 : accum.getLength());
 		}
 
 		return position;
@@ -350,80 +1110,327 @@ public abstract class HDFSWriterPoolMember extends WriterPoolMember implements A
 	}
 
 	protected void write(final byte [] b) throws IOException {
-		if (accumBuffer.length - accumOffset < b.length)
-			growAccumBuffer(b.length-(accumBuffer.length-accumOffset));
-
-		System.arraycopy(b, 0, accumBuffer, accumOffset, b.length);
-
-		accumOffset += b.length;
+		write(b, 0, b.length);
 	}
 
 	protected void write(byte[] b, int off, int len) throws IOException {
-		if (accumBuffer.length - accumOffset < len)
-			growAccumBuffer(len-(accumBuffer.length-accumOffset));
-
-		System.arraycopy(b, off, accumBuffer, accumOffset, len);
-
-		accumOffset += len;
+		ensureAccumCapacity(len);
+		accum.write(b, off, len);
 	}
 
 	protected void write(int b) throws IOException {
-		if (accumBuffer.length - accumOffset < 1)
-			growAccumBuffer(1);
-
-		accumBuffer[accumOffset] = (byte)b;
-		accumOffset++;
+		ensureAccumCapacity(1);
+		accum.write(b);
 	}
 
 	protected void readFullyFrom(final InputStream is, final long recordLength)
 		throws IOException {
 
-		int total = 0;
-		int remain = accumBuffer.length - accumOffset;
+		ensureAccumCapacity(recordLength);
+		accum.readFrom(is, recordLength);
+	}
 
-		if (remain < recordLength)
-			growAccumBuffer((int)recordLength-remain);
+	/**
+	 * @return stream that appends to the accumulator
+	 */
+	protected OutputStream getAccumulatorStream() {
+		return getAccumulator();
+	}
 
-		total = is.read(accumBuffer, accumOffset, (int)recordLength);
-		accumOffset += total;
+	/**
+	 * Makes sure the accumulator can take <code>needed</code> more bytes,
+	 * moving it to a spill file if they take it over the threshold.
+	 *
+	 * @exception IOException if the record would not fit in a Text value
+	 */
+	protected void ensureAccumCapacity(long needed) throws IOException {
+		long required = 4 + getAccumulator().getLength() + needed;
+		if (required > Integer.MAX_VALUE - 5)
+			throw new IOException("Record too large for a SequenceFile value: " + required);
 
-		if (total != recordLength) {
-			throw new IOException("Read " + total + " but expected " +
-					recordLength);
-		}
+		accum.reserve(needed);
 	}
 
-	private void growAccumBuffer(int needed) {
-		byte [] newBuf = new byte [ accumBuffer.length + needed + 8192 ];
-		System.arraycopy(accumBuffer, 0, newBuf, 0, accumOffset);
-		accumBuffer = newBuf;
+	private HDFSSpillBuffer getAccumulator() {
+		if (accum == null)
+			accum = new HDFSSpillBuffer(context.getBufferPool(), spillThresholdBytes, spillDirectory);
+		return accum;
 	}
 
 	@Override
-	public void close() throws IOException {
-		if (this.sfWriter == null) {
+	public synchronized void close() throws IOException {
+		discardNextFile();
+
+		if (!isFileOpen()) {
 			return;
 		}
 
-		this.sfWriter.close();
+		if (this.warcOut != null) {
+			FSDataOutputStream out = this.warcOut;
+			this.warcOut = null;
+			this.fpath = finishFile(out, this.fpath, null, fileDiskBytes);
+		} else if (this.sorter != null) {
+			HDFSSortedOutput s = this.sorter;
+			this.sorter = null;
+			this.fpath = finishSortedFile(s, this.fpath, valueClass, compType, headerDictionary,
+					recordIndex);
+		} else {
+			SequenceFile.Writer writer = this.sfWriter;
+			this.sfWriter = null;
+			this.fpath = finishFile(writer, this.fpath, recordIndex, fileDiskBytes);
+		}
+		recordIndex = null;
+		fstr = this.fpath.toString();
+
+		if (compressor != null) {
+			CodecPool.returnCompressor(compressor);
+			compressor = null;
+			deflateFilter = null;
+			deflateOut = null;
+			rawValueBuffer.reset();
+			rawValueBuffer = null;
+		}
+	}
+
+	/**
+	 * Closes a file, renames it to its final name and, in local staging
+	 * mode, queues it for upload.  The record index, if any, is written
+	 * under the final name before the file is renamed.
+	 *
+	 * @param diskBytes length of the file already counted in the metrics
+	 * @return final path of the file
+	 */
+	private Path finishFile(Closeable writer, Path path,
+			HDFSRecordIndex.Builder index, long diskBytes) throws IOException {
+		long start = System.nanoTime();
+		boolean closed = false;
+		try {
+			writer.close();
+			closed = true;
+			return finishFile(path, index, diskBytes);
+		} finally {
+			if (closed)
+				context.getMetrics().fileClosed(System.nanoTime() - start);
+			else
+				context.getMetrics().fileAbandoned();
+		}
+	}
+
+	private Path finishFile(Path path, HDFSRecordIndex.Builder index,
+			long diskBytes) throws IOException {
+		FileSystem fs = context.getFileSystem();
+
+		if (path != null && fs.exists(path)) {
+			String name = path.toString();
 
-		if (this.fpath != null && this.fs.exists(fpath)) {
-			String path = this.fpath.toString();
+			// the data file of a MapFile and the index too
+			context.getMetrics().diskBytesWritten(fs.getContentSummary(path).getLength() - diskBytes);
 
-			if (path.endsWith(OCCUPIED_SUFFIX)) {
-				fstr = path.substring(0, path.length() - OCCUPIED_SUFFIX.length());
-				Path finalPath = new Path(fstr);
+			if (index != null) {
+				Path indexPath = index.write(fs, new Path(name.endsWith(OCCUPIED_SUFFIX) ?
+						name.substring(0, name.length() - OCCUPIED_SUFFIX.length()) : name));
+				if (context.getUploader() != null)
+					context.getUploader().upload(indexPath);
+			}
+
+			if (name.endsWith(OCCUPIED_SUFFIX)) {
+				Path finalPath = new Path(name.substring(0, name.length() - OCCUPIED_SUFFIX.length()));
 
-				if (!this.fs.rename(fpath, finalPath)) {
-					LOGGER.warning("Failed rename of " + path);
+				if (!fs.rename(path, finalPath)) {
+					LOGGER.warning("Failed rename of " + name);
 				}
 
-				this.fpath = new Path(fstr);
+				path = finalPath;
 			}
 
-			// not getting size here because it adds more dependency on HDFS
-			LOGGER.info("Closed file: " + this.fpath.toString());
+			if (context.getUploader() != null)
+				context.getUploader().upload(path);
+
+			LOGGER.info("Closed file: " + path.toString());
 		}
+
+		return path;
+	}
+
+	/**
+	 * Writes the records collected by <code>sorted</code> as a MapFile in
+	 * directory <code>dir</code>, then closes it like {@link #finishFile}.
+	 *
+	 * @return final path of the MapFile directory
+	 */
+	private Path finishSortedFile(HDFSSortedOutput sorted, Path dir, Class<?> fileValueClass,
+			SequenceFile.CompressionType fileCompType, HDFSHeaderDictionary fileDictionary,
+			HDFSRecordIndex.Builder recordIndex) throws IOException {
+		SequenceFile.Writer data = null;
+		SequenceFile.Writer index = null;
+
+		try {
+			data = context.createWriter(new Path(dir, MapFile.DATA_FILE_NAME), fileValueClass,
+					fileCompType, fileDictionary);
+			index = context.createIndexWriter(new Path(dir, MapFile.INDEX_FILE_NAME));
+			sorted.writeTo(data, index, context.getConf().getInt("io.map.index.interval", 128),
+					recordIndex, (dedupTable == null) ? null : dedupTable.forFile(getFinalName(dir),
+							fileCompType));
+			index.close();
+		} catch (IOException e) {
+			IOUtils.closeStream(index);
+			IOUtils.closeStream(data);
+			context.getMetrics().fileAbandoned();
+			throw e;
+		} finally {
+			sorted.discard();
+		}
+
+		return finishFile(data, dir, recordIndex, 0);
+	}
+
+	/**
+	 * @return stream of the current WARC file, opening one if none is open
+	 */
+	protected synchronized FSDataOutputStream getWarcStream() throws IOException {
+		if (warcOut == null)
+			createFile();
+		return warcOut;
+	}
+
+	/**
+	 * @return encoder of the records of WARC files
+	 */
+	protected HDFSWarcEncoder getWarcEncoder() {
+		if (warcEncoder == null)
+			warcEncoder = new HDFSWarcEncoder(warcLevel);
+		return warcEncoder;
+	}
+
+	/**
+	 * Frees the native resources of the WARC encoder, if any
+	 */
+	protected void endWarcEncoder() {
+		if (warcEncoder != null) {
+			warcEncoder.end();
+			warcEncoder = null;
+		}
+	}
+
+	/**
+	 * Accounts for the records of one capture written to the current WARC
+	 * file.  The main record, at <code>offset</code> and of
+	 * <code>length</code> bytes, goes into the dedup table.
+	 *
+	 * @param uncompressedBytes bytes of the records before compression
+	 * @param nanos time taken to write them
+	 */
+	protected synchronized void warcRecordsWritten(long offset, long length,
+			long uncompressedBytes, long nanos) throws IOException {
+		fileRecords++;
+		countDiskBytes();
+		context.getMetrics().recordAppended(uncompressedBytes, nanos);
+		if (dedupFile != null)
+			dedupFile.add(payloadDigest, offset, (int)length);
+
+		super.postWriteRecordTasks();
+	}
+
+	/**
+	 * @return output partition of this member, or -1 if not partitioned
+	 */
+	public int getPartition() {
+		return partition;
+	}
+
+	/**
+	 * Assigns this member to an output partition.  Must be called before
+	 * the first file is created.
+	 */
+	public void setPartition(int partition) {
+		this.partition = partition;
+	}
+
+	/**
+	 * @return header dictionary of the current file, or null if its
+	 *  records cannot be encoded
+	 */
+	protected HDFSHeaderDictionary getHeaderDictionary() {
+		return headerDictionary;
+	}
+
+	/**
+	 * Sets the payload digest of the record about to be written, for the
+	 * dedup table.  The writer clears it once the record is written.
+	 */
+	protected void setPayloadDigest(byte [] payloadDigest) {
+		this.payloadDigest = payloadDigest;
+	}
+
+	protected byte [] getPayloadDigest() {
+		return payloadDigest;
+	}
+
+	public boolean isStored() {
+		return stored;
+	}
+
+	/**
+	 * Makes this member write uncompressed files for the records that
+	 * bypass compression.  Must be called before the first file is created.
+	 */
+	public void setStored(boolean stored) {
+		this.stored = stored;
+	}
+
+	public boolean isBody() {
+		return body;
+	}
+
+	/**
+	 * Makes this member write the bodies of split records.  Its files are
+	 * opened by {@link #openBodyFile(String)}; sorted output, background
+	 * rotation and group commit are turned off since the metadata member
+	 * needs the location of each body as soon as it is appended.  Must be
+	 * called before the first file is created.
+	 */
+	void setBody(boolean body) {
+		this.body = body;
+		if (body) {
+			this.sortedOutput = false;
+			this.backgroundRotation = false;
+			this.warcOutput = false;
+		}
+	}
+
+	/**
+	 * Makes sure the current file is the body file paired with the
+	 * metadata file <code>metadataName</code>, rotating if it is not.
+	 */
+	synchronized void openBodyFile(String metadataName) throws IOException {
+		if (isFileOpen() && metadataName.equals(pairedName))
+			return;
+		pairedName = metadataName;
+		createFile();
+	}
+
+	/**
+	 * @return "file offset length" location of the last record appended
+	 *  to the current file, or null if none was
+	 */
+	protected synchronized String getLastRecordLocation() {
+		if (lastRecordOffset < 0)
+			return null;
+		return getFinalName(fpath) + ' ' + lastRecordOffset + ' ' + lastRecordLength;
+	}
+
+	/**
+	 * @return file system state shared with the rest of the pool
+	 */
+	HDFSClientContext getContext() {
+		return context;
+	}
+
+	/**
+	 * @return serial number sequence shared with the rest of the pool
+	 */
+	AtomicInteger getSerialNo() {
+		return serialNo;
 	}
 
 	protected String getCreateTimestamp() {
@@ -0,0 +1,166 @@
+/* HDFSWriterRecord
+ *
+ * $Id$
+ *
+ * Copyright (C) 2010 Zvents
+ *
+ * This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ * Heritrix is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * any later version.
+ *
+ * Heritrix is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with Heritrix; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.archive.io.hdfs;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.SequenceFile;
+import org.archive.io.ReplayInputStream;
+
+
+/**
+ * A record value that is streamed straight from the Recorder's replay
+ * streams into the SequenceFile value, without materializing the whole
+ * record in an intermediate buffer.
+ *
+ * The serialized form is a 4 byte length followed by the record bytes,
+ * which is exactly what {@link HDFSWriterDocument#write(java.io.DataOutput)}
+ * produces, so files written this way declare {@link HDFSWriterDocument}
+ * as their value class and can be read back with it directly.
+ *
+ * With {@link #setEncodedHeaders} the header part of the record is
+ * replaced by its deflated form, as described in
+ * {@link HDFSHeaderDictionary}.
+ *
+ * Instances are reusable; call {@link #reset} before each record.
+ */
+public class HDFSWriterRecord implements SequenceFile.ValueBytes {
+
+	private byte [] headerBytes;
+	private byte [] fieldBytes;
+	private ReplayInputStream request;
+	private ReplayInputStream response;
+	private long length;
+
+	/**
+	 * Deflated header part, or null if the record is written as is
+	 */
+	private byte [] encodedHeaders;
+	private int encodedLength;
+	private int headerLength;
+	private int dictionaryId;
+	private long responseHeaderLength;
+
+	/**
+	 * Sets up this record for the next write.
+	 *
+	 * @param headerBytes header line, including the trailing CRLF
+	 * @param fieldBytes block of ANVL fields
+	 * @param request replay of the request, or null if it is not written
+	 * @param response replay of the response
+	 * @throws IOException if the record does not fit in a SequenceFile value
+	 */
+	public void reset(byte [] headerBytes, byte [] fieldBytes,
+			ReplayInputStream request, ReplayInputStream response) throws IOException {
+		this.headerBytes = headerBytes;
+		this.fieldBytes = fieldBytes;
+		this.request = request;
+		this.response = response;
+		this.encodedHeaders = null;
+
+		this.length = headerBytes.length + fieldBytes.length + response.remaining();
+		if (request != null)
+			this.length += request.remaining();
+
+		if (this.length > Integer.MAX_VALUE - 4)
+			throw new IOException("Record too large for a SequenceFile value: " + this.length);
+	}
+
+	/**
+	 * @return length of the record, not counting the length prefix
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Writes the header part of the record in deflated form.  The header
+	 * part is the header line, the fields, the request and the first
+	 * <code>responseHeaderLength</code> bytes of the response.
+	 *
+	 * @param dictionary dictionary the header part was deflated against
+	 * @param encoded deflated header part; not copied
+	 * @param encodedLength length of the deflated header part
+	 * @param responseHeaderLength length of the response headers
+	 */
+	public void setEncodedHeaders(HDFSHeaderDictionary dictionary, byte [] encoded,
+			int encodedLength, long responseHeaderLength) throws IOException {
+		this.headerLength = (int)(headerBytes.length + fieldBytes.length + responseHeaderLength +
+				((request != null) ? request.remaining() : 0));
+		this.encodedHeaders = encoded;
+		this.encodedLength = encodedLength;
+		this.dictionaryId = dictionary.getId();
+		this.responseHeaderLength = responseHeaderLength;
+	}
+
+	public int getSize() {
+		if (encodedHeaders != null)
+			return HDFSHeaderDictionary.ENCODED_OVERHEAD + encodedLength + (int)(length - headerLength);
+		return 4 + (int)length;
+	}
+
+	public void writeUncompressedBytes(DataOutputStream out) throws IOException {
+		if (encodedHeaders != null) {
+			out.writeInt(HDFSHeaderDictionary.ENCODED);
+			out.writeInt(dictionaryId);
+			out.writeInt((int)length);
+			out.writeInt(headerLength);
+			out.writeInt(encodedLength);
+			out.write(encodedHeaders, 0, encodedLength);
+
+			IOUtils.skipFully(response, responseHeaderLength);
+		} else {
+			out.writeInt((int)length);
+			out.write(headerBytes);
+			out.write(fieldBytes);
+
+			if (request != null)
+				request.readFullyTo(out);
+		}
+
+		response.readFullyTo(out);
+
+		// Should be zero at this stage.  If not, something is
+		// wrong.
+		if (response.remaining() != 0)
+			throw new IOException("Gap between expected and actual: " + response.remaining());
+	}
+
+	public void writeCompressedBytes(DataOutputStream out) throws IllegalArgumentException, IOException {
+		throw new IllegalArgumentException("HDFSWriterRecord is not compressed");
+	}
+
+	/**
+	 * Drops the references to the replay streams.  Does not close them.
+	 */
+	public void clear() {
+		headerBytes = null;
+		fieldBytes = null;
+		request = null;
+		response = null;
+		length = 0;
+		encodedHeaders = null;
+	}
+}
@@ -0,0 +1,70 @@
+/* HostPartitioner
+ *
+ * $Id$
+ *
+ * Copyright (C) 2010 Zvents
+ *
+ * This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ * Heritrix is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * any later version.
+ *
+ * Heritrix is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with Heritrix; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.archive.io.hdfs;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.archive.io.hdfs.util.URIUtils;
+
+
+/**
+ * Partitions records by the host of their key, a URL or, with sorted
+ * output, its SURT form.  A leading "www." is ignored, as SURT keys drop
+ * it, so www.example.com and example.com share a partition.
+ *
+ * Used by {@link HDFSWriterPool} to route records to writer partitions,
+ * and usable unchanged as the Partitioner of a MapReduce job over output
+ * written with TEXT keys, so that a job with as many reducers as the
+ * crawl has partitions finds each host's records in the matching
+ * partition.  FINGERPRINT keys do not hold the host, and SURT keys are
+ * not {@link Text}; jobs over such output cannot use it.
+ */
+public class HostPartitioner extends Partitioner<Text, Writable> {
+
+	@Override
+	public int getPartition(Text key, Writable value, int numPartitions) {
+		return getPartition(key.toString(), numPartitions);
+	}
+
+	/**
+	 * @return partition of <code>uri</code>, a URL or a SURT key
+	 */
+	public int getPartition(String uri, int numPartitions) {
+		return (getPartitionKey(uri).hashCode() & Integer.MAX_VALUE) % numPartitions;
+	}
+
+	/**
+	 * @return the part of <code>uri</code> that decides its partition
+	 */
+	protected String getPartitionKey(String uri) {
+		String host = URIUtils.getSurtKeyHost(uri);
+		if (host != null)
+			return host;
+
+		host = URIUtils.getHost(uri);
+		if (host.startsWith("www."))
+			host = host.substring(4);
+		return host;
+	}
+}
@@ -0,0 +1,57 @@
+/* MaxAgeRotationPolicy
+ *
+ * $Id$
+ *
+ * Copyright (C) 2010 Zvents
+ *
+ * This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ * Heritrix is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * any later version.
+ *
+ * Heritrix is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with Heritrix; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.archive.io.hdfs;
+
+
+/**
+ * Rotates files that have been open for a maximum time, so that slow
+ * crawls still hand their data on within a bounded delay.  Idle files
+ * are checked every tenth of the maximum age, at least every second.
+ */
+public class MaxAgeRotationPolicy implements HDFSRotationPolicy {
+
+	private long maxAgeMs;
+
+	public MaxAgeRotationPolicy() {
+		this(60*60*1000);
+	}
+
+	public MaxAgeRotationPolicy(long maxAgeMs) {
+		this.maxAgeMs = maxAgeMs;
+	}
+
+	public boolean shouldRotate(long length, long records, long ageMs) {
+		return ageMs >= maxAgeMs;
+	}
+
+	public long getCheckIntervalMs() {
+		return Math.max(maxAgeMs / 10, 1000);
+	}
+
+	public long getMaxAgeMs() {
+		return maxAgeMs;
+	}
+	public void setMaxAgeMs(long maxAgeMs) {
+		this.maxAgeMs = maxAgeMs;
+	}
+}
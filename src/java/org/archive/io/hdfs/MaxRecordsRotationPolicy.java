@@ -0,0 +1,55 @@
+/* MaxRecordsRotationPolicy
+ *
+ * $Id$
+ *
+ * Copyright (C) 2010 Zvents
+ *
+ * This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ * Heritrix is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * any later version.
+ *
+ * Heritrix is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with Heritrix; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.archive.io.hdfs;
+
+
+/**
+ * Rotates files that hold a maximum number of records.
+ */
+public class MaxRecordsRotationPolicy implements HDFSRotationPolicy {
+
+	private long maxRecords;
+
+	public MaxRecordsRotationPolicy() {
+		this(100000);
+	}
+
+	public MaxRecordsRotationPolicy(long maxRecords) {
+		this.maxRecords = maxRecords;
+	}
+
+	public boolean shouldRotate(long length, long records, long ageMs) {
+		return records >= maxRecords;
+	}
+
+	public long getCheckIntervalMs() {
+		return 0;
+	}
+
+	public long getMaxRecords() {
+		return maxRecords;
+	}
+	public void setMaxRecords(long maxRecords) {
+		this.maxRecords = maxRecords;
+	}
+}
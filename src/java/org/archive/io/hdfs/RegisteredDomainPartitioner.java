@@ -0,0 +1,44 @@
+/* RegisteredDomainPartitioner
+ *
+ * $Id$
+ *
+ * Copyright (C) 2010 Zvents
+ *
+ * This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ * Heritrix is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * any later version.
+ *
+ * Heritrix is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with Heritrix; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.archive.io.hdfs;
+
+import org.archive.io.hdfs.util.URIUtils;
+import org.archive.net.PublicSuffixes;
+
+
+/**
+ * Partitions records by the registered domain of their URL key, as
+ * determined by the public suffix list, so that all hosts of a site
+ * (www.example.co.uk, images.example.co.uk) land in the same partition.
+ */
+public class RegisteredDomainPartitioner extends HostPartitioner {
+
+	@Override
+	protected String getPartitionKey(String uri) {
+		String host = super.getPartitionKey(uri);
+		if (host.length() == 0)
+			return host;
+
+		return PublicSuffixes.reduceSurtToAssignmentLevel(URIUtils.getSurtHost(host));
+	}
+}
@@ -169,6 +169,157 @@ public class URIUtils {
 		return lval;
 	}
 
+	/**
+	 * Returns the lower cased host of <code>uri</code>, without user info
+	 * or port, or the empty string if it has none.  Cheaper than parsing
+	 * the URI.
+	 */
+	public static String getHost(String uri) {
+		int start = uri.indexOf("://");
+		if (start != -1) {
+			start += 3;
+		} else {
+			// opaque form such as dns:www.foo.com
+			start = uri.indexOf(':');
+			if (start == -1)
+				return "";
+			start++;
+		}
+
+		int end = start;
+		while (end < uri.length()) {
+			char c = uri.charAt(end);
+			if (c == '/' || c == '?' || c == '#')
+				break;
+			if (c == '@')
+				start = end + 1;
+			end++;
+		}
+
+		int colon = uri.indexOf(':', start);
+		if (colon != -1 && colon < end)
+			end = colon;
+
+		return uri.substring(start, end).toLowerCase();
+	}
+
+	/**
+	 * Returns the SURT form of a host: www.example.co.uk becomes
+	 * uk,co,example,www,
+	 */
+	public static String getSurtHost(String host) {
+		StringBuilder sb = new StringBuilder(host.length() + 1);
+		appendSurtHost(sb, host);
+		return sb.toString();
+	}
+
+	private static void appendSurtHost(StringBuilder sb, String host) {
+		int end = host.length();
+		for (int dot = host.lastIndexOf('.'); ; dot = host.lastIndexOf('.', end - 1)) {
+			sb.append(host, dot + 1, end).append(',');
+			if (dot < 0)
+				break;
+			end = dot;
+		}
+	}
+
+	/**
+	 * Returns the canonical SURT key of <code>uri</code>, as used by
+	 * wayback style indexes: http://www.Example.com:8080/a/b?q#f becomes
+	 * com,example:8080)/a/b?q.  The scheme, user info, a leading "www.",
+	 * the default port of the scheme and the fragment are dropped and the
+	 * host is lower cased, so that keys of one site sort together.  URIs
+	 * without an authority, such as dns:, are returned unchanged.
+	 */
+	public static String getSurtKey(String uri) {
+		int start = uri.indexOf("://");
+		if (start == -1)
+			return uri;
+		String defaultPort = getDefaultPort(uri.substring(0, start));
+		start += 3;
+
+		int end = start;
+		while (end < uri.length()) {
+			char c = uri.charAt(end);
+			if (c == '/' || c == '?' || c == '#')
+				break;
+			if (c == '@')
+				start = end + 1;
+			end++;
+		}
+
+		String host = uri.substring(start, end).toLowerCase();
+		String port = null;
+		int colon = host.indexOf(':');
+		if (colon != -1) {
+			port = host.substring(colon + 1);
+			host = host.substring(0, colon);
+			if (port.equals(defaultPort) || port.length() == 0)
+				port = null;
+		}
+		if (host.startsWith("www."))
+			host = host.substring(4);
+
+		int fragment = uri.indexOf('#', end);
+		if (fragment == -1)
+			fragment = uri.length();
+
+		StringBuilder sb = new StringBuilder(uri.length());
+		appendSurtHost(sb, host);
+		sb.setLength(sb.length() - 1);
+		if (port != null)
+			sb.append(':').append(port);
+		sb.append(')');
+		if (end == fragment || uri.charAt(end) != '/')
+			sb.append('/');
+		sb.append(uri, end, fragment);
+
+		return sb.toString();
+	}
+
+	private static String getDefaultPort(String scheme) {
+		if (scheme.equalsIgnoreCase("http"))
+			return "80";
+		if (scheme.equalsIgnoreCase("https"))
+			return "443";
+		return null;
+	}
+
+	/**
+	 * Returns the host of a key made by {@link #getSurtKey}, without port:
+	 * com,example:8080)/a/b?q becomes example.com.  The "www." dropped by
+	 * getSurtKey is not restored.  Returns null if <code>key</code> is not
+	 * a SURT key.
+	 */
+	public static String getSurtKeyHost(String key) {
+		int paren = key.indexOf(')');
+		if (paren == -1 || key.indexOf("://") != -1)
+			return null;
+		int slash = key.indexOf('/');
+		if (slash != -1 && slash < paren)
+			return null;
+
+		int end = paren;
+		int colon = key.lastIndexOf(':', paren);
+		if (colon != -1) {
+			for (int i = colon + 1; i < paren; i++) {
+				if (!Character.isDigit(key.charAt(i)))
+					return null;
+			}
+			end = colon;
+		}
+
+		StringBuilder sb = new StringBuilder(end);
+		for (int i = end; i > 0; ) {
+			int comma = key.lastIndexOf(',', i - 1);
+			if (sb.length() > 0)
+				sb.append('.');
+			sb.append(key, comma + 1, i);
+			i = comma;
+		}
+		return sb.toString();
+	}
+
 	private static String urls [] = {
 		"none",
 		"http:",
@@ -1,22 +1,35 @@
 package org.archive.modules.writer;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import org.apache.log4j.Logger;
 import org.archive.io.ReplayInputStream;
 import org.archive.io.WriterPoolMember;
+import org.archive.io.hdfs.HDFSDedupTable;
+import org.archive.io.hdfs.HDFSGroupCommit;
+import org.archive.io.hdfs.HDFSNamedFieldsEncoder;
 import org.archive.io.hdfs.HDFSParameters;
+import org.archive.io.hdfs.HDFSRecordSnapshot;
+import org.archive.io.hdfs.HDFSWriteBehindQueue;
 import org.archive.io.hdfs.HDFSWriter;
+import org.archive.io.hdfs.HDFSWriterMetrics;
 import org.archive.io.hdfs.HDFSWriterPool;
 import org.archive.modules.CrawlURI;
 import org.archive.modules.ProcessResult;
 import org.archive.net.UURI;
 import org.archive.util.ArchiveUtils;
-import org.archive.util.anvl.ANVLRecord;
 
 
 /**
@@ -49,6 +62,29 @@ import org.archive.util.anvl.ANVLRecord;
  * }
  * </pre>
  *
+ * Setting <code>writeBehindQueueDepth</code> to a positive value moves the
+ * HDFS appends off the toe threads: records are copied into a bounded queue
+ * and written by <code>writeBehindThreads</code> flusher threads.  A toe
+ * thread that finds the queue full waits up to
+ * <code>writeBehindMaxWaitMs</code> and then fails the write.
+ *
+ * Without write-behind, setting <code>groupCommitBytes</code> in
+ * hdfsParameters makes toe threads append their records in batches
+ * through one writer ({@link HDFSGroupCommit}); each toe thread still
+ * waits until its own record has been written.
+ *
+ * With <code>dedup</code> set in hdfsParameters, the payload digest of
+ * each response body is looked up in the digest table of the pool; the
+ * digest computed by the fetcher is used if there is one, else a SHA-1 of
+ * the body.  A duplicate is written as a revisit record: the fields, with
+ * a Payload-Digest field and a Revisit-Of field giving the file, offset and
+ * length of the original, then the request and the response headers only.
+ *
+ * Metrics of the write path ({@link HDFSWriterMetrics}) are appended to
+ * the processor report and registered with the platform MBean server as
+ * <code>org.archive.io.hdfs:type=HDFSWriterMetrics,name=</code><i>bean
+ * name</i> while the processor runs.
+ *
  * @see org.archive.io.hdfs.HDFSParameters {@link org.archive.io.hdfs.HDFSParameters}
  *  for defining hdfsParameters
  *
@@ -73,6 +109,65 @@ public class HDFSWriterProcessor extends WriterPoolProcessor {
 		this.hdfsParameters = hdfsParameters;
 	}
 
+	/**
+	 * Maximum number of records waiting for the flusher threads.
+	 * 0 disables write-behind and writes on the toe thread.
+	 */
+	int writeBehindQueueDepth = 0;
+
+	/**
+	 * Number of flusher threads.  Each holds one writer from the pool, so
+	 * this should not exceed poolMaxActive.
+	 */
+	int writeBehindThreads = 1;
+
+	/**
+	 * How long a toe thread waits for room in a full write-behind queue
+	 * before giving up on the record.
+	 */
+	long writeBehindMaxWaitMs = 60000;
+
+	public int getWriteBehindQueueDepth() {
+		return writeBehindQueueDepth;
+	}
+
+	public void setWriteBehindQueueDepth(int writeBehindQueueDepth) {
+		this.writeBehindQueueDepth = writeBehindQueueDepth;
+	}
+
+	public int getWriteBehindThreads() {
+		return writeBehindThreads;
+	}
+
+	public void setWriteBehindThreads(int writeBehindThreads) {
+		this.writeBehindThreads = writeBehindThreads;
+	}
+
+	public long getWriteBehindMaxWaitMs() {
+		return writeBehindMaxWaitMs;
+	}
+
+	public void setWriteBehindMaxWaitMs(long writeBehindMaxWaitMs) {
+		this.writeBehindMaxWaitMs = writeBehindMaxWaitMs;
+	}
+
+	private transient HDFSWriteBehindQueue writeBehind = null;
+
+	private transient HDFSGroupCommit groupCommit = null;
+
+	private transient ObjectName metricsName = null;
+
+	/**
+	 * Encoder of the named fields block, one per toe thread
+	 */
+	private final transient ThreadLocal<HDFSNamedFieldsEncoder> fieldsEncoder =
+		new ThreadLocal<HDFSNamedFieldsEncoder>() {
+			@Override
+			protected HDFSNamedFieldsEncoder initialValue() {
+				return new HDFSNamedFieldsEncoder(getHdfsParameters());
+			}
+		};
+
 	@Override
 	long getDefaultMaxFileSize() {
 		return (20 * 1024 * 1024);
@@ -93,6 +188,98 @@ public class HDFSWriterProcessor extends WriterPoolProcessor {
 		setPool(new HDFSWriterPool(getHdfsParameters(), getPoolMaxActive(), getPoolMaxWaitMs()));
 	}
 
+	@Override
+	public synchronized void start() {
+		if (isRunning())
+			return;
+
+		super.start();
+
+		if (getWriteBehindQueueDepth() > 0) {
+			writeBehind = new HDFSWriteBehindQueue(getPool(), new WriteBehindListener(),
+					getWriteBehindQueueDepth(), getWriteBehindThreads());
+		} else if (getHdfsParameters().getGroupCommitBytes() > 0) {
+			groupCommit = new HDFSGroupCommit((HDFSWriterPool)getPool(),
+					getHdfsParameters().getGroupCommitBytes(),
+					getHdfsParameters().getGroupCommitMaxWaitMs());
+		}
+
+		registerMetrics();
+	}
+
+	@Override
+	public void stop() {
+		unregisterMetrics();
+
+		if (writeBehind != null) {
+			// Drain before the pool gets closed underneath the flushers
+			writeBehind.close();
+			writeBehind = null;
+		}
+
+		if (groupCommit != null) {
+			groupCommit.close();
+			groupCommit = null;
+		}
+
+		super.stop();
+	}
+
+	/**
+	 * @return metrics of the write path, or null if the processor has not
+	 *  been started
+	 */
+	public HDFSWriterMetrics getMetrics() {
+		HDFSWriterPool pool = (HDFSWriterPool)getPool();
+		return (pool == null) ? null : pool.getContext().getMetrics();
+	}
+
+	private void registerMetrics() {
+		HDFSWriterMetrics metrics = getMetrics();
+		if (metrics == null)
+			return;
+
+		try {
+			String name = (getBeanName() == null) ? "hdfsWriterProcessor" : getBeanName();
+			ObjectName objectName = new ObjectName("org.archive.io.hdfs:type=HDFSWriterMetrics,name=" +
+					ObjectName.quote(name));
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(objectName))
+				server.unregisterMBean(objectName);
+			server.registerMBean(metrics, objectName);
+			metricsName = objectName;
+		} catch (JMException e) {
+			LOG.warn("Failed to register metrics MBean", e);
+		}
+	}
+
+	private void unregisterMetrics() {
+		if (metricsName == null)
+			return;
+
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+		} catch (JMException e) {
+			LOG.warn("Failed to unregister metrics MBean", e);
+		}
+		metricsName = null;
+	}
+
+	@Override
+	public String report() {
+		HDFSWriterMetrics metrics = getMetrics();
+		if (metrics == null)
+			return super.report();
+
+		HDFSWriterPool pool = (HDFSWriterPool)getPool();
+		return super.report() + metrics.report() +
+			"  Writers active/idle: " + pool.getNumActive() + "/" + pool.getNumIdle() + "\n";
+	}
+
+	protected synchronized void addTotalBytesWritten(long bytes) {
+		setTotalBytesWritten(getTotalBytesWritten() + bytes);
+	}
+
 	@Override
 	protected ProcessResult innerProcessResult(CrawlURI uri) {
 		CrawlURI curi = uri;
@@ -170,7 +357,70 @@ public class HDFSWriterProcessor extends WriterPoolProcessor {
 	 * @throws IOException Signals that an I/O exception has occurred.
 	 */
 	protected ProcessResult write(final CrawlURI curi, long recordLength, InputStream in) throws IOException {
-		WriterPoolMember writerPoolMember = getPool().borrowFile();
+		byte [] payloadDigest = null;
+		HDFSRecordSnapshot revisit = null;
+
+		HDFSDedupTable dedupTable = ((HDFSWriterPool)getPool()).getContext().getDedupTable();
+		if (dedupTable != null &&
+				curi.getContentSize() >= Math.max(1, getHdfsParameters().getDedupMinBytes())) {
+			payloadDigest = getPayloadDigest(curi);
+			if (payloadDigest.length < HDFSDedupTable.KEY_BYTES) {
+				payloadDigest = null;
+			} else {
+				HDFSDedupTable.Location original = dedupTable.get(payloadDigest);
+				if (original != null)
+					revisit = HDFSRecordSnapshot.captureHeaders(curi.toString(),
+							getNamedFieldsBlock(curi, payloadDigest, original),
+							curi.getRecorder().getRecordedOutput(), curi.getRecorder().getRecordedInput());
+			}
+		}
+
+		if (writeBehind != null) {
+			HDFSParameters parameters = getHdfsParameters();
+			HDFSRecordSnapshot snapshot = revisit;
+			if (snapshot == null) {
+				snapshot = HDFSRecordSnapshot.capture(curi.toString(),
+						getNamedFieldsBlock(curi, payloadDigest, null), curi.getRecorder().getRecordedOutput(),
+						curi.getRecorder().getRecordedInput(), parameters.getSpillThresholdBytes(),
+						(parameters.getSpillDirectory() == null) ? null : new File(parameters.getSpillDirectory()));
+				snapshot.setPayloadDigest(payloadDigest);
+			}
+			try {
+				writeBehind.offer(snapshot, getWriteBehindMaxWaitMs());
+			} catch (IOException e) {
+				snapshot.discard();
+				throw e;
+			}
+			return checkBytesWritten();
+		}
+
+		if (groupCommit != null) {
+			final HDFSRecordSnapshot revisitRecord = revisit;
+			final byte [] digest = payloadDigest;
+			final byte [] namedFieldsBlock = (revisit != null) ? null :
+				getNamedFieldsBlock(curi, payloadDigest, null);
+			try {
+				addTotalBytesWritten(groupCommit.write(
+						new HDFSGroupCommit.Record(curi.toString(), recordLength) {
+					@Override
+					protected void writeTo(HDFSWriter writer) throws IOException {
+						if (revisitRecord != null)
+							writer.write(revisitRecord);
+						else
+							writer.write(curi, namedFieldsBlock, curi.getRecorder().getRecordedOutput(),
+									curi.getRecorder().getRecordedInput(), digest);
+					}
+				}));
+			} catch (IOException e) {
+				LOG.error("Error encountered while processing: " + curi.toString());
+				throw e;
+			}
+
+			LOG.info("HDFSWriterProcessor: Successfully written url " + curi.getBaseURI());
+			return checkBytesWritten();
+		}
+
+		WriterPoolMember writerPoolMember = ((HDFSWriterPool)getPool()).borrowFile(curi.toString());
 
 		long writerPoolMemberPosition = writerPoolMember.getPosition();
 
@@ -183,11 +433,68 @@ public class HDFSWriterProcessor extends WriterPoolProcessor {
 			// We just closed the file because it was larger than maxBytes.
 			// Add to the totalBytesWritten the size of the first record
 			// in the file, if any.
-			setTotalBytesWritten(getTotalBytesWritten() +
-					(writerPoolMember.getPosition() - writerPoolMemberPosition));
+			addTotalBytesWritten(writerPoolMember.getPosition() - writerPoolMemberPosition);
 			writerPoolMemberPosition = writerPoolMember.getPosition();
 		}
 
+		HDFSWriter writer = (HDFSWriter)writerPoolMember;
+		try {
+			if (revisit != null) {
+				writer.write(revisit);
+			} else {
+				final byte [] namedFieldsBlock = getNamedFieldsBlock(curi, payloadDigest, null);
+
+				writer.write(curi, namedFieldsBlock, curi.getRecorder().getRecordedOutput(),
+						curi.getRecorder().getRecordedInput(), payloadDigest);
+			}
+
+			LOG.info("HDFSWriterProcessor: Successfully written url " + curi.getBaseURI());
+		} catch (IOException e) {
+			// Invalidate this file (It gets a '.invalid' suffix).
+			getPool().invalidateFile(writerPoolMember);
+
+			// Set the writer to null otherwise the pool accounting
+			// of how many active writers gets skewed if we subsequently
+			// do a returnWriter call on this object in the finally block.
+			writerPoolMember = null;
+
+			LOG.error("Error encountered while processing: " + curi.toString());
+			throw e;
+		} finally {
+			if (writerPoolMember != null) {
+				addTotalBytesWritten(writerPoolMember.getPosition() - writerPoolMemberPosition);
+
+				getPool().returnFile(writerPoolMember);
+			}
+		}
+
+		return checkBytesWritten();
+	}
+
+	/**
+	 * Builds the block of named fields written after the header line.
+	 *
+	 * @param curi
+	 *
+	 * @return ANVL encoded fields
+	 */
+	protected byte [] getNamedFieldsBlock(final CrawlURI curi) throws IOException {
+		return getNamedFieldsBlock(curi, null, null);
+	}
+
+	/**
+	 * Builds the block of named fields written after the header line,
+	 * with the dedup fields.
+	 *
+	 * @param curi
+	 * @param payloadDigest digest of the response body, or null
+	 * @param revisitOf location of the original if the record is a
+	 *  duplicate, or null
+	 *
+	 * @return ANVL encoded fields
+	 */
+	protected byte [] getNamedFieldsBlock(final CrawlURI curi, byte [] payloadDigest,
+			HDFSDedupTable.Location revisitOf) throws IOException {
 		UURI via = curi.getVia();
 
 		CrawlURI seed = curi.getFullVia();
@@ -208,49 +515,70 @@ public class HDFSWriterProcessor extends WriterPoolProcessor {
 		if (seed != null && seed.isSeed())
 			seedUrl = seed.toString();
 
-		ANVLRecord record = new ANVLRecord();
-		record.addLabelValue(getHdfsParameters().getUrlFieldName(), curi.toString());
-		record.addLabelValue(getHdfsParameters().getIpFieldName(), getHostAddress(curi));
-		record.addLabelValue(getHdfsParameters().getCrawlTimeFieldName(),
-				ArchiveUtils.get14DigitDate(curi.getFetchBeginTime()));
-		record.addLabelValue(getHdfsParameters().getIsSeedFieldName(), Boolean.toString(curi.isSeed()));
-		record.addLabelValue(getHdfsParameters().getSeedUrlFieldName(), seedUrl);
+		HDFSNamedFieldsEncoder fields = fieldsEncoder.get();
+		fields.reset();
+		fields.addUrl(curi.toString());
+		fields.addIp(getHostAddress(curi));
+		fields.addCrawlTime(curi.getFetchBeginTime());
+		fields.addIsSeed(curi.isSeed());
+		fields.addSeedUrl(seedUrl);
 
 		if (curi.getPathFromSeed() != null && curi.getPathFromSeed().trim().length() > 0)
-			record.addLabelValue(getHdfsParameters().getPathFromSeedFieldName(), curi.getPathFromSeed());
+			fields.addPathFromSeed(curi.getPathFromSeed());
 
 		if (via != null && via.toString().trim().length() > 0)
-			record.addLabelValue(getHdfsParameters().getViaFieldName(), via.toString());
+			fields.addVia(via.toString());
 
-		final byte [] namedFieldsBlock = record.getUTF8Bytes();
+		if (payloadDigest != null)
+			fields.addPayloadDigest(curi.getContentDigestSchemeString());
 
-		HDFSWriter writer = (HDFSWriter)writerPoolMember;
-		try {
-			writer.write(curi, namedFieldsBlock, curi.getRecorder().getRecordedOutput(),	
-					curi.getRecorder().getRecordedInput());	    
+		if (revisitOf != null)
+			fields.addRevisitOf(revisitOf.toString());
 
-			LOG.info("HDFSWriterProcessor: Successfully written url " + curi.getBaseURI());
-		} catch (IOException e) {
-			// Invalidate this file (It gets a '.invalid' suffix).
-			getPool().invalidateFile(writerPoolMember);
+		return fields.toByteArray();
+	}
 
-			// Set the writer to null otherwise the pool accounting
-			// of how many active writers gets skewed if we subsequently
-			// do a returnWriter call on this object in the finally block.
-			writerPoolMember = null;
+	/**
+	 * Returns the digest of the response body computed by the fetcher, or
+	 * computes its SHA-1 and sets it on <code>curi</code>.
+	 */
+	protected byte [] getPayloadDigest(final CrawlURI curi) throws IOException {
+		if (curi.getContentDigest() != null)
+			return curi.getContentDigest();
 
-			LOG.error("Error encountered while processing: " + curi.toString());
-			throw e;
+		MessageDigest sha1;
+		try {
+			sha1 = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("SHA-1 not available");
+		}
+
+		ReplayInputStream content = curi.getRecorder().getRecordedInput().getContentReplayInputStream();
+		try {
+			byte [] buf = new byte [ 16384 ];
+			for (int n; (n = content.read(buf, 0, buf.length)) > 0; )
+				sha1.update(buf, 0, n);
 		} finally {
-			if (writerPoolMember != null) {
-				setTotalBytesWritten(getTotalBytesWritten() +
-						(writerPoolMember.getPosition() - writerPoolMemberPosition));
+			content.close();
+		}
 
-				getPool().returnFile(writerPoolMember);
-			}
+		byte [] digest = sha1.digest();
+		curi.setContentDigest("sha1", digest);
+		return digest;
+	}
+
+	/**
+	 * Accounts for records written by the write-behind flusher threads
+	 */
+	private class WriteBehindListener implements HDFSWriteBehindQueue.Listener {
+		public void recordWritten(HDFSRecordSnapshot snapshot, long bytesWritten) {
+			addTotalBytesWritten(bytesWritten);
+			LOG.info("HDFSWriterProcessor: Successfully written url " + snapshot.getUri());
 		}
 
-		return checkBytesWritten();
+		public void recordFailed(HDFSRecordSnapshot snapshot, IOException e) {
+			LOG.error("Failed write of Record: " + snapshot.getUri(), e);
+		}
 	}
 
 }
@@ -0,0 +1,206 @@
+/* TestHDFSDedupTable
+ *
+ * $Id$
+ *
+ * Copyright (C) 2010 Zvents
+ *
+ * This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ * Heritrix is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * any later version.
+ *
+ * Heritrix is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with Heritrix; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.archive.io.hdfs;
+
+import java.io.File;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.io.SequenceFile;
+
+
+/**
+ * Tests the probing, eviction and saving of {@link HDFSDedupTable}.
+ */
+public class TestHDFSDedupTable extends TestCase {
+
+	/**
+	 * Slots searched for a digest, as in the table
+	 */
+	private static final int MAX_PROBE = 16;
+
+	private File file;
+
+	@Override
+	protected void setUp() throws Exception {
+		File dir = new File(System.getProperty("test.build.data", System.getProperty("java.io.tmpdir")));
+		dir.mkdirs();
+		file = new File(dir, "TestHDFSDedupTable.dedup");
+		file.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		file.delete();
+	}
+
+	public void testPutGet() throws Exception {
+		HDFSDedupTable table = new HDFSDedupTable(0, null);
+		assertEquals(1024, table.capacity());
+
+		Random random = new Random(42);
+		byte [][] digests = new byte [ 500 ][];
+		for (int i = 0; i < digests.length; i++) {
+			digests[i] = new byte [ 20 ];
+			random.nextBytes(digests[i]);
+			table.put(digests[i], "file-" + (i % 7), 1000L * i, i);
+		}
+
+		assertEquals(digests.length, table.size());
+		for (int i = 0; i < digests.length; i++)
+			assertEquals("file-" + (i % 7) + " " + (1000L * i) + " " + i, table.get(digests[i]).toString());
+
+		byte [] missing = new byte [ 20 ];
+		random.nextBytes(missing);
+		assertNull(table.get(missing));
+
+		// same digest, new location
+		table.put(digests[3], "file-new", 5, 6);
+		assertEquals(digests.length, table.size());
+		assertEquals("file-new 5 6", table.get(digests[3]).toString());
+
+		// only the leading bytes count
+		byte [] longer = new byte [ 32 ];
+		System.arraycopy(digests[4], 0, longer, 0, HDFSDedupTable.KEY_BYTES);
+		assertEquals(table.get(digests[4]).toString(), table.get(longer).toString());
+
+		try {
+			table.get(new byte [ HDFSDedupTable.KEY_BYTES - 1 ]);
+			fail("Accepted a short digest");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public void testEvictOldest() throws Exception {
+		HDFSDedupTable table = new HDFSDedupTable(0, null);
+		int home = 100;
+
+		for (int i = 0; i < MAX_PROBE; i++)
+			table.put(digest(home, i), "file", i, i);
+		assertEquals(MAX_PROBE, table.size());
+
+		// touching an entry does not make it younger
+		assertNotNull(table.get(digest(home, 0)));
+
+		table.put(digest(home, MAX_PROBE), "file", MAX_PROBE, MAX_PROBE);
+		assertEquals(MAX_PROBE, table.size());
+		assertNull(table.get(digest(home, 0)));
+		for (int i = 1; i <= MAX_PROBE; i++)
+			assertEquals("file " + i + " " + i, table.get(digest(home, i)).toString());
+
+		// replacing a location makes the entry the youngest
+		table.put(digest(home, 1), "file", 101, 101);
+		table.put(digest(home, MAX_PROBE + 1), "file", 0, 0);
+		assertNotNull(table.get(digest(home, 1)));
+		assertNull(table.get(digest(home, 2)));
+
+		// the window wraps around the end of the table
+		int last = table.capacity() - 1;
+		for (int i = 0; i <= MAX_PROBE; i++)
+			table.put(digest(last, i), "wrapped", i, i);
+		assertNull(table.get(digest(last, 0)));
+		assertEquals("wrapped 16 16", table.get(digest(last, MAX_PROBE)).toString());
+	}
+
+	public void testSaveLoad() throws Exception {
+		HDFSDedupTable table = new HDFSDedupTable(64 * 1024, file);
+		Random random = new Random(42);
+		byte [][] digests = new byte [ 1000 ][];
+		for (int i = 0; i < digests.length; i++) {
+			digests[i] = new byte [ 20 ];
+			random.nextBytes(digests[i]);
+			table.put(digests[i], "file-" + (i % 13), 1000L * i, i);
+		}
+
+		// a full window, filled oldest first
+		int home = 7;
+		for (int i = 0; i < MAX_PROBE; i++)
+			table.put(digest(home, i), "window", i, i);
+		table.put(digest(home, 0), "window", 100, 100);
+
+		table.save();
+		assertTrue(file.exists());
+
+		HDFSDedupTable loaded = new HDFSDedupTable(64 * 1024, file);
+		assertEquals(table.capacity(), loaded.capacity());
+		assertEquals(table.size(), loaded.size());
+		for (byte [] digest : digests)
+			assertEquals(toString(table.get(digest)), toString(loaded.get(digest)));
+		for (int i = 0; i < MAX_PROBE; i++)
+			assertEquals(toString(table.get(digest(home, i))), toString(loaded.get(digest(home, i))));
+
+		// ages came back too: entry 1 is now the oldest of the window
+		table.put(digest(home, MAX_PROBE), "window", MAX_PROBE, MAX_PROBE);
+		loaded.put(digest(home, MAX_PROBE), "window", MAX_PROBE, MAX_PROBE);
+		for (int i = 0; i <= MAX_PROBE; i++)
+			assertEquals(toString(table.get(digest(home, i))), toString(loaded.get(digest(home, i))));
+		assertNull(loaded.get(digest(home, 1)));
+		assertEquals("window 100 100", loaded.get(digest(home, 0)).toString());
+	}
+
+	public void testSaveWithoutFile() throws Exception {
+		HDFSDedupTable table = new HDFSDedupTable(0, null);
+		table.put(digest(1, 1), "file", 1, 1);
+		table.save();
+	}
+
+	public void testBlockRecorder() throws Exception {
+		HDFSDedupTable table = new HDFSDedupTable(0, null);
+		HDFSDedupTable.FileRecorder recorder = table.forFile("block",
+				SequenceFile.CompressionType.BLOCK);
+
+		recorder.add(digest(1, 0), 100, 50);
+		recorder.add(null, 100, 50);
+		recorder.add(digest(1, 2), 100, 50);
+		recorder.add(digest(1, 3), 900, 50);
+
+		assertEquals("block 100 0", table.get(digest(1, 0)).toString());
+		assertEquals("block 100 2", table.get(digest(1, 2)).toString());
+		assertEquals("block 900 0", table.get(digest(1, 3)).toString());
+
+		recorder = table.forFile("record", SequenceFile.CompressionType.RECORD);
+		recorder.add(digest(2, 0), 100, 50);
+		recorder.add(digest(2, 1), 150, 60);
+		assertEquals("record 150 60", table.get(digest(2, 1)).toString());
+	}
+
+	/**
+	 * @return digest number <code>n</code> whose home slot is
+	 *  <code>home</code>; the table folds the high 32 bits of the key
+	 *  into the low ones
+	 */
+	private static byte [] digest(int home, int n) {
+		long high = ((long)n << 32) | ((n ^ home) & 0xFFFFFFFFL);
+		byte [] digest = new byte [ 20 ];
+		for (int i = 0; i < 8; i++)
+			digest[i] = (byte)(high >>> (56 - 8 * i));
+		digest[8] = (byte)n;
+		return digest;
+	}
+
+	private static String toString(HDFSDedupTable.Location location) {
+		return (location == null) ? null : location.toString();
+	}
+}
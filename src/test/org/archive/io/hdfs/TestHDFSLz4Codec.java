@@ -0,0 +1,215 @@
+/* TestHDFSLz4Codec
+ *
+ * $Id$
+ *
+ * Copyright (C) 2010 Zvents
+ *
+ * This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ * Heritrix is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * any later version.
+ *
+ * Heritrix is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with Heritrix; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.archive.io.hdfs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.compress.BlockCompressorStream;
+import org.apache.hadoop.io.compress.BlockDecompressorStream;
+
+
+/**
+ * Round trips data through {@link HDFSLz4Codec}, framed by
+ * {@link BlockCompressorStream} and {@link BlockDecompressorStream}.
+ */
+public class TestHDFSLz4Codec extends TestCase {
+
+	/**
+	 * Input length below which the compressor emits literals only
+	 */
+	private static final int MF_LIMIT = 12;
+
+	private static final int [] BUFFER_SIZES = { 4096, HDFSLz4Codec.DEFAULT_BUFFER_SIZE };
+
+	private final Random random = new Random(42);
+
+	public void testEmpty() throws IOException {
+		for (int bufferSize : BUFFER_SIZES)
+			roundTrip(bufferSize, new byte [0]);
+	}
+
+	public void testShorterThanMfLimit() throws IOException {
+		for (int bufferSize : BUFFER_SIZES) {
+			for (int len = 1; len <= MF_LIMIT + 1; len++) {
+				roundTrip(bufferSize, randomBytes(len));
+				roundTrip(bufferSize, new byte [ len ]);
+			}
+		}
+	}
+
+	public void testIncompressibleAtBufferSize() throws IOException {
+		for (int bufferSize : BUFFER_SIZES) {
+			roundTrip(bufferSize, randomBytes(bufferSize));
+			roundTrip(bufferSize, randomBytes(bufferSize - 1));
+			roundTrip(bufferSize, randomBytes(bufferSize + 1));
+			roundTrip(bufferSize, randomBytes(getMaxInputSize(bufferSize)));
+		}
+	}
+
+	/**
+	 * A full buffer of random bytes compressed as one block, without the
+	 * stream cutting it to the maximum input size first
+	 */
+	public void testIncompressibleBlock() throws IOException {
+		for (int bufferSize : BUFFER_SIZES) {
+			byte [] data = randomBytes(bufferSize);
+
+			HDFSLz4Codec.Lz4Compressor compressor = new HDFSLz4Codec.Lz4Compressor(bufferSize);
+			compressor.setInput(data, 0, data.length);
+			compressor.finish();
+			ByteArrayOutputStream block = new ByteArrayOutputStream();
+			byte [] buf = new byte [ 1000 ];
+			while (!compressor.finished())
+				block.write(buf, 0, compressor.compress(buf, 0, buf.length));
+			assertTrue(block.size() <= bufferSize + HDFSLz4Codec.getCompressionOverhead(bufferSize));
+
+			HDFSLz4Codec.Lz4Decompressor decompressor = new HDFSLz4Codec.Lz4Decompressor(bufferSize);
+			decompressor.setInput(block.toByteArray(), 0, block.size());
+			byte [] result = new byte [ bufferSize ];
+			int n = 0;
+			while (!decompressor.finished())
+				n += decompressor.decompress(result, n, result.length - n);
+			assertEquals(bufferSize, n);
+			assertTrue(Arrays.equals(data, result));
+		}
+	}
+
+	public void testLargerThanMaxInputSize() throws IOException {
+		for (int bufferSize : BUFFER_SIZES) {
+			int maxInputSize = getMaxInputSize(bufferSize);
+			roundTrip(bufferSize, randomBytes(maxInputSize + 1));
+			roundTrip(bufferSize, randomBytes(3 * bufferSize + 7));
+			roundTrip(bufferSize, text(3 * bufferSize + 7));
+		}
+	}
+
+	public void testSmallWrites() throws IOException {
+		for (int bufferSize : BUFFER_SIZES) {
+			byte [] data = text(2 * bufferSize + 100);
+			HDFSLz4Codec codec = createCodec(bufferSize);
+
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+			OutputStream out = codec.createOutputStream(compressed);
+			for (int off = 0; off < data.length; ) {
+				int len = Math.min(data.length - off, random.nextInt(MF_LIMIT * 4));
+				out.write(data, off, len);
+				off += len;
+			}
+			out.close();
+
+			assertTrue(compressed.size() < data.length);
+			assertTrue(Arrays.equals(data, decompress(codec, compressed.toByteArray())));
+		}
+	}
+
+	public void testCorruptBlock() throws IOException {
+		HDFSLz4Codec codec = createCodec(4096);
+		byte [] compressed = compress(codec, text(4000));
+		byte [] truncated = Arrays.copyOf(compressed, compressed.length - 10);
+		// keep the lengths of the framing, cut the block short
+		int blockLength = compressed.length - 8 - 10;
+		truncated[4] = (byte)(blockLength >>> 24);
+		truncated[5] = (byte)(blockLength >>> 16);
+		truncated[6] = (byte)(blockLength >>> 8);
+		truncated[7] = (byte)blockLength;
+
+		try {
+			decompress(codec, truncated);
+			fail("Decompressed a truncated block");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	private void roundTrip(int bufferSize, byte [] data) throws IOException {
+		HDFSLz4Codec codec = createCodec(bufferSize);
+		byte [] result = decompress(codec, compress(codec, data));
+		assertEquals(data.length, result.length);
+		assertTrue(bufferSize + " " + data.length, Arrays.equals(data, result));
+	}
+
+	private static HDFSLz4Codec createCodec(int bufferSize) {
+		Configuration conf = new Configuration();
+		conf.setInt(HDFSLz4Codec.BUFFER_SIZE_KEY, bufferSize);
+		HDFSLz4Codec codec = new HDFSLz4Codec();
+		codec.setConf(conf);
+		return codec;
+	}
+
+	/**
+	 * @return largest write {@link BlockCompressorStream} hands to the
+	 *  compressor in one piece
+	 */
+	private static int getMaxInputSize(int bufferSize) {
+		return bufferSize - HDFSLz4Codec.getCompressionOverhead(bufferSize);
+	}
+
+	private static byte [] compress(HDFSLz4Codec codec, byte [] data) throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		OutputStream out = codec.createOutputStream(compressed);
+		out.write(data);
+		out.close();
+		return compressed.toByteArray();
+	}
+
+	private static byte [] decompress(HDFSLz4Codec codec, byte [] compressed) throws IOException {
+		InputStream in = codec.createInputStream(new ByteArrayInputStream(compressed));
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		byte [] buf = new byte [ 777 ];
+		for (int n; (n = in.read(buf)) != -1; )
+			result.write(buf, 0, n);
+		in.close();
+		return result.toByteArray();
+	}
+
+	private byte [] randomBytes(int len) {
+		byte [] bytes = new byte [ len ];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+
+	/**
+	 * @return compressible bytes, with matches near and far
+	 */
+	private byte [] text(int len) {
+		String [] words = { "<a href=\"", "http://example.com/", "</a>", "<div class=\"",
+				"content", "\">", " ", "\r\n", "the ", "crawl " };
+		ByteArrayOutputStream out = new ByteArrayOutputStream(len + 32);
+		while (out.size() < len) {
+			byte [] word = words[random.nextInt(words.length)].getBytes();
+			out.write(word, 0, word.length);
+			if (random.nextInt(8) == 0)
+				out.write(random.nextInt(256));
+		}
+		return Arrays.copyOf(out.toByteArray(), len);
+	}
+}
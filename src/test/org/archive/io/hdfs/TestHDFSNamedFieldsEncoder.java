@@ -0,0 +1,198 @@
+/* TestHDFSNamedFieldsEncoder
+ *
+ * $Id$
+ *
+ * Copyright (C) 2010 Zvents
+ *
+ * This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ * Heritrix is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * any later version.
+ *
+ * Heritrix is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with Heritrix; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.archive.io.hdfs;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.archive.util.ArchiveUtils;
+import org.archive.util.anvl.ANVLRecord;
+
+
+/**
+ * Checks that {@link HDFSNamedFieldsEncoder} writes the same bytes as
+ * {@link ANVLRecord#getUTF8Bytes()}.
+ */
+public class TestHDFSNamedFieldsEncoder extends TestCase {
+
+	private static final String [] VALUES = {
+		"http://example.com/",
+		"",
+		" leading and trailing spaces ",
+		"a\rb",
+		"a\nb",
+		"a\r\nb",
+		"a\n\rb",
+		"a\r\n   \t b",
+		"trailing line break\r\n",
+		"\r\nleading line break",
+		"tab\tinside",
+		"caf\u00e9 \u00fc\u00df",
+		"\u65e5\u672c\u8a9e",
+		"\ud83d\ude00 surrogate pair \ud801\udc37",
+		"unpaired \ud83d surrogate",
+		"control \u0001 character",
+		"delete \u007f character",
+	};
+
+	public void testValues() throws Exception {
+		HDFSParameters parameters = new HDFSParameters();
+		HDFSNamedFieldsEncoder encoder = new HDFSNamedFieldsEncoder(parameters);
+
+		for (String value : VALUES) {
+			encoder.reset();
+			encoder.addUrl(value);
+			encoder.addVia(value);
+
+			ANVLRecord record = new ANVLRecord();
+			add(record, parameters.getUrlFieldName(), value);
+			add(record, parameters.getViaFieldName(), value);
+
+			assertEquals(escape(value), record.getUTF8Bytes(), encoder.toByteArray());
+		}
+	}
+
+	public void testRecord() throws Exception {
+		HDFSParameters parameters = new HDFSParameters();
+		HDFSNamedFieldsEncoder encoder = new HDFSNamedFieldsEncoder(parameters);
+		long [] times = { 0L, 1286798400000L, 1293839999999L, 4102444800000L };
+
+		for (long time : times) {
+			for (boolean isSeed : new boolean [] { false, true }) {
+				encoder.reset();
+				encoder.addUrl("http://example.com/a?b=c");
+				encoder.addIp("10.0.0.1");
+				encoder.addCrawlTime(time);
+				encoder.addIsSeed(isSeed);
+				encoder.addSeedUrl("");
+				encoder.addPathFromSeed("LLE");
+				encoder.addVia("http://example.com/");
+				encoder.addPayloadDigest("sha1:2Y6CGAWZWLPJJCB3GFOAP3TGF4NBJ6SB");
+				encoder.addRevisitOf("<urn:uuid:2b1b1d4c-3b0d-4e2d-9c2a-6a2b8e1c4f3a>");
+
+				ANVLRecord record = new ANVLRecord();
+				record.addLabelValue(parameters.getUrlFieldName(), "http://example.com/a?b=c");
+				record.addLabelValue(parameters.getIpFieldName(), "10.0.0.1");
+				record.addLabelValue(parameters.getCrawlTimeFieldName(),
+						ArchiveUtils.get14DigitDate(time));
+				record.addLabelValue(parameters.getIsSeedFieldName(), Boolean.toString(isSeed));
+				record.addLabelValue(parameters.getSeedUrlFieldName(), "");
+				record.addLabelValue(parameters.getPathFromSeedFieldName(), "LLE");
+				record.addLabelValue(parameters.getViaFieldName(), "http://example.com/");
+				record.addLabelValue(parameters.getPayloadDigestFieldName(),
+						"sha1:2Y6CGAWZWLPJJCB3GFOAP3TGF4NBJ6SB");
+				record.addLabelValue(parameters.getRevisitOfFieldName(),
+						"<urn:uuid:2b1b1d4c-3b0d-4e2d-9c2a-6a2b8e1c4f3a>");
+
+				assertEquals(time + " " + isSeed, record.getUTF8Bytes(), encoder.toByteArray());
+			}
+		}
+	}
+
+	public void testBadLabel() throws Exception {
+		HDFSParameters parameters = new HDFSParameters();
+		parameters.setViaFieldName("Bad:Label");
+		HDFSNamedFieldsEncoder encoder = new HDFSNamedFieldsEncoder(parameters);
+
+		encoder.reset();
+		encoder.addUrl("http://example.com/");
+		encoder.addVia("http://example.com/");
+
+		ANVLRecord record = new ANVLRecord();
+		add(record, parameters.getUrlFieldName(), "http://example.com/");
+		add(record, parameters.getViaFieldName(), "http://example.com/");
+
+		assertEquals(record.getUTF8Bytes(), encoder.toByteArray());
+	}
+
+	public void testRandomValues() throws Exception {
+		char [] chars = {
+			'a', 'Z', '0', ' ', '\t', '\r', '\n', ':', '\u0000', '\u001f', '\u0085',
+			'\u00a0', '\u00e9', '\u07ff', '\u0800', '\u2028', '\u3000', '\uffff',
+			'\ud83d', '\ude00'
+		};
+		Random random = new Random(42);
+		HDFSParameters parameters = new HDFSParameters();
+		HDFSNamedFieldsEncoder encoder = new HDFSNamedFieldsEncoder(parameters);
+
+		for (int i = 0; i < 10000; i++) {
+			StringBuilder value = new StringBuilder();
+			for (int n = random.nextInt(12); n > 0; n--)
+				value.append(chars[random.nextInt(chars.length)]);
+
+			encoder.reset();
+			encoder.addUrl(value.toString());
+			encoder.addIp("10.0.0.1");
+
+			ANVLRecord record = new ANVLRecord();
+			add(record, parameters.getUrlFieldName(), value.toString());
+			add(record, parameters.getIpFieldName(), "10.0.0.1");
+
+			assertEquals(escape(value), record.getUTF8Bytes(), encoder.toByteArray());
+		}
+	}
+
+	/**
+	 * Adds a field the way the encoder does, leaving it out if ANVLRecord
+	 * refuses it
+	 */
+	private static void add(ANVLRecord record, String label, String value) {
+		try {
+			record.addLabelValue(label, value);
+		} catch (IllegalArgumentException e) {
+			// left out
+		}
+	}
+
+	private static void assertEquals(String message, byte [] expected, byte [] actual) {
+		assertEquals(message, escape(expected), escape(actual));
+	}
+
+	private static void assertEquals(byte [] expected, byte [] actual) {
+		assertEquals(null, expected, actual);
+	}
+
+	private static String escape(byte [] bytes) {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : bytes) {
+			if (b >= 0x20 && b < 0x7f && b != '\\')
+				sb.append((char)b);
+			else
+				sb.append(String.format("\\x%02x", b & 0xff));
+		}
+		return sb.toString();
+	}
+
+	private static String escape(CharSequence chars) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < chars.length(); i++) {
+			char c = chars.charAt(i);
+			if (c >= 0x20 && c < 0x7f && c != '\\')
+				sb.append(c);
+			else
+				sb.append(String.format("\\u%04x", (int)c));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,208 @@
+/* TestHDFSRecordSnapshot
+ *
+ * $Id$
+ *
+ * Copyright (C) 2010 Zvents
+ *
+ * This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ * Heritrix is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation; either version 2.1 of the License, or
+ * any later version.
+ *
+ * Heritrix is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with Heritrix; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package org.archive.io.hdfs;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.util.ReflectionUtils;
+
+
+/**
+ * Writes snapshots whose response was spilled to a file and checks that
+ * the file is neither left open nor left behind.
+ */
+public class TestHDFSRecordSnapshot extends TestCase {
+
+	private static final int RESPONSE_BYTES = 256 * 1024;
+
+	private File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = new File(System.getProperty("test.build.data", System.getProperty("java.io.tmpdir")),
+				"TestHDFSRecordSnapshot");
+		delete(dir);
+		assertTrue(new File(dir, "spill").mkdirs());
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		delete(dir);
+	}
+
+	public void testWriteClosesSpilledResponse() throws Exception {
+		HDFSWriterPool pool = new HDFSWriterPool(getParameters(), 1, 1000);
+		HDFSRecordSnapshot snapshot = createSnapshot("http://example.com/a", 1);
+		File file = getSpillFile();
+
+		HDFSWriter writer = (HDFSWriter)pool.borrowFile();
+		try {
+			writer.checkSize();
+			writer.write(snapshot);
+		} finally {
+			pool.returnFile(writer);
+		}
+
+		assertFalse(file + " still open", isOpen(file));
+		snapshot.discard();
+		assertFalse(file.exists());
+
+		pool.close();
+		assertEquals(1, countRecords());
+	}
+
+	public void testWriteBehindDiscardsSpilledResponses() throws Exception {
+		int openFiles = countOpenFiles();
+		HDFSWriterPool pool = new HDFSWriterPool(getParameters(), 2, 1000);
+		final List<IOException> failures = new ArrayList<IOException>();
+		HDFSWriteBehindQueue queue = new HDFSWriteBehindQueue(pool,
+				new HDFSWriteBehindQueue.Listener() {
+					public void recordWritten(HDFSRecordSnapshot snapshot, long bytesWritten) {
+					}
+
+					public synchronized void recordFailed(HDFSRecordSnapshot snapshot, IOException e) {
+						failures.add(e);
+					}
+				}, 4, 2);
+
+		for (int i = 0; i < 10; i++)
+			queue.offer(createSnapshot("http://example.com/" + i, i), 10000);
+		queue.close();
+		pool.close();
+
+		assertEquals(0, failures.size());
+		assertEquals(0, new File(dir, "spill").list().length);
+		if (openFiles >= 0)
+			assertEquals(openFiles, countOpenFiles());
+		assertEquals(10, countRecords());
+	}
+
+	private HDFSParameters getParameters() {
+		HDFSParameters parameters = new HDFSParameters();
+		parameters.setPrefix("TEST");
+		parameters.setHdfsFsDefaultName("file:///");
+		parameters.setHdfsOutputPath(new File(dir, "out").getPath());
+		parameters.setHdfsCompressionType("NONE");
+		parameters.setSpillDirectory(new File(dir, "spill").getPath());
+		return parameters;
+	}
+
+	/**
+	 * @return snapshot of a record whose response is in a spill file, as
+	 *  {@link HDFSRecordSnapshot#capture} makes them
+	 */
+	private HDFSRecordSnapshot createSnapshot(String uri, long seed) throws IOException {
+		byte [] response = new byte [ RESPONSE_BYTES ];
+		new Random(seed).nextBytes(response);
+		byte [] headers = "HTTP/1.0 200 OK\r\nContent-Type: image/jpeg\r\n\r\n".getBytes("UTF-8");
+		System.arraycopy(headers, 0, response, 0, headers.length);
+
+		File file = File.createTempFile("hdfs-snapshot-", ".tmp", new File(dir, "spill"));
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(response);
+		} finally {
+			out.close();
+		}
+
+		return new HDFSRecordSnapshot(uri, ("URL: " + uri + "\r\n\r\n").getBytes("UTF-8"),
+				"GET / HTTP/1.0\r\n\r\n".getBytes("UTF-8"), file, response.length);
+	}
+
+	private File getSpillFile() {
+		File [] files = new File(dir, "spill").listFiles();
+		assertEquals(1, files.length);
+		return files[0];
+	}
+
+	/**
+	 * @return true if a descriptor of this process refers to
+	 *  <code>file</code>; false if that cannot be told
+	 */
+	private static boolean isOpen(File file) throws IOException {
+		File [] fds = new File("/proc/self/fd").listFiles();
+		if (fds == null)
+			return false;
+
+		String path = file.getCanonicalPath();
+		for (File fd : fds) {
+			if (path.equals(fd.getCanonicalPath()))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return number of descriptors open in this process, or -1 if that
+	 *  cannot be told
+	 */
+	private static int countOpenFiles() {
+		String [] fds = new File("/proc/self/fd").list();
+		return (fds == null) ? -1 : fds.length;
+	}
+
+	private int countRecords() throws IOException {
+		Configuration conf = new Configuration();
+		FileSystem fs = FileSystem.getLocal(conf);
+		int records = 0;
+
+		for (FileStatus status : fs.listStatus(new Path(new File(dir, "out").getPath()))) {
+			if (status.getPath().getName().startsWith("."))
+				continue;
+
+			SequenceFile.Reader reader = new SequenceFile.Reader(fs, status.getPath(), conf);
+			try {
+				Text key = new Text();
+				Writable value = (Writable)ReflectionUtils.newInstance(reader.getValueClass(), conf);
+				while (reader.next(key, value))
+					records++;
+			} finally {
+				reader.close();
+			}
+		}
+		return records;
+	}
+
+	private static void delete(File file) {
+		File [] files = file.listFiles();
+		if (files != null) {
+			for (File f : files)
+				delete(f);
+		}
+		file.delete();
+	}
+}